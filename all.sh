@@ -1,4 +1,5 @@
 #!/bin/bash
 ./build.sh &&
 ./mapreduce.sh &&
-./predict.sh
+./compile-model.sh &&
+./predict.sh model.bin
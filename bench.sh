@@ -0,0 +1,25 @@
+#!/bin/bash
+#
+# Usage: JMH_HOME=<directory of the JMH jars> ./bench.sh [<JMH options>]
+#
+# Builds the JMH benchmarks in bench/ against the classes in src/, and runs
+# them on synthetic data from PostGenerator, with the gc profiler for the
+# allocation rate. The results are written to jmh-result.json. For example,
+#
+#     ./bench.sh PredictBenchmark -wi 1 -i 3
+#
+# JMH_HOME must hold jmh-core, jmh-generator-annprocess, jopt-simple and
+# commons-math3, so that nothing is downloaded.
+
+JMH_HOME="${JMH_HOME:-lib/jmh}"
+CLASSPATH="$(hadoop classpath):${JMH_HOME}/*"
+
+mkdir -p bin/bench &&
+javac \
+    -classpath "${CLASSPATH}" \
+    -sourcepath src:bench \
+    -d bin/bench \
+    src/org/xukmin/crystal/*.java \
+    bench/org/xukmin/crystal/*.java &&
+java -classpath "bin/bench:${CLASSPATH}" org.openjdk.jmh.Main \
+    -rf json -rff jmh-result.json -prof gc "$@"
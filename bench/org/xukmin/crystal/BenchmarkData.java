@@ -0,0 +1,152 @@
+package org.xukmin.crystal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class sets up the data shared by the benchmarks in a temporary
+ * directory: the stop word list, training and test data from
+ * {@link PostGenerator}, and a model trained on it by {@link PostMapReduce}
+ * in local mode, both as an output directory and compiled by
+ * {@link ModelCompiler}. The model is only trained for the benchmarks that
+ * ask for it.
+ *
+ * The directory becomes the working directory of the local file system, so
+ * that the classes under test find stop-word-list.txt as they do on a
+ * cluster. It is created once per JVM, i.e. once per JMH fork.
+ */
+public class BenchmarkData {
+  /** Number of training posts. */
+  public static final String TRAIN_POSTS = "crystal.benchmark.train.posts";
+  /** Number of test posts. */
+  public static final String TEST_POSTS = "crystal.benchmark.test.posts";
+
+  public static synchronized BenchmarkData get() throws Exception {
+    if (instance == null) {
+      instance = new BenchmarkData(Integer.getInteger(TRAIN_POSTS, 20000),
+                                   Integer.getInteger(TEST_POSTS, 2000));
+    }
+    return instance;
+  }
+
+  private BenchmarkData(int numTrainPosts, int numTestPosts)
+      throws Exception {
+    directory = Files.createTempDirectory("crystal-benchmark").toFile();
+    conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.set("mapreduce.framework.name", "local");
+    FileSystem fs = FileSystem.get(conf);
+    fs.setWorkingDirectory(new Path(directory.getAbsolutePath()));
+
+    try (Writer writer = open(StopWords.FILE)) {
+      for (String word : PostGenerator.STOP_WORDS) {
+        writer.write(word);
+        writer.write('\n');
+      }
+    }
+    PostGenerator generator = new PostGenerator(0);
+    try (Writer writer = open(TRAIN_FILE)) {
+      generator.write(writer, numTrainPosts);
+    }
+    try (Writer writer = open(TEST_FILE)) {
+      generator.write(writer, numTestPosts);
+    }
+    trainRecords = readRecords(TRAIN_FILE);
+    testRecords = readRecords(TEST_FILE);
+  }
+
+  private synchronized void train() throws Exception {
+    if (modelFile != null) {
+      return;
+    }
+    String output = new File(directory, "output").getAbsolutePath();
+    int status = ToolRunner.run(conf, new PostMapReduce(), new String[]{
+        new File(directory, TRAIN_FILE).getAbsolutePath(), output});
+    if (status != 0) {
+      throw new IOException("Training the benchmark model failed.");
+    }
+    String file = new File(directory, "model.bin").getAbsolutePath();
+    ModelCompiler.compile(conf, output, new Path(file));
+    modelDirectory = output;
+    modelFile = file;
+  }
+
+  private Writer open(String name) throws IOException {
+    return new OutputStreamWriter(
+        new FileOutputStream(new File(directory, name)),
+        StandardCharsets.UTF_8);
+  }
+
+  /** Reads the records of the file as single lines, without the header. */
+  private List<Text> readRecords(String name) throws IOException {
+    List<Text> records = new ArrayList<Text>();
+    try (
+      CSVLineReader reader =
+          new CSVLineReader(Files.newInputStream(
+              new File(directory, name).toPath()));
+    ) {
+      Text line = new Text();
+      Post post = new Post();
+      while (reader.readLine(line) > 0) {
+        if (line.getLength() == 0) {
+          continue;
+        }
+        post.set(line);
+        if (!post.isHeader()) {
+          records.add(new Text(line));
+        }
+      }
+    }
+    return records;
+  }
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /** Returns the training records, each parsable by {@link Post}. */
+  public List<Text> getTrainRecords() {
+    return trainRecords;
+  }
+
+  /** Returns the test records, each parsable by {@link Post}. */
+  public List<Text> getTestRecords() {
+    return testRecords;
+  }
+
+  /** Returns the output directory of {@link PostMapReduce}. */
+  public String getModelDirectory() throws Exception {
+    train();
+    return modelDirectory;
+  }
+
+  /** Returns the model file compiled by {@link ModelCompiler}. */
+  public String getModelFile() throws Exception {
+    train();
+    return modelFile;
+  }
+
+  private static final String TRAIN_FILE = "train.csv";
+  private static final String TEST_FILE = "test.csv";
+
+  private static BenchmarkData instance;
+
+  private final File directory;
+  private final Configuration conf;
+  private final List<Text> trainRecords;
+  private final List<Text> testRecords;
+  private String modelDirectory;
+  private String modelFile;
+}
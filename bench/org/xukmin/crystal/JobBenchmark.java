@@ -0,0 +1,430 @@
+package org.xukmin.crystal;
+
+import com.sun.management.OperatingSystemMXBean;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class benchmarks {@link PostMapReduce} as a whole job, with the local
+ * job runner, over a matrix of settings, so that the results can be compared
+ * from commit to commit without a cluster.
+ *
+ * The data is generated by {@link PostGenerator}, or sampled from the given
+ * training data, in a temporary directory. Each setting is a comma-separated
+ * list, and every combination of them is run:
+ *
+ * - crystal.benchmark.reduces: numbers of reducers, "1" by default.
+ * - crystal.benchmark.split.mb: maximum split sizes in MB, or 0 for the
+ *   default splits, "0" by default.
+ * - crystal.benchmark.combiner, crystal.benchmark.inmapper,
+ *   crystal.benchmark.skew, crystal.benchmark.compress: whether to run the
+ *   combiner, the in-mapper aggregation, the SkewPartitioner, and to compress
+ *   the map output, "true", "false", "true" and "false" by default.
+ * - crystal.benchmark.features: "plain" (vocabulary), "hash" (hashing into
+ *   crystal.benchmark.hash.buckets) or "ngram" (n-grams of
+ *   crystal.benchmark.ngram.size), "plain" by default.
+ *
+ * Each combination runs {@link #WARMUP} times, then {@link #TRIALS} times. A
+ * trial appends a row to the results file, a CSV file that is created with a
+ * header, and labeled with {@link #LABEL}, e.g. a commit: the wall time, the
+ * CPU and GC time of the JVM, which runs all the tasks, and the shuffle and
+ * spill counters from the {@link Metrics} of the job. The median of the
+ * trials of each combination is printed at the end.
+ *
+ * Usage: JobBenchmark <results file> [<training data>]
+ */
+public class JobBenchmark extends Configured implements Tool {
+  /** Label of the rows of the results, e.g. the commit. */
+  public static final String LABEL = "crystal.benchmark.label";
+  /** Number of posts to generate or to sample from the training data. */
+  public static final String POSTS = "crystal.benchmark.posts";
+  /** Seed of the generated or sampled posts. */
+  public static final String SEED = "crystal.benchmark.seed";
+  /** Number of runs of each combination before the trials. */
+  public static final String WARMUP = "crystal.benchmark.warmup";
+  /** Number of runs of each combination that are recorded. */
+  public static final String TRIALS = "crystal.benchmark.trials";
+
+  private static final String PREFIX = "crystal.benchmark.";
+  private static final String[] SETTINGS = {
+    "features", "reduces", "split.mb", "combiner", "inmapper", "skew",
+    "compress",
+  };
+  private static final String[] DEFAULTS = {
+    "plain", "1", "0", "true", "false", "true", "false",
+  };
+  private static final String[] RESULTS = {
+    "wall_ms", "cpu_ms", "gc_ms", "map_output_bytes",
+    "map_output_materialized_bytes", "shuffle_bytes", "spilled_records",
+  };
+  private static final String[] COUNTERS = {
+    "counter.MAP_OUTPUT_BYTES", "counter.MAP_OUTPUT_MATERIALIZED_BYTES",
+    "counter.REDUCE_SHUFFLE_BYTES", "counter.SPILLED_RECORDS",
+  };
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new JobBenchmark(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println(
+          "Usage: JobBenchmark <results file> [<training data>]");
+      return 1;
+    }
+    Configuration conf = getConf();
+    conf.set("fs.defaultFS", "file:///");
+    conf.set("mapreduce.framework.name", "local");
+    File results = new File(args[0]).getAbsoluteFile();
+    FileSystem fs = FileSystem.get(conf);
+    Path input = args.length >= 2 ? fs.makeQualified(new Path(args[1])) : null;
+    Path stopWords = fs.makeQualified(new Path(StopWords.FILE));
+
+    File directory = Files.createTempDirectory("crystal-job-benchmark")
+        .toFile();
+    try {
+      fs.setWorkingDirectory(new Path(directory.getAbsolutePath()));
+      Path data = new Path(directory.getAbsolutePath(), "train.csv");
+      int numPosts = input == null ?
+          generate(data, stopWords) : sample(fs, input, data, stopWords);
+      System.out.printf("Posts = %d\n", numPosts);
+      runMatrix(data, numPosts, results);
+    } finally {
+      FileUtil.fullyDelete(directory);
+    }
+    return 0;
+  }
+
+  /** Generates the posts, and the stop words unless there are some. */
+  private int generate(Path data, Path stopWords) throws IOException {
+    int numPosts = getConf().getInt(POSTS, 50000);
+    FileSystem fs = FileSystem.get(getConf());
+    try (Writer writer = open(fs, data)) {
+      new PostGenerator(getConf().getLong(SEED, 0)).write(writer, numPosts);
+    }
+    copyStopWords(fs, stopWords);
+    return numPosts;
+  }
+
+  /**
+   * Copies the posts of the training data, or a random sample of them if
+   * {@link #POSTS} is set, in their order, with the header.
+   */
+  private int sample(FileSystem fs, Path input, Path data, Path stopWords)
+      throws IOException {
+    List<Text> records = new ArrayList<Text>();
+    Text header = null;
+    FileStatus[] files = fs.globStatus(input);
+    if (files == null || files.length == 0) {
+      throw new IOException("No training data matches " + input);
+    }
+    Post post = new Post();
+    for (FileStatus file : files) {
+      try (CSVLineReader reader = new CSVLineReader(fs.open(file.getPath()))) {
+        Text line = new Text();
+        while (reader.readLine(line) > 0) {
+          if (line.getLength() == 0) {
+            continue;
+          }
+          post.set(line);
+          if (!post.isHeader()) {
+            records.add(new Text(line));
+          } else if (header == null) {
+            header = new Text(line);
+          }
+        }
+      }
+    }
+
+    int numPosts = getConf().getInt(POSTS, 0);
+    if (numPosts > 0 && numPosts < records.size()) {
+      // Picks the indices of the sample, then keeps them in order.
+      Random random = new Random(getConf().getLong(SEED, 0));
+      int[] indices = new int[numPosts];
+      for (int i = 0; i < records.size(); i++) {
+        if (i < numPosts) {
+          indices[i] = i;
+        } else {
+          int j = random.nextInt(i + 1);
+          if (j < numPosts) {
+            indices[j] = i;
+          }
+        }
+      }
+      Arrays.sort(indices);
+      List<Text> sample = new ArrayList<Text>(numPosts);
+      for (int index : indices) {
+        sample.add(records.get(index));
+      }
+      records = sample;
+    }
+
+    try (Writer writer = open(fs, data)) {
+      writer.write(header != null ? header.toString() : PostGenerator.HEADER);
+      writer.write('\n');
+      for (Text record : records) {
+        writer.write(record.toString());
+        writer.write('\n');
+      }
+    }
+    copyStopWords(fs, stopWords);
+    return records.size();
+  }
+
+  /**
+   * Copies the stop words of the original working directory, or writes the
+   * ones of the generated posts, to the working directory.
+   */
+  private void copyStopWords(FileSystem fs, Path stopWords)
+      throws IOException {
+    Path target = fs.makeQualified(new Path(StopWords.FILE));
+    if (fs.exists(stopWords)) {
+      FileUtil.copy(fs, stopWords, fs, target, false, getConf());
+      return;
+    }
+    try (Writer writer = open(fs, target)) {
+      for (String word : PostGenerator.STOP_WORDS) {
+        writer.write(word);
+        writer.write('\n');
+      }
+    }
+  }
+
+  private static Writer open(FileSystem fs, Path path) throws IOException {
+    return new OutputStreamWriter(fs.create(path, true),
+                                  StandardCharsets.UTF_8);
+  }
+
+  /** Runs every combination of the settings, and records the trials. */
+  private void runMatrix(Path data, int numPosts, File results)
+      throws Exception {
+    String[][] values = new String[SETTINGS.length][];
+    for (int i = 0; i < SETTINGS.length; i++) {
+      values[i] = getConf().getTrimmedStrings(PREFIX + SETTINGS[i],
+                                              DEFAULTS[i]);
+    }
+    int warmup = getConf().getInt(WARMUP, 1);
+    int trials = getConf().getInt(TRIALS, 3);
+    String label = getConf().get(LABEL, "");
+
+    boolean header = !results.exists() || results.length() == 0;
+    List<String[]> combinations = new ArrayList<String[]>();
+    Map<String, List<long[]>> trialsOf = new HashMap<String, List<long[]>>();
+    try (
+      PrintWriter writer =
+          new PrintWriter(
+              new OutputStreamWriter(
+                  new FileOutputStream(results, true),
+                  StandardCharsets.UTF_8));
+    ) {
+      if (header) {
+        writer.printf("label,posts,%s,trial,%s\n",
+                      join(SETTINGS).replace('.', '_'), join(RESULTS));
+      }
+      // Counts through the combinations, the last setting the fastest.
+      int[] index = new int[SETTINGS.length];
+      while (true) {
+        String[] combination = new String[SETTINGS.length];
+        for (int i = 0; i < SETTINGS.length; i++) {
+          combination[i] = values[i][index[i]];
+        }
+        combinations.add(combination);
+        List<long[]> recorded = new ArrayList<long[]>();
+        trialsOf.put(join(combination), recorded);
+        for (int trial = -warmup; trial < trials; trial++) {
+          long[] result = runJob(data, combination);
+          if (trial >= 0) {
+            recorded.add(result);
+            writer.printf("%s,%d,%s,%d,%s\n", label, numPosts,
+                          join(combination), trial, join(result));
+            writer.flush();
+          }
+        }
+        int i = SETTINGS.length - 1;
+        while (i >= 0 && ++index[i] == values[i].length) {
+          index[i--] = 0;
+        }
+        if (i < 0) {
+          break;
+        }
+      }
+    }
+
+    System.out.printf("\n%s%s\n", format(SETTINGS, SETTINGS),
+                      format(RESULTS, RESULTS));
+    for (String[] combination : combinations) {
+      List<long[]> recorded = trialsOf.get(join(combination));
+      long[] medians = new long[RESULTS.length];
+      for (int r = 0; r < RESULTS.length && !recorded.isEmpty(); r++) {
+        long[] column = new long[recorded.size()];
+        for (int t = 0; t < column.length; t++) {
+          column[t] = recorded.get(t)[r];
+        }
+        Arrays.sort(column);
+        medians[r] = column[column.length / 2];
+      }
+      String[] numbers = new String[RESULTS.length];
+      for (int r = 0; r < RESULTS.length; r++) {
+        numbers[r] = Long.toString(medians[r]);
+      }
+      System.out.printf("%s%s\n", format(combination, SETTINGS),
+                        format(numbers, RESULTS));
+    }
+    System.out.printf("Results = %s\n", results);
+  }
+
+  /**
+   * Runs PostMapReduce with the settings, and returns the wall, CPU and GC
+   * time, and the counters of {@link #COUNTERS}.
+   */
+  private long[] runJob(Path data, String[] combination) throws Exception {
+    Configuration conf = new Configuration(getConf());
+    Map<String, String> setting = new HashMap<String, String>();
+    for (int i = 0; i < SETTINGS.length; i++) {
+      setting.put(SETTINGS[i], combination[i]);
+    }
+    String features = setting.get("features");
+    if (features.equals("hash")) {
+      conf.setInt(FeatureHasher.BUCKETS,
+                  conf.getInt(PREFIX + "hash.buckets", 65536));
+    } else if (features.equals("ngram")) {
+      conf.setInt(NGrams.SIZE, conf.getInt(PREFIX + "ngram.size", 2));
+    } else if (!features.equals("plain")) {
+      throw new IllegalArgumentException("Unknown features: " + features);
+    }
+    conf.setInt("mapreduce.job.reduces",
+                Integer.parseInt(setting.get("reduces")));
+    long splitBytes = Long.parseLong(setting.get("split.mb")) << 20;
+    if (splitBytes > 0) {
+      conf.setLong("mapreduce.input.fileinputformat.split.maxsize",
+                   splitBytes);
+    }
+    conf.setBoolean(PostMapReduce.COMBINER,
+                    Boolean.parseBoolean(setting.get("combiner")));
+    conf.setBoolean(PostMapper.IN_MAPPER,
+                    Boolean.parseBoolean(setting.get("inmapper")));
+    conf.setBoolean(PostMapReduce.SKEW_PARTITIONER,
+                    Boolean.parseBoolean(setting.get("skew")));
+    conf.setBoolean("mapreduce.map.output.compress",
+                    Boolean.parseBoolean(setting.get("compress")));
+    conf.setBoolean(Metrics.ENABLED, true);
+
+    Path output = new Path(data.getParent(), "output");
+    long cpuStart = getCpuNanos();
+    long gcStart = getGcMillis();
+    long start = System.nanoTime();
+    int status = ToolRunner.run(conf, new PostMapReduce(), new String[]{
+        data.toString(), output.toString()});
+    long wallNanos = System.nanoTime() - start;
+    if (status != 0) {
+      throw new IOException("PostMapReduce failed with " + join(combination));
+    }
+    long[] result = new long[RESULTS.length];
+    result[0] = wallNanos / 1000000;
+    result[1] = (getCpuNanos() - cpuStart) / 1000000;
+    result[2] = getGcMillis() - gcStart;
+    Map<String, String> metrics =
+        readMetrics(FileSystem.get(conf), new Path(output, "metrics.csv"));
+    for (int i = 0; i < COUNTERS.length; i++) {
+      String value = metrics.get(COUNTERS[i]);
+      result[3 + i] = value == null ? -1 : Long.parseLong(value);
+    }
+    return result;
+  }
+
+  /** Returns the CPU time of the JVM, or -1 if it is not available. */
+  private static long getCpuNanos() {
+    java.lang.management.OperatingSystemMXBean os =
+        ManagementFactory.getOperatingSystemMXBean();
+    return os instanceof OperatingSystemMXBean ?
+        ((OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+  }
+
+  private static long getGcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc :
+         ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(gc.getCollectionTime(), 0);
+    }
+    return millis;
+  }
+
+  /** Reads the name,value lines of metrics.csv. */
+  private static Map<String, String> readMetrics(FileSystem fs, Path path)
+      throws IOException {
+    Map<String, String> metrics = new HashMap<String, String>();
+    try (
+      BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(fs.open(path), StandardCharsets.UTF_8));
+    ) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int comma = line.indexOf(',');
+        if (comma > 0) {
+          metrics.put(line.substring(0, comma), line.substring(comma + 1));
+        }
+      }
+    }
+    return metrics;
+  }
+
+  private static String join(String[] values) {
+    StringBuilder builder = new StringBuilder();
+    for (String value : values) {
+      if (builder.length() > 0) {
+        builder.append(',');
+      }
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  private static String join(long[] values) {
+    StringBuilder builder = new StringBuilder();
+    for (long value : values) {
+      if (builder.length() > 0) {
+        builder.append(',');
+      }
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  /** Formats the values in columns as wide as their names. */
+  private static String format(String[] values, String[] names) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < values.length; i++) {
+      int width = Math.max(names[i].length(), 8);
+      builder.append(String.format("%" + width + "s ", values[i]));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,56 @@
+package org.xukmin.crystal;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.fs.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures loading a model into a {@link ScoringModel}, from the output
+ * directory of {@link PostMapReduce} ("text") or from the file compiled by
+ * {@link ModelCompiler} ("mapped").
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelBenchmark {
+  @Param({"text", "mapped"})
+  public String format;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkData data = BenchmarkData.get();
+    fs = FileSystem.get(data.getConf());
+    stopWords = StopWords.load(fs);
+    location = format.equals("text") ?
+        data.getModelDirectory() : data.getModelFile();
+  }
+
+  @Benchmark
+  public ScoringModel load() throws Exception {
+    try (
+      Model model = format.equals("text") ?
+          new TextModel(fs, location) : new MappedModel(location);
+    ) {
+      return new ScoringModel(model, STATES, stopWords);
+    }
+  }
+
+  private static final String[] STATES = {"open", "closed"};
+
+  private FileSystem fs;
+  private StopWords stopWords;
+  private String location;
+}
@@ -0,0 +1,64 @@
+package org.xukmin.crystal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing a record into a {@link Post}, alone and with every field
+ * read, as {@link PostMapper} and {@link PostPredictor} do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostBenchmark {
+  @Setup
+  public void setup() throws Exception {
+    records = BenchmarkData.get().getTestRecords();
+  }
+
+  private Text nextRecord() {
+    if (next == records.size()) {
+      next = 0;
+    }
+    return records.get(next++);
+  }
+
+  @Benchmark
+  public int set() {
+    post.set(nextRecord());
+    return post.getNumTags();
+  }
+
+  @Benchmark
+  public long readFields() {
+    post.set(nextRecord());
+    long hash = post.getPostId().hashCode();
+    hash += post.getPostCreationDate();
+    hash += post.getOwnerCreationDate();
+    hash += post.getReputationAtPostCreation();
+    hash += post.getOwnerUndeletedAnswerCountAtPostTime();
+    hash += post.getTitle().length();
+    hash += post.getBody().length();
+    hash += post.getTags().size();
+    hash += post.getStatus().length();
+    return hash;
+  }
+
+  private List<Text> records;
+  private int next;
+  private Post post = new Post();
+}
@@ -0,0 +1,249 @@
+package org.xukmin.crystal;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * This class generates synthetic training / test data shaped like the Stack
+ * Overflow data set, so that the benchmarks run offline and on the same data
+ * every time.
+ *
+ * Words and tags are drawn from Zipf distributions, with a few stop words
+ * among the most common words, and closed posts lean towards a handful of
+ * words and tags and lower reputations, so that the model has something to
+ * learn. Closed posts have one of the close reasons. Bodies span several
+ * lines and have commas and quotes in them, like the original multi-line CSV.
+ *
+ * Usage: PostGenerator <file> [<posts> [<seed>]]
+ */
+public class PostGenerator {
+  public static final String HEADER =
+      "PostId,PostCreationDate,OwnerUserId,OwnerCreationDate," +
+      "ReputationAtPostCreation,OwnerUndeletedAnswerCountAtPostTime,Title," +
+      "BodyMarkdown,Tag1,Tag2,Tag3,Tag4,Tag5,PostClosedDate,OpenStatus";
+
+  /** The stop words among the generated words, for stop-word-list.txt. */
+  public static final String[] STOP_WORDS = {
+    "a", "about", "an", "and", "are", "as", "at", "be", "but", "by", "can",
+    "do", "for", "from", "have", "how", "i", "if", "in", "is", "it", "my",
+    "not", "of", "on", "or", "so", "that", "the", "this", "to", "what",
+    "when", "with", "you",
+  };
+
+  private static final String[] COMMON_WORDS = {
+    "java", "python", "error", "function", "class", "string", "array",
+    "file", "database", "query", "server", "object", "list", "value",
+    "method", "data", "code", "table", "page", "json", "xml", "regex",
+    "thread", "memory", "exception", "null", "loop", "variable", "android",
+    "image", "html", "css", "javascript", "sql", "linux", "windows",
+  };
+
+  // Words and tags that are more frequent in closed posts.
+  private static final String[] CLOSED_WORDS = {
+    "best", "favorite", "opinion", "recommend", "homework", "book",
+    "better", "should", "learn", "career",
+  };
+  private static final String[] CLOSED_TAGS = {
+    "subjective", "discussion", "career", "books", "polls",
+  };
+
+  private static final String[] CLOSE_REASONS = {
+    "not a real question", "not constructive", "off topic", "too localized",
+  };
+
+  private static final String[] COMMON_TAGS = {
+    "java", "c#", "javascript", "php", "python", "jquery", "android",
+    "c++", "html", "mysql", "sql", "ios", ".net", "css", "ruby-on-rails",
+    "objective-c", "iphone", "asp.net", "c", "regex", "json", "xml",
+  };
+
+  private static final String[] SYLLABLES = {
+    "ba", "co", "de", "fi", "ga", "ho", "ja", "ke", "li", "mo", "nu", "pa",
+    "qu", "ro", "si", "ta", "ve", "wi", "xo", "zy",
+  };
+
+  private static final int NUM_WORDS = 20000;
+  private static final int NUM_TAGS = 2000;
+  private static final double CLOSED_RATIO = 0.5;
+
+  private static final long DAY = 86400000L;
+  // 08/01/2008 and 10/09/2012, the dates of the first and the last posts.
+  private static final long FIRST_POST = 1217548800000L;
+  private static final long LAST_POST = 1349740800000L;
+
+  public PostGenerator(long seed) {
+    random = new Random(seed);
+    words = makeTerms(NUM_WORDS, STOP_WORDS, COMMON_WORDS);
+    tags = makeTerms(NUM_TAGS, COMMON_TAGS, new String[0]);
+    wordWeights = zipf(words.length);
+    tagWeights = zipf(tags.length);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /** Returns the next record, which may span multiple lines. */
+  public String next() {
+    boolean closed = random.nextDouble() < CLOSED_RATIO;
+    long created = FIRST_POST +
+        (long) (random.nextDouble() * (LAST_POST - FIRST_POST));
+    long ownerCreated = created - (long) (random.nextDouble() *
+        random.nextDouble() * 1500 * DAY);
+    int reputation = (int) Math.exp(random.nextGaussian() * 2 +
+                                    (closed ? 2 : 4));
+    int undeleted = (int) Math.exp(random.nextGaussian() * 1.5 +
+                                   (closed ? 0.5 : 1.5)) - 1;
+
+    StringBuilder record = new StringBuilder(1024);
+    record.append(nextPostId++).append(',');
+    record.append(dateFormat.format(new Date(created))).append(',');
+    record.append(1 + random.nextInt(2000000)).append(',');
+    record.append(dateFormat.format(new Date(ownerCreated))).append(',');
+    record.append(reputation).append(',');
+    record.append(undeleted).append(',');
+    appendQuoted(record, text(4 + random.nextInt(9), 1, closed));
+    record.append(',');
+    appendQuoted(record, text(20 + random.nextInt(180),
+                              1 + random.nextInt(4), closed));
+    record.append(',');
+
+    int numTags = 1 + random.nextInt(5);
+    String[] postTags = new String[numTags];
+    for (int i = 0; i < numTags; i++) {
+      postTags[i] = closed && random.nextDouble() < 0.2 ?
+          CLOSED_TAGS[random.nextInt(CLOSED_TAGS.length)] :
+          tags[draw(tagWeights)];
+    }
+    for (int i = 0; i < 5; i++) {
+      if (i < numTags) {
+        record.append(postTags[i]);
+      }
+      record.append(',');
+    }
+    if (closed) {
+      record.append(dateFormat.format(
+          new Date(created + (long) (random.nextDouble() * 30 * DAY))));
+    }
+    record.append(',');
+    // The close reason comes from the date, so that the posts are the same
+    // as before there were close reasons.
+    record.append(closed ?
+        CLOSE_REASONS[(int) (created / DAY % CLOSE_REASONS.length)] : "open");
+    return record.toString();
+  }
+
+  /** Writes the header and the posts to the writer, one record per line. */
+  public void write(Writer writer, int numPosts) throws IOException {
+    writer.write(HEADER);
+    writer.write('\n');
+    for (int i = 0; i < numPosts; i++) {
+      writer.write(next());
+      writer.write('\n');
+    }
+  }
+
+  /** Returns words in lines, with some punctuation, commas and quotes. */
+  private String text(int numWords, int numLines, boolean closed) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < numWords; i++) {
+      if (i > 0) {
+        text.append(i % (numWords / numLines + 1) == 0 ? "\n" : " ");
+      }
+      String word = closed && random.nextDouble() < 0.05 ?
+          CLOSED_WORDS[random.nextInt(CLOSED_WORDS.length)] :
+          words[draw(wordWeights)];
+      double r = random.nextDouble();
+      if (r < 0.02) {
+        text.append('"').append(word).append('"');
+      } else if (r < 0.05) {
+        text.append(word).append(',');
+      } else if (r < 0.07) {
+        text.append(word).append("()");
+      } else if (r < 0.1) {
+        text.append(Character.toUpperCase(word.charAt(0)))
+            .append(word, 1, word.length()).append('.');
+      } else {
+        text.append(word);
+      }
+    }
+    return text.toString();
+  }
+
+  private static void appendQuoted(StringBuilder record, String text) {
+    record.append('"').append(text.replace("\"", "\"\"")).append('"');
+  }
+
+  /** Returns the given terms, followed by made up ones up to the number. */
+  private static String[] makeTerms(int number, String[] first,
+                                    String[] second) {
+    String[] terms = Arrays.copyOf(first, number);
+    System.arraycopy(second, 0, terms, first.length, second.length);
+    for (int i = first.length + second.length; i < number; i++) {
+      StringBuilder term = new StringBuilder();
+      for (int n = i; n > 0 || term.length() == 0; n /= SYLLABLES.length) {
+        term.append(SYLLABLES[n % SYLLABLES.length]);
+      }
+      terms[i] = term.toString();
+    }
+    // Mix the stop words in with the most common words.
+    Random shuffle = new Random(number);
+    int common = first.length + second.length;
+    for (int i = common - 1; i > 0; i--) {
+      int j = shuffle.nextInt(i + 1);
+      String term = terms[i];
+      terms[i] = terms[j];
+      terms[j] = term;
+    }
+    return terms;
+  }
+
+  /** Returns the cumulative weights of a Zipf distribution over n ranks. */
+  private static double[] zipf(int n) {
+    double[] weights = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1.0 / (i + 1);
+      weights[i] = sum;
+    }
+    return weights;
+  }
+
+  private int draw(double[] weights) {
+    double r = random.nextDouble() * weights[weights.length - 1];
+    int i = Arrays.binarySearch(weights, r);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: PostGenerator <file> [<posts> [<seed>]]");
+      System.exit(1);
+    }
+    int numPosts = args.length >= 2 ? Integer.parseInt(args[1]) : 100000;
+    long seed = args.length >= 3 ? Long.parseLong(args[2]) : 0;
+    try (
+      Writer writer =
+          new BufferedWriter(
+              new OutputStreamWriter(
+                  new FileOutputStream(args[0]), StandardCharsets.UTF_8));
+    ) {
+      new PostGenerator(seed).write(writer, numPosts);
+    }
+  }
+
+  private final Random random;
+  private final String[] words;
+  private final String[] tags;
+  private final double[] wordWeights;
+  private final double[] tagWeights;
+  private final SimpleDateFormat dateFormat =
+      new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+  private long nextPostId = 4000000;
+}
@@ -0,0 +1,71 @@
+package org.xukmin.crystal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link PostMapper#map} on one training record at a time, against
+ * a stub context that drops the output, with and without the in-mapper
+ * aggregation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostMapperBenchmark {
+  @Param({"false", "true"})
+  public boolean inMapper;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkData data = BenchmarkData.get();
+    records = data.getTrainRecords();
+    Configuration conf = new Configuration(data.getConf());
+    conf.setBoolean(PostMapper.IN_MAPPER, inMapper);
+    context = StubContexts.mapContext(conf, sink);
+    mapper.setup(context);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    mapper.cleanup(context);
+  }
+
+  @Benchmark
+  public long map() throws Exception {
+    if (next == records.size()) {
+      next = 0;
+    }
+    post.set(records.get(next));
+    key.set(next++);
+    mapper.map(key, post, context);
+    return sink.getHash();
+  }
+
+  private List<Text> records;
+  private int next;
+  private PostMapper mapper = new PostMapper();
+  private StubContexts.Sink<FeatureKey, StatusCounts> sink =
+      new StubContexts.Sink<FeatureKey, StatusCounts>();
+  private Mapper<LongWritable, Post, FeatureKey, StatusCounts>.Context context;
+  private LongWritable key = new LongWritable();
+  private Post post = new Post();
+}
@@ -0,0 +1,91 @@
+package org.xukmin.crystal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link PostReducer#reduce} on one key at a time, with the values
+ * the map output of the first training posts would give it without a
+ * combiner, against a stub context that drops the output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostReducerBenchmark {
+  // Number of training posts whose map output is reduced.
+  private static final int NUM_POSTS = 2000;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkData data = BenchmarkData.get();
+    final Map<FeatureKey, List<StatusCounts>> groups =
+        new HashMap<FeatureKey, List<StatusCounts>>();
+    FeatureExtractor extractor = new FeatureExtractor(
+        StopWords.load(FileSystem.get(data.getConf())), new Vocabulary());
+    FeatureExtractor.Output output = new FeatureExtractor.Output() {
+      @Override
+      public void write(FeatureKey key, int status, long count) {
+        List<StatusCounts> values = groups.get(key);
+        if (values == null) {
+          values = new ArrayList<StatusCounts>();
+          groups.put(new FeatureKey(key), values);
+        }
+        StatusCounts value = new StatusCounts();
+        value.set(status, count);
+        values.add(value);
+      }
+    };
+    List<Text> records = data.getTrainRecords();
+    Post post = new Post();
+    for (int i = 0; i < Math.min(NUM_POSTS, records.size()); i++) {
+      post.set(records.get(i));
+      extractor.extract(post, output);
+    }
+
+    for (Map.Entry<FeatureKey, List<StatusCounts>> entry : groups.entrySet()) {
+      keys.add(entry.getKey());
+      values.add(entry.getValue());
+    }
+    context = StubContexts.reduceContext(data.getConf(), FeatureKey.class,
+                                         StatusCounts.class, sink);
+    reducer.setup(context);
+  }
+
+  @Benchmark
+  public long reduce() throws Exception {
+    if (next == keys.size()) {
+      next = 0;
+    }
+    reducer.reduce(keys.get(next), values.get(next), context);
+    next++;
+    return sink.getHash();
+  }
+
+  private List<FeatureKey> keys = new ArrayList<FeatureKey>();
+  private List<List<StatusCounts>> values = new ArrayList<List<StatusCounts>>();
+  private int next;
+  private PostReducer reducer = new PostReducer();
+  private StubContexts.Sink<Text, StatusCounts> sink =
+      new StubContexts.Sink<Text, StatusCounts>();
+  private Reducer<FeatureKey, StatusCounts, Text, StatusCounts>.Context
+      context;
+}
@@ -0,0 +1,60 @@
+package org.xukmin.crystal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link PostPredictor#predict} on one test record at a time,
+ * including parsing the record. Run with the gc profiler, as bench.sh does,
+ * for the allocation rate per prediction. The number of states is 2 (open
+ * and closed) or 5 (open and the close reasons).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictBenchmark {
+  @Param({"2", "5"})
+  public int numStates;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkData data = BenchmarkData.get();
+    records = data.getTestRecords();
+    Configuration conf = new Configuration(data.getConf());
+    if (numStates == 5) {
+      conf.set(PostPredictor.STATES, "open,not a real question," +
+               "not constructive,off topic,too localized");
+    }
+    predictor = new PostPredictor(conf, data.getModelFile());
+  }
+
+  @Benchmark
+  public String predict() {
+    if (next == records.size()) {
+      next = 0;
+    }
+    post.set(records.get(next++));
+    return predictor.predict(post);
+  }
+
+  private List<Text> records;
+  private int next;
+  private PostPredictor predictor;
+  private Post post = new Post();
+}
@@ -0,0 +1,134 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * This class makes the contexts to call a Mapper or a Reducer directly,
+ * outside of a task. What they write goes to a {@link Sink}, and the counters
+ * are kept in memory.
+ */
+public class StubContexts {
+  /** Receives the output of a stub context, without storing it. */
+  public static class Sink<K, V> extends RecordWriter<K, V> {
+    @Override
+    public void write(K key, V value) {
+      records++;
+      // Touch the key and value, as serializing them would.
+      hash += key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) {
+    }
+
+    /** Returns a value that depends on everything written, for Blackhole. */
+    public long getHash() {
+      return hash;
+    }
+
+    public long getRecords() {
+      return records;
+    }
+
+    private long records;
+    private long hash;
+  }
+
+  public static <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context mapContext(
+      Configuration conf, Sink<KO, VO> sink) {
+    return new WrappedMapper<KI, VI, KO, VO>().getMapContext(
+        new MapContextImpl<KI, VI, KO, VO>(conf, new TaskAttemptID(), null,
+                                           sink, null, new Reporter(), null));
+  }
+
+  public static <KI extends WritableComparable<KI>, VI, KO, VO>
+      Reducer<KI, VI, KO, VO>.Context reduceContext(
+          Configuration conf, Class<KI> keyClass, Class<VI> valueClass,
+          Sink<KO, VO> sink) throws IOException, InterruptedException {
+    Reporter reporter = new Reporter();
+    @SuppressWarnings("unchecked")
+    RawComparator<KI> comparator =
+        (RawComparator<KI>) WritableComparator.get(keyClass);
+    return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(
+        new ReduceContextImpl<KI, VI, KO, VO>(conf, new TaskAttemptID(),
+            new EmptyIterator(), reporter.getCounter("input", "keys"),
+            reporter.getCounter("input", "values"), sink, null, reporter,
+            comparator, keyClass, valueClass));
+  }
+
+  private static class Reporter extends StatusReporter {
+    @Override
+    public Counter getCounter(Enum<?> name) {
+      return counters.findCounter(name);
+    }
+
+    @Override
+    public Counter getCounter(String group, String name) {
+      return counters.findCounter(group, name);
+    }
+
+    @Override
+    public void progress() {
+    }
+
+    @Override
+    public float getProgress() {
+      return 0;
+    }
+
+    @Override
+    public void setStatus(String status) {
+    }
+
+    private final Counters counters = new Counters();
+  }
+
+  /**
+   * The input of the stub reduce contexts, which is never read: the values
+   * are given to Reducer.reduce() directly.
+   */
+  private static class EmptyIterator implements RawKeyValueIterator {
+    @Override
+    public DataInputBuffer getKey() {
+      return null;
+    }
+
+    @Override
+    public DataInputBuffer getValue() {
+      return null;
+    }
+
+    @Override
+    public boolean next() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Progress getProgress() {
+      return new Progress();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.xukmin.crystal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures tokenizing the title and body of a post and filtering out the stop
+ * words, with the post already parsed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkData data = BenchmarkData.get();
+    List<Text> records = data.getTestRecords();
+    posts = new Post[records.size()];
+    for (int i = 0; i < posts.length; i++) {
+      posts[i] = new Post();
+      posts[i].set(records.get(i));
+    }
+    tokenizer = new Tokenizer(StopWords.load(FileSystem.get(data.getConf())));
+  }
+
+  @Benchmark
+  public int tokenize() {
+    if (next == posts.length) {
+      next = 0;
+    }
+    Post post = posts[next++];
+    int numWords = 0;
+    post.tokenizeTitle(tokenizer);
+    while (tokenizer.next()) {
+      if (!tokenizer.isStopWord()) {
+        numWords++;
+      }
+    }
+    post.tokenizeBody(tokenizer);
+    while (tokenizer.next()) {
+      if (!tokenizer.isStopWord()) {
+        numWords++;
+      }
+    }
+    return numWords;
+  }
+
+  private Post[] posts;
+  private int next;
+  private Tokenizer tokenizer;
+}
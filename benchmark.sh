@@ -1,9 +1,31 @@
 #!/bin/bash
-./build.sh || exit
+#
+# Usage: ./benchmark.sh [-D <option>=<value>...] [<training data>]
+#
+# Builds and runs org.xukmin.crystal.JobBenchmark, which runs PostMapReduce
+# with the local job runner over a matrix of settings, e.g.
+#
+#     ./benchmark.sh -D crystal.benchmark.reduces=1,2,4 \
+#         -D crystal.benchmark.combiner=true,false
+#
+# Each trial appends a row to benchmark.csv, labeled with the current commit,
+# so that the results of several commits can be compared. Without training
+# data, the posts are generated by PostGenerator.
 
-rm -f benchmark.txt
-for ((i = 150; i >= 1; i--)); do
-  echo -n "${i} " >> benchmark.txt
-  hadoop jar bin/crystal.jar org.xukmin.crystal.PostMapReduce \
-      -D mapreduce.job.reduces=${i} >> benchmark.txt
+mkdir -p bin/bench &&
+javac \
+    -classpath "$(hadoop classpath)" \
+    -sourcepath src:bench \
+    -d bin/bench \
+    bench/org/xukmin/crystal/JobBenchmark.java || exit
+
+OPTIONS=()
+while [[ "$1" == "-D" ]]; do
+  OPTIONS+=("$1" "$2")
+  shift 2
 done
+
+java -classpath "bin/bench:$(hadoop classpath)" \
+    org.xukmin.crystal.JobBenchmark \
+    -D crystal.benchmark.label="$(git rev-parse --short HEAD 2>/dev/null)" \
+    "${OPTIONS[@]}" benchmark.csv "$@"
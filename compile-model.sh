@@ -0,0 +1,4 @@
+#!/bin/bash
+./build.sh &&
+java -cp bin/crystal.jar:$(hadoop classpath) org.xukmin.crystal.ModelCompiler \
+    output model.bin
@@ -1,10 +1,13 @@
 #!/usr/bin/env gnuplot
 #
-# Gnuplot script.
+# Gnuplot script. Plots the wall time of each trial in benchmark.csv, written
+# by benchmark.sh, against the number of reducers.
 
 set terminal png
 set output "benchmark.png"
+set datafile separator ","
+set key autotitle columnhead
 set xlabel "Number of Reducers"
-set ylabel "Execution Time (ms)"
-plot "benchmark.txt" with linespoints title "MapReduce Execution Time"
-
+set ylabel "Wall Time (ms)"
+plot "benchmark.csv" using "reduces":"wall_ms" with points \
+    title "PostMapReduce Wall Time"
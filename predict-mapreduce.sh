@@ -0,0 +1,4 @@
+#!/bin/bash
+./build.sh &&
+hadoop jar bin/crystal.jar org.xukmin.crystal.PostPredict \
+    output train_October_9_2012_clean_1.csv predictions
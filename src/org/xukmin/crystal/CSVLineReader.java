@@ -0,0 +1,162 @@
+package org.xukmin.crystal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.io.Text;
+
+/**
+ * This class reads the records of a CSV file, which may span multiple lines,
+ * as single lines, the same as {@link CSVPreprocessor} converts them: quotes
+ * are removed, and newlines and commas in quotes are replaced by spaces.
+ *
+ * It works on the bytes of the file, which is expected to be UTF-8, and
+ * reuses its buffer and the Text of the caller, like Hadoop's LineReader.
+ */
+public class CSVLineReader implements Closeable {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private static final byte LF = '\n';
+  private static final byte CR = '\r';
+  private static final byte SEPARATOR = ',';
+  private static final byte QUOTE = '"';
+  private static final byte[] SPACE = {' '};
+
+  // A record starts with the PostId and PostCreationDate columns, e.g.
+  // "4000000,09/20/2008 12:50:54,", where each '9' stands for any number of
+  // digits. It is long enough to cover any such prefix seen in practice.
+  private static final byte[] RECORD_START =
+      "9,9/9/9 9:9:9,".getBytes(StandardCharsets.US_ASCII);
+  private static final int MAX_RECORD_START_LENGTH = 64;
+
+  public CSVLineReader(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public CSVLineReader(InputStream in, int bufferSize) {
+    this.in = in;
+    this.buffer = new byte[Math.max(bufferSize, MAX_RECORD_START_LENGTH)];
+  }
+
+  /**
+   * Reads the next record into the Text, without the line terminator.
+   *
+   * @return the number of bytes consumed, or 0 at the end of the stream.
+   */
+  public int readLine(Text record) throws IOException {
+    record.clear();
+    int consumed = 0;
+    boolean inQuote = false;
+    while (bufferPos < bufferLength || fill() > 0) {
+      // Copy the runs of bytes between the special characters at once.
+      int runStart = bufferPos;
+      while (bufferPos < bufferLength) {
+        byte b = buffer[bufferPos];
+        if (b != QUOTE && b != LF && b != CR && b != SEPARATOR) {
+          bufferPos++;
+          continue;
+        }
+        if (b == SEPARATOR && !inQuote) {
+          bufferPos++;
+          continue;
+        }
+        record.append(buffer, runStart, bufferPos - runStart);
+        bufferPos++;
+        if (b == QUOTE) {
+          inQuote = !inQuote;
+        } else if (inQuote) {
+          record.append(SPACE, 0, SPACE.length);
+        } else if (b == LF) {
+          return consumed + bufferPos - runStart;
+        }
+        // A CR out of quotes is dropped.
+        consumed += bufferPos - runStart;
+        runStart = bufferPos;
+      }
+      record.append(buffer, runStart, bufferPos - runStart);
+      consumed += bufferPos - runStart;
+    }
+    return consumed;
+  }
+
+  /**
+   * Skips to the start of the next record after the current position, which
+   * is the start of a line beginning with a PostId and a PostCreationDate.
+   * This finds the records from the middle of a file, where it is unknown
+   * whether the position is in quotes.
+   *
+   * @return the number of bytes skipped.
+   */
+  public long skipToRecord() throws IOException {
+    long skipped = 0;
+    while (bufferPos < bufferLength || fill() > 0) {
+      byte b = buffer[bufferPos++];
+      skipped++;
+      if (b == LF) {
+        if (bufferLength - bufferPos < MAX_RECORD_START_LENGTH) {
+          fill();
+        }
+        if (isRecordStart()) {
+          break;
+        }
+      }
+    }
+    return skipped;
+  }
+
+  private boolean isRecordStart() {
+    int i = bufferPos;
+    for (byte expected : RECORD_START) {
+      if (expected == '9') {
+        int digitsStart = i;
+        while (i < bufferLength && buffer[i] >= '0' && buffer[i] <= '9') {
+          i++;
+        }
+        if (i == digitsStart) {
+          return false;
+        }
+      } else if (i < bufferLength && buffer[i] == expected) {
+        i++;
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves the remaining bytes to the front of the buffer, and reads as many
+   * more as are available.
+   *
+   * @return the number of bytes read, or 0 at the end of the stream.
+   */
+  private int fill() throws IOException {
+    int remaining = bufferLength - bufferPos;
+    System.arraycopy(buffer, bufferPos, buffer, 0, remaining);
+    bufferPos = 0;
+    bufferLength = remaining;
+    int total = 0;
+    int n;
+    while (bufferLength < buffer.length &&
+           (n = in.read(buffer, bufferLength, buffer.length - bufferLength))
+               > 0) {
+      bufferLength += n;
+      total += n;
+      if (bufferLength - bufferPos >= MAX_RECORD_START_LENGTH) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private final InputStream in;
+  private final byte[] buffer;
+  private int bufferPos;
+  private int bufferLength;
+}
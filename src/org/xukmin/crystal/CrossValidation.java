@@ -0,0 +1,252 @@
+package org.xukmin.crystal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.reduce.LongSumReducer;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class runs a k-fold cross validation of the Naive Bayes model on the
+ * training data, in two passes over the data however many folds there are.
+ *
+ * Each post is assigned to one of the k folds by the hash of its PostId, so
+ * every run assigns it to the same fold. The first job trains all the k
+ * models at once: {@link PostMapper} tags the counts of each post with its
+ * fold, and {@link CrossValidationReducer} gets all the folds of a feature
+ * together, and writes the total minus fold i to the model of fold i,
+ * "<output>/fold-<i>", which is the model trained on all the other folds. The
+ * second job predicts each post with the model of its fold in
+ * {@link CrossValidationMapper}, and adds up the predictions of each fold in
+ * "<output>/evaluation".
+ *
+ * It prints the accuracy and F-measure of each fold, and of all the folds
+ * together. Each mapper of the second job loads the k models, so they must
+ * all fit in its memory.
+ *
+ * Usage: CrossValidation <training data> <output>
+ */
+public class CrossValidation extends Configured implements Tool {
+  /** Number of folds. */
+  public static final String FOLDS = "crystal.cv.folds";
+
+  /** Directory of the models of the folds, for CrossValidationMapper. */
+  static final String MODELS = "crystal.cv.models";
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new CrossValidation(), args);
+    System.exit(res);
+  }
+
+  /**
+   * Returns the hasher that assigns the posts to the folds, or null if there
+   * is no cross validation.
+   */
+  static FeatureHasher getFolds(Configuration conf) {
+    int numFolds = conf.getInt(FOLDS, 0);
+    return numFolds > 1 ? new FeatureHasher(numFolds) : null;
+  }
+
+  static int getFold(FeatureHasher folds, Post post) {
+    return folds.getBucket(post.getPostId());
+  }
+
+  static String getFoldName(int fold) {
+    return "fold-" + fold;
+  }
+
+  @Override
+  public int run(String[] args) throws IOException, ClassNotFoundException,
+      InterruptedException {
+    if (args.length < 2) {
+      System.err.println("Usage: CrossValidation <training data> <output>");
+      return 1;
+    }
+    Configuration conf = getConf();
+    if (conf.get(FOLDS) == null) {
+      conf.setInt(FOLDS, 5);
+    }
+    int numFolds = conf.getInt(FOLDS, 0);
+    if (numFolds < 2 || numFolds > 256) {
+      System.err.printf("Invalid %s: %d\n", FOLDS, numFolds);
+      return 1;
+    }
+    Path inputPath = new Path(args[0]);
+    FileSystem fs = FileSystem.get(conf);
+    Path outputPath = fs.makeQualified(new Path(args[1]));
+    if (fs.exists(outputPath)) {
+      fs.delete(outputPath, true /* recursive */);
+    }
+
+    long startTime = System.currentTimeMillis();
+    boolean succeeded = train(fs, inputPath, outputPath, numFolds);
+    long trainTime = System.currentTimeMillis() - startTime;
+    Path evaluationPath = new Path(outputPath, "evaluation");
+    if (succeeded) {
+      startTime = System.currentTimeMillis();
+      succeeded = evaluate(inputPath, outputPath, evaluationPath);
+    }
+    long scoreTime = System.currentTimeMillis() - startTime;
+
+    if (succeeded) {
+      System.err.println("SUCCESS!");
+    } else {
+      System.err.println("FAIL!");
+      return 1;
+    }
+
+    System.out.printf("Train Time (ms) = %d\n", trainTime);
+    System.out.printf("Score Time (ms) = %d\n", scoreTime);
+    printEvaluations(fs, evaluationPath, numFolds);
+    return 0;
+  }
+
+  /** Trains the models of all the folds in one job. */
+  private boolean train(FileSystem fs, Path inputPath, Path outputPath,
+                        int numFolds)
+      throws IOException, ClassNotFoundException, InterruptedException {
+    Job job = Job.getInstance(getConf(), "CrossValidation");
+    job.setJarByClass(CrossValidation.class);
+    job.setInputFormatClass(PostInputFormat.class);
+    // The models are written by MultipleOutputs, so no empty part files.
+    LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+    FileInputFormat.addInputPath(job, inputPath);
+    FileOutputFormat.setOutputPath(job, outputPath);
+    job.setMapperClass(PostMapper.class);
+    if (getConf().getBoolean(PostMapReduce.COMBINER, true)) {
+      job.setCombinerClass(PostCombiner.class);
+    }
+    // The hash partitioner sends all the folds of a feature to the same
+    // reducer, which the SkewPartitioner does not for the hot keys.
+    job.setGroupingComparatorClass(FeatureKey.FeatureComparator.class);
+    job.setReducerClass(CrossValidationReducer.class);
+    job.setMapOutputKeyClass(FeatureKey.class);
+    job.setMapOutputValueClass(StatusCounts.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(StatusCounts.class);
+
+    FeatureHasher hasher = FeatureHasher.get(getConf());
+    int numBuckets = hasher == null ? 0 : hasher.getNumBuckets();
+    NGrams ngrams = NGrams.get(getConf());
+    int ngramSize = ngrams == null ? 1 : ngrams.getSize();
+    Path vocabularyFile = null;
+    int vocabularySize = getConf().getInt(Vocabulary.SIZE, 65536);
+    if (vocabularySize > 0 && hasher == null) {
+      // The vocabulary only maps the terms to ids, so it does not matter
+      // that it is sampled from all the folds.
+      Vocabulary vocabulary = Vocabulary.build(
+          FeatureSampler.sample(job, new Vocabulary()), vocabularySize);
+      vocabularyFile = outputPath.suffix(".vocabulary");
+      vocabulary.write(job.getConfiguration(), vocabularyFile);
+      System.out.printf("Vocabulary Size = %d\n", vocabulary.size());
+    }
+    boolean succeeded = job.waitForCompletion(true);
+    if (vocabularyFile != null) {
+      fs.delete(vocabularyFile, false);
+    }
+    if (!succeeded) {
+      return false;
+    }
+
+    Counters counters = job.getCounters();
+    for (int i = 0; i < numFolds; i++) {
+      PostMapReduce.writeCounters(fs, new Path(outputPath, getFoldName(i)),
+          counters.findCounter(CrossValidationReducer.COUNTERS,
+              CrossValidationReducer.getCounterName(i, true)).getValue(),
+          counters.findCounter(CrossValidationReducer.COUNTERS,
+              CrossValidationReducer.getCounterName(i, false)).getValue(),
+          numBuckets, ngramSize);
+    }
+    return true;
+  }
+
+  /** Predicts each post with the model of its fold in one job. */
+  private boolean evaluate(Path inputPath, Path modelsPath, Path outputPath)
+      throws IOException, ClassNotFoundException, InterruptedException {
+    Job job = Job.getInstance(getConf(), "CrossValidation Evaluation");
+    job.setJarByClass(CrossValidation.class);
+    job.getConfiguration().set(MODELS, modelsPath.toString());
+    job.setInputFormatClass(PostInputFormat.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+    FileInputFormat.addInputPath(job, inputPath);
+    FileOutputFormat.setOutputPath(job, outputPath);
+    job.setMapperClass(CrossValidationMapper.class);
+    job.setCombinerClass(LongSumReducer.class);
+    job.setReducerClass(LongSumReducer.class);
+    job.setNumReduceTasks(1);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(LongWritable.class);
+    return job.waitForCompletion(true);
+  }
+
+  /**
+   * Reads the number of posts of each fold for each actual / predicted state,
+   * and prints the evaluation of each fold and of all of them.
+   */
+  private void printEvaluations(FileSystem fs, Path evaluationPath,
+                                int numFolds) throws IOException {
+    String[] states =
+        getConf().getTrimmedStrings(PostPredictor.STATES, "open", "closed");
+    Evaluation[] evaluations = new Evaluation[numFolds];
+    for (int i = 0; i < numFolds; i++) {
+      evaluations[i] = new Evaluation(states);
+    }
+    for (FileStatus file :
+         fs.globStatus(new Path(evaluationPath, "part-r-*"))) {
+      try (
+        BufferedReader reader =
+            new BufferedReader(
+                new InputStreamReader(fs.open(file.getPath())));
+      ) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t");
+          Evaluation evaluation = evaluations[Integer.parseInt(fields[0])];
+          if (fields[1].equals(CrossValidationMapper.SKIPPED)) {
+            evaluation.skip(Long.parseLong(fields[2]));
+            continue;
+          }
+          evaluation.add(evaluation.getState(fields[1]),
+                         evaluation.getState(fields[2]),
+                         Long.parseLong(fields[3]));
+        }
+      }
+    }
+
+    System.out.printf("\n%-10s %10s %10s %10s\n",
+                      "Fold", "Posts", "Accuracy", "F-measure");
+    Evaluation all = new Evaluation(states);
+    double sum = 0;
+    double sumOfSquares = 0;
+    for (int i = 0; i < numFolds; i++) {
+      Evaluation evaluation = evaluations[i];
+      System.out.printf("%-10d %10d %9.3f%% %9.3f%%\n", i,
+                        evaluation.getNumPosts(),
+                        100.0 * evaluation.getAccuracy(),
+                        100.0 * evaluation.getFMeasure());
+      all.merge(evaluation);
+      sum += evaluation.getAccuracy();
+      sumOfSquares += evaluation.getAccuracy() * evaluation.getAccuracy();
+    }
+    double mean = sum / numFolds;
+    double deviation =
+        Math.sqrt(Math.max(sumOfSquares / numFolds - mean * mean, 0));
+    System.out.printf("Mean Accuracy = %f%% (+/- %f%%)\n\n",
+                      100.0 * mean, 100.0 * deviation);
+    all.print(System.out);
+  }
+}
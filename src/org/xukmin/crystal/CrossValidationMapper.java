@@ -0,0 +1,87 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+/**
+ * This class predicts each post in a split of the training data with the
+ * model of its fold, which was trained on all the other folds, so every post
+ * is held out exactly once.
+ *
+ * At the end of the task, it writes the number of posts of each fold for
+ * each actual / predicted state, as "<fold>\t<actual>\t<predicted>", to the
+ * reducer, which adds them up, and the number of posts skipped as their
+ * status is not a state as "<fold>\t" + {@link #SKIPPED}.
+ */
+public class CrossValidationMapper
+    extends Mapper<LongWritable, Post, Text, LongWritable> {
+  /** The actual state of the posts that are skipped. */
+  public static final String SKIPPED = "skipped";
+
+  private FeatureHasher folds;
+  private PostPredictor[] predictors;
+  private Evaluation[] evaluations;
+
+  @Override
+  protected void setup(Context context)
+      throws IOException, InterruptedException {
+    super.setup(context);
+    Configuration conf = context.getConfiguration();
+    folds = CrossValidation.getFolds(conf);
+    Path models = new Path(conf.get(CrossValidation.MODELS));
+    predictors = new PostPredictor[folds.getNumBuckets()];
+    evaluations = new Evaluation[folds.getNumBuckets()];
+    for (int i = 0; i < predictors.length; i++) {
+      predictors[i] = new PostPredictor(
+          conf, new Path(models, CrossValidation.getFoldName(i)).toString());
+      evaluations[i] = new Evaluation(predictors[i].getStates());
+    }
+  }
+
+  @Override
+  public void map(LongWritable key, Post post, Context context)
+      throws IOException, InterruptedException {
+    if (post.isHeader()) {
+      return;
+    }
+    int fold = CrossValidation.getFold(folds, post);
+    Evaluation evaluation = evaluations[fold];
+    int actual = evaluation.getState(post.getStatus());
+    if (actual == -1) {
+      evaluation.skip();
+      return;
+    }
+    evaluation.add(actual, predictors[fold].predictState(post));
+  }
+
+  @Override
+  protected void cleanup(Context context)
+      throws IOException, InterruptedException {
+    Text cell = new Text();
+    LongWritable count = new LongWritable();
+    for (int fold = 0; fold < evaluations.length; fold++) {
+      String[] states = evaluations[fold].getStates();
+      for (int i = 0; i < states.length; i++) {
+        for (int j = 0; j < states.length; j++) {
+          long n = evaluations[fold].getCount(i, j);
+          if (n > 0) {
+            cell.set(fold + "\t" + states[i] + "\t" + states[j]);
+            count.set(n);
+            context.write(cell, count);
+          }
+        }
+      }
+      if (evaluations[fold].getNumSkipped() > 0) {
+        cell.set(fold + "\t" + SKIPPED);
+        count.set(evaluations[fold].getNumSkipped());
+        context.write(cell, count);
+      }
+      predictors[fold].close();
+    }
+    super.cleanup(context);
+  }
+}
@@ -0,0 +1,114 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+
+/**
+ * This class builds the models of all the folds of {@link CrossValidation}
+ * at once. It gets all the folds of a feature in one call, grouped by
+ * {@link FeatureKey.FeatureComparator}, adds up the counts of each fold, and
+ * writes the counts of all the posts but the fold to the model of the fold,
+ * "fold-<i>/part-r-*", which is then the same row as {@link PostReducer}
+ * writes when trained on the other folds only.
+ *
+ * The unique words and tags of the model of each fold are counted in the
+ * {@link #COUNTERS} group, e.g. FOLD_0_UNIQUE_WORDS.
+ */
+public class CrossValidationReducer
+    extends Reducer<FeatureKey, StatusCounts, Text, StatusCounts> {
+  /** Group of the counters of the unique words and tags of the folds. */
+  public static final String COUNTERS = "CrossValidation";
+
+  private Vocabulary vocabulary;
+  private long minNGramCount;
+  private int numFolds;
+  // Counts of the feature in each fold, and in all of them.
+  private long[][] foldCounts;
+  private long[] totalCounts = new long[StatusCounts.COLUMNS];
+  private long[] counts = new long[StatusCounts.COLUMNS];
+  private String[] outputPaths;
+  private Counter[] uniqueWordsCounters;
+  private Counter[] uniqueTagsCounters;
+  private MultipleOutputs<Text, StatusCounts> outputs;
+  private Text outputKey = new Text();
+  private StatusCounts outputValue = new StatusCounts();
+
+  @Override
+  protected void setup(Context context)
+      throws IOException, InterruptedException {
+    super.setup(context);
+    Configuration conf = context.getConfiguration();
+    vocabulary = Vocabulary.load(conf);
+    if (NGrams.get(conf) != null) {
+      minNGramCount = conf.getLong(NGrams.MIN_COUNT, 2);
+    }
+    numFolds = CrossValidation.getFolds(conf).getNumBuckets();
+    foldCounts = new long[numFolds][StatusCounts.COLUMNS];
+    outputPaths = new String[numFolds];
+    uniqueWordsCounters = new Counter[numFolds];
+    uniqueTagsCounters = new Counter[numFolds];
+    for (int i = 0; i < numFolds; i++) {
+      outputPaths[i] = CrossValidation.getFoldName(i) + "/part";
+      uniqueWordsCounters[i] =
+          context.getCounter(COUNTERS, getCounterName(i, true));
+      uniqueTagsCounters[i] =
+          context.getCounter(COUNTERS, getCounterName(i, false));
+    }
+    outputs = new MultipleOutputs<Text, StatusCounts>(context);
+  }
+
+  /** Returns the name of the counter of the unique words or tags of a fold. */
+  static String getCounterName(int fold, boolean words) {
+    return "FOLD_" + fold + (words ? "_UNIQUE_WORDS" : "_UNIQUE_TAGS");
+  }
+
+  @Override
+  public void reduce(FeatureKey key, Iterable<StatusCounts> values,
+                     Context context)
+      throws IOException, InterruptedException {
+    for (long[] row : foldCounts) {
+      Arrays.fill(row, 0);
+    }
+    Arrays.fill(totalCounts, 0);
+    // The key changes to the key of each value as the values are read.
+    for (StatusCounts value : values) {
+      long[] row = foldCounts[key.getFold()];
+      for (int c = 0; c < StatusCounts.COLUMNS; c++) {
+        row[c] += value.get(c);
+        totalCounts[c] += value.get(c);
+      }
+    }
+
+    key.toText(outputKey, vocabulary);
+    boolean ngram =
+        key.getType() == FeatureKey.Type.WORD && PostReducer.isNGram(outputKey);
+    for (int i = 0; i < numFolds; i++) {
+      for (int c = 0; c < StatusCounts.COLUMNS; c++) {
+        counts[c] = totalCounts[c] - foldCounts[i][c];
+      }
+      if (counts[StatusCounts.ALL] == 0 ||
+          (ngram && counts[StatusCounts.ALL] < minNGramCount)) {
+        continue;
+      }
+      outputValue.set(counts);
+      outputs.write(outputKey, outputValue, outputPaths[i]);
+      if (key.getType().isWord()) {
+        uniqueWordsCounters[i].increment(1);
+      } else if (key.getType().isTag()) {
+        uniqueTagsCounters[i].increment(1);
+      }
+    }
+  }
+
+  @Override
+  protected void cleanup(Context context)
+      throws IOException, InterruptedException {
+    outputs.close();
+    super.cleanup(context);
+  }
+}
@@ -0,0 +1,260 @@
+package org.xukmin.crystal;
+
+import java.io.PrintStream;
+
+/**
+ * This class collects the statistics of the predictions, with "closed" as the
+ * positive class, and computes precision, recall, F-measure and accuracy.
+ *
+ * The predictions are counted in a confusion matrix of the states of the
+ * predictor, "open" and "closed" by default. With the close reasons as
+ * states, "closed" is any state but "open", and it also computes the
+ * precision, recall and F-measure of each state, and the accuracy over the
+ * states.
+ *
+ * Posts whose status is none of the states, e.g. a close reason that is not
+ * one of the states when there is no "closed" state, cannot be scored, so
+ * they are counted as skipped by {@link #skip()} instead of failing the run.
+ *
+ * It is not thread-safe. Each thread keeps its own statistics, and they are
+ * merged when all the predictions are done.
+ */
+public class Evaluation {
+  public Evaluation() {
+    this(new String[]{"open", "closed"});
+  }
+
+  public Evaluation(String[] states) {
+    this.states = states.clone();
+    this.counts = new long[states.length][states.length];
+    openState = indexOf("open");
+    closedState = indexOf("closed");
+  }
+
+  public String[] getStates() {
+    return states.clone();
+  }
+
+  /**
+   * Returns the state of the status of a post: the status itself, or
+   * "closed" for a close reason that is not a state, or -1 if neither is a
+   * state, for a post to be skipped.
+   */
+  public int getState(String status) {
+    int state = indexOf(status);
+    if (state == -1 && !status.equals("open")) {
+      state = closedState;
+    }
+    return state;
+  }
+
+  /** Counts a post that is skipped as its status is not a state. */
+  public void skip() {
+    skip(1);
+  }
+
+  /** Counts a number of posts skipped as their status is not a state. */
+  public void skip(long count) {
+    numSkipped += count;
+  }
+
+  /** Returns the number of posts skipped as their status is not a state. */
+  public long getNumSkipped() {
+    return numSkipped;
+  }
+
+  private int indexOf(String status) {
+    for (int i = 0; i < states.length; i++) {
+      if (states[i].equals(status)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public void add(int actual, int predicted) {
+    counts[actual][predicted]++;
+  }
+
+  /** Adds a number of posts with the same actual and predicted state. */
+  public void add(int actual, int predicted, long count) {
+    counts[actual][predicted] += count;
+  }
+
+  public void add(boolean actualClosed, boolean predictClosed) {
+    add(actualClosed, predictClosed, 1);
+  }
+
+  /**
+   * Adds a number of posts with the same actual and predicted status. The
+   * states must be "open" and "closed".
+   */
+  public void add(boolean actualClosed, boolean predictClosed, long count) {
+    if (openState == -1 || closedState == -1) {
+      throw new IllegalStateException("The states are not open and closed.");
+    }
+    counts[actualClosed ? closedState : openState]
+          [predictClosed ? closedState : openState] += count;
+  }
+
+  public void merge(Evaluation other) {
+    for (int i = 0; i < states.length; i++) {
+      for (int j = 0; j < states.length; j++) {
+        counts[i][j] += other.counts[i][j];
+      }
+    }
+    numSkipped += other.numSkipped;
+  }
+
+  /** Returns the number of posts with the actual and predicted state. */
+  public long getCount(int actual, int predicted) {
+    return counts[actual][predicted];
+  }
+
+  /** Returns the number of posts with the actual and predicted status. */
+  public long getCount(boolean actualClosed, boolean predictClosed) {
+    long count = 0;
+    for (int i = 0; i < states.length; i++) {
+      for (int j = 0; j < states.length; j++) {
+        if ((i != openState) == actualClosed &&
+            (j != openState) == predictClosed) {
+          count += counts[i][j];
+        }
+      }
+    }
+    return count;
+  }
+
+  public long getNumPosts() {
+    long all = 0;
+    for (long[] row : counts) {
+      for (long count : row) {
+        all += count;
+      }
+    }
+    return all;
+  }
+
+  public double getPrecision() {
+    return getCount(true, true) * 1.0 /
+        (getCount(true, true) + getCount(false, true));
+  }
+
+  public double getRecall() {
+    return getCount(true, true) * 1.0 /
+        (getCount(true, true) + getCount(true, false));
+  }
+
+  public double getFMeasure() {
+    return fMeasure(1, getPrecision(), getRecall());
+  }
+
+  /** Returns the accuracy of telling the closed posts from the open ones. */
+  public double getAccuracy() {
+    return (getCount(false, false) + getCount(true, true)) * 1.0 /
+        getNumPosts();
+  }
+
+  /** Returns the accuracy of predicting the state of the posts. */
+  public double getStateAccuracy() {
+    long accurate = 0;
+    for (int i = 0; i < states.length; i++) {
+      accurate += counts[i][i];
+    }
+    return accurate * 1.0 / getNumPosts();
+  }
+
+  /** Returns the precision of the state, as the positive class. */
+  public double getPrecision(int state) {
+    long predicted = 0;
+    for (long[] row : counts) {
+      predicted += row[state];
+    }
+    return counts[state][state] * 1.0 / predicted;
+  }
+
+  /** Returns the recall of the state, as the positive class. */
+  public double getRecall(int state) {
+    long actual = 0;
+    for (long count : counts[state]) {
+      actual += count;
+    }
+    return counts[state][state] * 1.0 / actual;
+  }
+
+  public double getFMeasure(int state) {
+    return fMeasure(1, getPrecision(state), getRecall(state));
+  }
+
+  private static double fMeasure(double beta, double precision, double recall) {
+    return (1.0 + beta * beta) * precision * recall /
+        (beta * beta * precision + recall);
+  }
+
+  public void print(PrintStream out) {
+    out.printf("Predict Closed Actual Closed = %d\n", getCount(true, true));
+    out.printf("Predict Closed               = %d\n",
+               getCount(true, true) + getCount(false, true));
+    out.printf("Actual  Closed               = %d\n",
+               getCount(true, true) + getCount(true, false));
+    out.printf("Accurate                     = %d\n",
+               getCount(false, false) + getCount(true, true));
+    out.printf("Posts                        = %d\n", getNumPosts());
+    if (numSkipped > 0) {
+      out.printf("Skipped (status not a state) = %d\n", numSkipped);
+    }
+
+    out.printf("Precision = %f%%\n", 100.0 * getPrecision());
+    out.printf("Recall    = %f%%\n", 100.0 * getRecall());
+    out.printf("F-measure = %f%%\n", 100.0 * getFMeasure());
+    out.printf("Accuracy  = %f%%\n", 100.0 * getAccuracy());
+
+    if (closedState == -1) {
+      printStates(out);
+    }
+  }
+
+  /**
+   * Prints the precision, recall and F-measure of each state, the accuracy
+   * over the states, and the confusion matrix, with a row for each actual
+   * state and a column for each predicted state.
+   */
+  public void printStates(PrintStream out) {
+    out.printf("\n%-20s %10s %10s %10s %10s\n",
+               "State", "Posts", "Precision", "Recall", "F-measure");
+    for (int i = 0; i < states.length; i++) {
+      long actual = 0;
+      for (long count : counts[i]) {
+        actual += count;
+      }
+      out.printf("%-20s %10d %9.3f%% %9.3f%% %9.3f%%\n", states[i], actual,
+                 100.0 * getPrecision(i), 100.0 * getRecall(i),
+                 100.0 * getFMeasure(i));
+    }
+    out.printf("State Accuracy = %f%%\n", 100.0 * getStateAccuracy());
+
+    out.printf("\nConfusion Matrix (actual \\ predicted)\n%-20s", "");
+    for (int j = 0; j < states.length; j++) {
+      out.printf(" %10s", abbreviate(states[j]));
+    }
+    out.println();
+    for (int i = 0; i < states.length; i++) {
+      out.printf("%-20s", states[i]);
+      for (int j = 0; j < states.length; j++) {
+        out.printf(" %10d", counts[i][j]);
+      }
+      out.println();
+    }
+  }
+
+  private static String abbreviate(String state) {
+    return state.length() <= 10 ? state : state.substring(0, 10);
+  }
+
+  private final String[] states;
+  // Number of posts of each actual state (row) and predicted state (column).
+  private final long[][] counts;
+  private final int openState;
+  private final int closedState;
+  private long numSkipped;
+}
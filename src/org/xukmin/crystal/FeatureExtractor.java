@@ -0,0 +1,285 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class turns a post into the keys of the model: the words of the body
+ * and title without stop words, the tags, the binned numbers, and the totals.
+ * The keys are {@link FeatureKey}s, with the ids of the terms in the
+ * {@link Vocabulary}, or with their buckets if there is a
+ * {@link FeatureHasher}. With {@link NGrams}, the n-grams of the words of the
+ * body and of the title are counted as words too.
+ *
+ * Each key is written once per post, with its count in the post, to be added
+ * to all the posts and to the status of the post. The words and tags are
+ * counted in a table that is reused from post to post.
+ *
+ * It is shared by {@link PostMapper} and {@link FeatureSampler}, so they
+ * always agree on the keys.
+ *
+ * With a timing interval, one post in every interval is timed: the time to
+ * tokenize it and count its terms, the time spent looking up stop words, and
+ * the time to write its keys. Timing every post would cost a clock read per
+ * word, so the timed posts stand for the others.
+ */
+public class FeatureExtractor {
+  /**
+   * Receives the keys of a post, with the {@link StatusCounts} column of the
+   * status of the post. The key is only valid during the call.
+   */
+  public static interface Output {
+    void write(FeatureKey key, int status, long count)
+        throws IOException, InterruptedException;
+  }
+
+  private static final long TITLE_WEIGHT = 1;
+  private static final long TAG_WEIGHT = 1;
+
+  public FeatureExtractor(StopWords stopWords, Vocabulary vocabulary) {
+    this(stopWords, vocabulary, null, null);
+  }
+
+  /**
+   * Makes an extractor that hashes the words and tags, and counts the
+   * n-grams, unless the hasher and the n-grams are null.
+   */
+  public FeatureExtractor(StopWords stopWords, Vocabulary vocabulary,
+                          FeatureHasher hasher, NGrams ngrams) {
+    this.tokenizer = new Tokenizer(stopWords);
+    this.vocabulary = vocabulary;
+    this.hasher = hasher;
+    this.ngrams = ngrams;
+  }
+
+  /** Times one post in every interval, or none with 0. */
+  public void setTimingInterval(int interval) {
+    timingInterval = interval;
+  }
+
+  /** Writes the keys of the post to the output. */
+  public void extract(Post post, Output output)
+      throws IOException, InterruptedException {
+    timed = timingInterval > 0 && ++numPosts % timingInterval == 0;
+    long start = timed ? System.nanoTime() : 0;
+    long stopWordStart = stopWordNanos;
+    stopWordsInBody = 0;
+    stopWordsInTitle = 0;
+    termCounts.clear();
+
+    int status = getColumn(post.getStatus());
+    int numWords = 0;
+    post.tokenizeBody(tokenizer);
+    resetNGrams();
+    while (tokenizer.next()) {
+      if (isStopWord()) {
+        stopWordsInBody++;
+        continue;
+      }
+      addTerm(FeatureKey.Type.WORD, tokenizer.getBytes(),
+              tokenizer.getStart(), tokenizer.getEnd(), 1);
+      numWords += 1 + addNGrams(1);
+    }
+
+    post.tokenizeTitle(tokenizer);
+    resetNGrams();
+    while (tokenizer.next()) {
+      if (isStopWord()) {
+        stopWordsInTitle++;
+        continue;
+      }
+      addTerm(FeatureKey.Type.WORD, tokenizer.getBytes(),
+              tokenizer.getStart(), tokenizer.getEnd(), TITLE_WEIGHT);
+      numWords += TITLE_WEIGHT + addNGrams(TITLE_WEIGHT);
+    }
+    int numTags = post.getNumTags();
+    for (int i = 0; i < numTags; i++) {
+      addTerm(FeatureKey.Type.TAG, post.getBytes(), post.getTagStart(i),
+              post.getTagEnd(i), TAG_WEIGHT);
+      numWords += TAG_WEIGHT;
+    }
+    long emitStart = timed ? System.nanoTime() : 0;
+    writeTerms(status, output);
+    write(FeatureKey.Type.TAGS_PER_POST, numTags, status, 1, output);
+    write(FeatureKey.Type.TAGS, 0, status, numTags, output);
+
+    int reputation = post.getReputationAtPostCreation();
+    reputation = Math.max(reputation, -10);
+    reputation = Math.min(reputation, 1000);
+    int bin = (reputation + 10) / 1;
+    write(FeatureKey.Type.REPUTATION, bin, status, 1, output);
+
+    int undeleted = post.getOwnerUndeletedAnswerCountAtPostTime();
+    undeleted = Math.max(undeleted, 0);
+    undeleted = Math.min(undeleted, 1000);
+    int undeletedBins = (undeleted) / 1;
+    write(FeatureKey.Type.UNDELETED, undeletedBins, status, 1, output);
+
+    long time = (post.getPostCreationDate() - post.getOwnerCreationDate()) /
+        86400000;
+    time = Math.max(time, 0);
+    time = Math.min(time, 300);
+    time /= 10;
+    write(FeatureKey.Type.TIME, (int) time, status, 1, output);
+
+    write(FeatureKey.Type.POSTS, 0, status, 1, output);
+    write(FeatureKey.Type.WORDS, 0, status, numWords, output);
+
+    if (timed) {
+      timedPosts++;
+      tokenizeNanos += emitStart - start - (stopWordNanos - stopWordStart);
+      emitNanos += System.nanoTime() - emitStart;
+    }
+  }
+
+  private boolean isStopWord() {
+    if (!timed) {
+      return tokenizer.isStopWord();
+    }
+    long start = System.nanoTime();
+    boolean stopWord = tokenizer.isStopWord();
+    stopWordNanos += System.nanoTime() - start;
+    return stopWord;
+  }
+
+  /** Returns the number of posts timed so far. */
+  public long getTimedPosts() {
+    return timedPosts;
+  }
+
+  /**
+   * Returns the time spent tokenizing the timed posts and counting their
+   * terms, without the stop words.
+   */
+  public long getTokenizeNanos() {
+    return tokenizeNanos;
+  }
+
+  /** Returns the time spent looking up the stop words of the timed posts. */
+  public long getStopWordNanos() {
+    return stopWordNanos;
+  }
+
+  /** Returns the time spent writing the keys of the timed posts. */
+  public long getEmitNanos() {
+    return emitNanos;
+  }
+
+  /** Returns the number of stop words in the body of the last post. */
+  public int getStopWordsInBody() {
+    return stopWordsInBody;
+  }
+
+  /** Returns the number of stop words in the title of the last post. */
+  public int getStopWordsInTitle() {
+    return stopWordsInTitle;
+  }
+
+  /**
+   * Counts the term in bytes[start, end) in the post, by bucket if it is
+   * hashed, or by id if it is in the vocabulary.
+   */
+  private void addTerm(FeatureKey.Type type, byte[] bytes, int start, int end,
+                       long count) {
+    if (hasher != null) {
+      key.set(type == FeatureKey.Type.TAG ?
+                  FeatureKey.Type.TAG_BUCKET : FeatureKey.Type.WORD_BUCKET,
+              hasher.getBucket(bytes, start, end));
+    } else {
+      int id = vocabulary.getId(type, bytes, start, end);
+      if (id >= 0) {
+        key.set(type, id);
+      } else {
+        key.setTerm(type, bytes, start, end);
+      }
+    }
+    long[] termCount = termCounts.get(key);
+    if (termCount == null) {
+      // The keys and counts are kept for the next posts, so a post only
+      // allocates the entries of the table.
+      int n = termCounts.size();
+      if (n == termKeys.size()) {
+        termKeys.add(new FeatureKey());
+        termCountValues.add(new long[1]);
+      }
+      FeatureKey termKey = termKeys.get(n);
+      termKey.set(key);
+      termCount = termCountValues.get(n);
+      termCount[0] = 0;
+      termCounts.put(termKey, termCount);
+    }
+    termCount[0] += count;
+  }
+
+  private void resetNGrams() {
+    if (ngrams != null) {
+      ngrams.reset();
+    }
+  }
+
+  /**
+   * Counts the n-grams that end with the current word of the tokenizer as
+   * words, and returns their total weight.
+   */
+  private long addNGrams(long count) {
+    if (ngrams == null) {
+      return 0;
+    }
+    int n = ngrams.add(tokenizer.getBytes(), tokenizer.getStart(),
+                       tokenizer.getEnd());
+    for (int i = 0; i < n; i++) {
+      int length = ngrams.get(i);
+      addTerm(FeatureKey.Type.WORD, ngrams.getBytes(), 0, length, count);
+    }
+    return n * count;
+  }
+
+  /** Writes the terms counted in the post. */
+  private void writeTerms(int status, Output output)
+      throws IOException, InterruptedException {
+    for (Map.Entry<FeatureKey, long[]> entry : termCounts.entrySet()) {
+      output.write(entry.getKey(), status, entry.getValue()[0]);
+    }
+    termCounts.clear();
+  }
+
+  private void write(FeatureKey.Type type, int id, int status, long count,
+                     Output output)
+      throws IOException, InterruptedException {
+    key.set(type, id);
+    output.write(key, status, count);
+  }
+
+  private int getColumn(String status) {
+    Integer column = statusColumns.get(status);
+    if (column == null) {
+      column = StatusCounts.getColumn(status);
+      statusColumns.put(status, column);
+    }
+    return column;
+  }
+
+  private Tokenizer tokenizer;
+  private Vocabulary vocabulary;
+  private FeatureHasher hasher;
+  private NGrams ngrams;
+  private Map<String, Integer> statusColumns =
+      new HashMap<String, Integer>();
+  private Map<FeatureKey, long[]> termCounts =
+      new HashMap<FeatureKey, long[]>();
+  private List<FeatureKey> termKeys = new ArrayList<FeatureKey>();
+  private List<long[]> termCountValues = new ArrayList<long[]>();
+  private FeatureKey key = new FeatureKey();
+  private int stopWordsInBody;
+  private int stopWordsInTitle;
+  private int timingInterval;
+  private long numPosts;
+  private boolean timed;
+  private long timedPosts;
+  private long tokenizeNanos;
+  private long stopWordNanos;
+  private long emitNanos;
+}
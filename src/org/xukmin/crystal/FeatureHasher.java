@@ -0,0 +1,92 @@
+package org.xukmin.crystal;
+
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * This class maps words and tags to a fixed number of buckets (the hashing
+ * trick), so that the model has at most that many word and tag features
+ * however many distinct terms the training data has.
+ *
+ * With {@link #BUCKETS} set, {@link FeatureExtractor} writes the buckets of
+ * the terms as {@link FeatureKey.Type#WORD_BUCKET} and
+ * {@link FeatureKey.Type#TAG_BUCKET} keys, the number of buckets is written
+ * to the counters of the model as {@link #COUNTER}, and {@link ScoringModel}
+ * keeps the log-likelihoods of the buckets in dense arrays. Terms that share
+ * a bucket share their counts.
+ */
+public class FeatureHasher {
+  /** Number of buckets for the words and for the tags, 0 to not hash them. */
+  public static final String BUCKETS = "crystal.hash.buckets";
+
+  /** Name of the number of buckets in the counters of a hashed model. */
+  public static final String COUNTER = "HASH_BUCKETS";
+
+  public FeatureHasher(int numBuckets) {
+    if (numBuckets <= 0) {
+      throw new IllegalArgumentException(
+          "Number of buckets must be positive: " + numBuckets);
+    }
+    this.numBuckets = numBuckets;
+  }
+
+  /** Returns the hasher of the configuration, or null if it does not hash. */
+  public static FeatureHasher get(Configuration conf) {
+    int numBuckets = conf.getInt(BUCKETS, 0);
+    return numBuckets > 0 ? new FeatureHasher(numBuckets) : null;
+  }
+
+  public int getNumBuckets() {
+    return numBuckets;
+  }
+
+  public int getBucket(String term) {
+    byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+    return getBucket(bytes, 0, bytes.length);
+  }
+
+  /** Returns the bucket of the UTF-8 term in bytes[start, end). */
+  public int getBucket(byte[] bytes, int start, int end) {
+    return (int) ((hash(bytes, start, end) & 0xffffffffL) % numBuckets);
+  }
+
+  /** MurmurHash3 (x86, 32 bits) of the bytes, with seed 0. */
+  @SuppressWarnings("fallthrough")
+  private static int hash(byte[] bytes, int start, int end) {
+    int h = 0;
+    int i = start;
+    for (; i + 4 <= end; i += 4) {
+      int k = (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8 |
+          (bytes[i + 2] & 0xff) << 16 | bytes[i + 3] << 24;
+      h ^= mix(k);
+      h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+    }
+    int k = 0;
+    switch (end - i) {
+      case 3:
+        k ^= (bytes[i + 2] & 0xff) << 16;
+        // fall through
+      case 2:
+        k ^= (bytes[i + 1] & 0xff) << 8;
+        // fall through
+      case 1:
+        k ^= bytes[i] & 0xff;
+        h ^= mix(k);
+    }
+    h ^= end - start;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private static int mix(int k) {
+    k *= 0xcc9e2d51;
+    k = Integer.rotateLeft(k, 15);
+    return k * 0x1b873593;
+  }
+
+  private final int numBuckets;
+}
@@ -0,0 +1,239 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class shows what hashing the words and tags into a number of buckets
+ * with {@link FeatureHasher} would cost, next to the exact model, to choose
+ * the number of buckets.
+ *
+ * The counts are additive, so the hashed model is made from the exact model
+ * by adding up the rows of the terms of each bucket, which gives the same
+ * model as training with {@link FeatureHasher#BUCKETS}, without training.
+ * For each number of buckets, it reports how many buckets are used, the
+ * share of the terms that share their bucket with another term, and the
+ * share of the occurrences of these terms, and the accuracy and F-measure of
+ * the hashed model on the test data.
+ *
+ * Usage: FeatureHashingReport <exact model> <test data> <buckets>...
+ */
+public class FeatureHashingReport extends Configured implements Tool {
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new FeatureHashingReport(),
+                             args);
+    System.exit(res);
+  }
+
+  private static final String TAG_PREFIX = "/TAG/";
+  private static final String FORMAT =
+      "%-8s %9s %9s %7s %7s %7s %7s %7s %7s %9s %9s\n";
+
+  @Override
+  public int run(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println("Usage: FeatureHashingReport " +
+                         "<exact model> <test data> <buckets>...");
+      return 1;
+    }
+    String location = args[0];
+    String testData = args[1];
+    FileSystem fs = FileSystem.get(getConf());
+
+    Map<String, long[]> rows = new HashMap<String, long[]>();
+    try (Model model = PostPredictor.openModel(fs, location)) {
+      if (model.getCounter(FeatureHasher.COUNTER) > 0) {
+        throw new IOException("Model is hashed already: " + location);
+      }
+      for (String key : model.keys()) {
+        long[] counts = new long[StatusCounts.COLUMNS];
+        model.get(key, counts);
+        rows.put(key, counts);
+      }
+    }
+
+    System.out.printf(FORMAT, "Buckets", "Words", "Used", "Coll%",
+                      "Occ%", "Tags", "Used", "Coll%", "Occ%",
+                      "Accuracy", "F-measure");
+    Collisions words = new Collisions(0);
+    Collisions tags = new Collisions(0);
+    for (String key : rows.keySet()) {
+      if (isTag(key)) {
+        tags.numTerms++;
+      } else if (key.indexOf('/') == -1) {
+        words.numTerms++;
+      }
+    }
+    print("exact", words, tags,
+          new PostPredictor(getConf(), location).evaluate(testData));
+
+    for (int i = 2; i < args.length; i++) {
+      int numBuckets = Integer.parseInt(args[i]);
+      FeatureHasher hasher = new FeatureHasher(numBuckets);
+      words = new Collisions(numBuckets);
+      tags = new Collisions(numBuckets);
+      Map<String, long[]> hashed = new HashMap<String, long[]>();
+      for (Map.Entry<String, long[]> row : rows.entrySet()) {
+        String key = row.getKey();
+        long[] counts = row.getValue();
+        if (isTag(key)) {
+          int bucket = hasher.getBucket(key.substring(TAG_PREFIX.length()));
+          tags.add(bucket, counts[StatusCounts.ALL]);
+          key = "/TAG_BUCKET/" + bucket;
+        } else if (key.indexOf('/') == -1) {
+          int bucket = hasher.getBucket(key);
+          words.add(bucket, counts[StatusCounts.ALL]);
+          key = "/WORD_BUCKET/" + bucket;
+        }
+        long[] sum = hashed.get(key);
+        if (sum == null) {
+          hashed.put(key, counts.clone());
+        } else {
+          for (int j = 0; j < sum.length; j++) {
+            sum[j] += counts[j];
+          }
+        }
+      }
+
+      Path directory = new Path(location + ".hashed-" + numBuckets);
+      try {
+        write(fs, directory, hashed, words, tags, numBuckets);
+        print(Integer.toString(numBuckets), words, tags,
+              new PostPredictor(getConf(), directory.toString())
+                  .evaluate(testData));
+      } finally {
+        fs.delete(directory, true /* recursive */);
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isTag(String key) {
+    return key.startsWith(TAG_PREFIX) && key.length() > TAG_PREFIX.length();
+  }
+
+  /** Writes the hashed model as an output directory of PostMapReduce. */
+  private static void write(FileSystem fs, Path directory,
+                            Map<String, long[]> rows, Collisions words,
+                            Collisions tags, int numBuckets)
+      throws IOException {
+    try (
+      PrintWriter writer =
+          new PrintWriter(
+              new OutputStreamWriter(
+                  fs.create(new Path(directory, "part-r-00000"), true),
+                  StandardCharsets.UTF_8));
+    ) {
+      StatusCounts value = new StatusCounts();
+      for (Map.Entry<String, long[]> row : rows.entrySet()) {
+        value.set(row.getValue());
+        writer.printf("%s\t%s\n", row.getKey(), value);
+      }
+    }
+    // The buckets in use take the place of the unique terms, as counted by
+    // PostReducer when training with hashing.
+    try (
+      PrintWriter writer =
+          new PrintWriter(
+              new OutputStreamWriter(
+                  fs.create(new Path(directory, "counters"), true)));
+    ) {
+      writer.printf("%s\t%d\n", PostReducer.Counters.UNIQUE_WORDS.name(),
+                    words.getUsedBuckets());
+      writer.printf("%s\t%d\n", PostReducer.Counters.UNIQUE_TAGS.name(),
+                    tags.getUsedBuckets());
+      writer.printf("%s\t%d\n", FeatureHasher.COUNTER, numBuckets);
+    }
+  }
+
+  private static void print(String buckets, Collisions words,
+                            Collisions tags, Evaluation evaluation) {
+    System.out.printf(FORMAT, buckets,
+        words.numTerms, words.getUsedBuckets(),
+        percent(words.getCollidingTerms(), words.numTerms),
+        percent(words.getCollidingOccurrences(), words.getOccurrences()),
+        tags.numTerms, tags.getUsedBuckets(),
+        percent(tags.getCollidingTerms(), tags.numTerms),
+        percent(tags.getCollidingOccurrences(), tags.getOccurrences()),
+        String.format("%.3f%%", 100.0 * evaluation.getAccuracy()),
+        String.format("%.3f%%", 100.0 * evaluation.getFMeasure()));
+  }
+
+  private static String percent(long part, long all) {
+    return all == 0 ? "-" : String.format("%.2f", 100.0 * part / all);
+  }
+
+  /**
+   * Counts the terms and their occurrences in each bucket. Without buckets,
+   * every term is by itself.
+   */
+  private static class Collisions {
+    Collisions(int numBuckets) {
+      terms = new int[numBuckets];
+      counts = new long[numBuckets];
+    }
+
+    void add(int bucket, long count) {
+      numTerms++;
+      terms[bucket]++;
+      counts[bucket] += count;
+    }
+
+    long getUsedBuckets() {
+      if (terms.length == 0) {
+        return numTerms;
+      }
+      long used = 0;
+      for (int n : terms) {
+        if (n > 0) {
+          used++;
+        }
+      }
+      return used;
+    }
+
+    /** Returns the number of terms that share their bucket. */
+    long getCollidingTerms() {
+      long colliding = 0;
+      for (int n : terms) {
+        if (n > 1) {
+          colliding += n;
+        }
+      }
+      return colliding;
+    }
+
+    /** Returns the occurrences of the terms that share their bucket. */
+    long getCollidingOccurrences() {
+      long colliding = 0;
+      for (int i = 0; i < terms.length; i++) {
+        if (terms[i] > 1) {
+          colliding += counts[i];
+        }
+      }
+      return colliding;
+    }
+
+    long getOccurrences() {
+      long all = 0;
+      for (long count : counts) {
+        all += count;
+      }
+      return all;
+    }
+
+    long numTerms;
+    private final int[] terms;
+    private final long[] counts;
+  }
+}
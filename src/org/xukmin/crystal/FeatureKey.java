@@ -0,0 +1,307 @@
+package org.xukmin.crystal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+/**
+ * This class is the intermediate key of {@link PostMapReduce}: the type of
+ * the feature, and the term id or bin number, instead of a string such as
+ * "word" or "/REPUTATION/bin". The counts for each status are in the
+ * {@link StatusCounts} value.
+ *
+ * Words and tags in the {@link Vocabulary} are written as their ids. Any other
+ * term is written as its UTF-8 bytes, so the vocabulary does not need to be
+ * complete. The serialized form is 5 bytes, plus 4 bytes and the term for a
+ * term out of the vocabulary, and is sorted by comparing the bytes.
+ *
+ * {@link #toText} turns the key back into the string written to the model.
+ *
+ * For {@link CrossValidation}, a key may also have the fold of the post it
+ * comes from. The fold is flagged in the type byte and written last, so the
+ * folds of a feature sort next to each other, {@link FeatureComparator}
+ * groups them, and {@link #hashCode()} leaves the fold out, so they go to the
+ * same reducer.
+ */
+public class FeatureKey implements WritableComparable<FeatureKey> {
+  public static enum Type {
+    WORD(""),
+    TAG("/TAG/"),
+    TAGS_PER_POST("/TAGS_PER_POST/"),
+    TAGS("/TAGS"),
+    REPUTATION("/REPUTATION/"),
+    UNDELETED("/UNDELETED/"),
+    TIME("/TIME/"),
+    POSTS("/POSTS"),
+    WORDS("/WORDS"),
+    // The buckets of the words and tags, in place of WORD and TAG, when they
+    // are hashed by FeatureHasher.
+    WORD_BUCKET("/WORD_BUCKET/"),
+    TAG_BUCKET("/TAG_BUCKET/");
+
+    Type(String prefix) {
+      this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Whether the id of the key is a term id. */
+    public boolean hasTerm() {
+      return this == WORD || this == TAG;
+    }
+
+    /** Whether the id of the key is a bin or bucket number. */
+    public boolean hasBin() {
+      return this == TAGS_PER_POST || this == REPUTATION ||
+          this == UNDELETED || this == TIME || this == WORD_BUCKET ||
+          this == TAG_BUCKET;
+    }
+
+    /** Whether the key is a word, or a bucket of words. */
+    public boolean isWord() {
+      return this == WORD || this == WORD_BUCKET;
+    }
+
+    /** Whether the key is a tag, or a bucket of tags. */
+    public boolean isTag() {
+      return this == TAG || this == TAG_BUCKET;
+    }
+
+    private final byte[] prefix;
+  }
+
+  private static final Type[] TYPES = Type.values();
+  // Flag of the type byte of a key with a fold.
+  private static final int FOLDED = 0x80;
+  static {
+    WritableComparator.define(FeatureKey.class, new Comparator());
+  }
+
+  public FeatureKey() {
+  }
+
+  public FeatureKey(FeatureKey other) {
+    set(other);
+  }
+
+  /** Sets a key with a term id, a bin number, or nothing (0), and no fold. */
+  public void set(Type type, int id) {
+    this.type = type;
+    this.id = id;
+    termLength = 0;
+    fold = -1;
+  }
+
+  /** Sets a key with a term that is not in the vocabulary, and no fold. */
+  public void setTerm(Type type, byte[] bytes, int start, int end) {
+    this.type = type;
+    this.id = -1;
+    setTermBytes(bytes, start, end - start);
+    fold = -1;
+  }
+
+  public void set(FeatureKey other) {
+    type = other.type;
+    id = other.id;
+    setTermBytes(other.term, 0, other.termLength);
+    fold = other.fold;
+  }
+
+  /** Sets the fold of the key, from 0 to 255, or -1 for no fold. */
+  public void setFold(int fold) {
+    if (fold < -1 || fold > 255) {
+      throw new IllegalArgumentException("Invalid fold: " + fold);
+    }
+    this.fold = fold;
+  }
+
+  /** Returns the fold of the key, or -1 if it has none. */
+  public int getFold() {
+    return fold;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Returns the term id, the bin number, or 0 for the other types. A term out
+   * of the vocabulary has id -1.
+   */
+  public int getId() {
+    return id;
+  }
+
+  /** Returns the bytes of a term out of the vocabulary. */
+  public byte[] getTermBytes() {
+    return term;
+  }
+
+  public int getTermLength() {
+    return termLength;
+  }
+
+  /**
+   * Sets the text to the key of the model, e.g. "word" or "/REPUTATION/12",
+   * using the vocabulary for the term ids.
+   */
+  public void toText(Text text, Vocabulary vocabulary) {
+    text.set(type.prefix, 0, type.prefix.length);
+    if (type.hasTerm()) {
+      if (id >= 0) {
+        byte[] bytes = vocabulary.getTerm(type, id);
+        text.append(bytes, 0, bytes.length);
+      } else {
+        text.append(term, 0, termLength);
+      }
+    } else if (type.hasBin()) {
+      byte[] bytes = Integer.toString(id).getBytes(StandardCharsets.UTF_8);
+      text.append(bytes, 0, bytes.length);
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(getTypeByte());
+    // Flip the sign bit, so the bytes compare as the signed ids do.
+    out.writeInt(id ^ Integer.MIN_VALUE);
+    if (id < 0) {
+      out.writeInt(termLength);
+      out.write(term, 0, termLength);
+    }
+    if (fold >= 0) {
+      out.writeByte(fold);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int typeByte = in.readUnsignedByte();
+    type = TYPES[typeByte & ~FOLDED];
+    id = in.readInt() ^ Integer.MIN_VALUE;
+    termLength = 0;
+    if (id < 0) {
+      int length = in.readInt();
+      ensureCapacity(length);
+      in.readFully(term, 0, length);
+      termLength = length;
+    }
+    fold = (typeByte & FOLDED) != 0 ? in.readUnsignedByte() : -1;
+  }
+
+  /** Returns the number of bytes written by {@link #write}. */
+  public int getSerializedSize() {
+    return 1 + 4 + (id < 0 ? 4 + termLength : 0) + (fold >= 0 ? 1 : 0);
+  }
+
+  private int getTypeByte() {
+    return fold < 0 ? type.ordinal() : type.ordinal() | FOLDED;
+  }
+
+  /** Compares the keys in the same order as their serialized bytes. */
+  @Override
+  public int compareTo(FeatureKey other) {
+    int c = compareFeature(other);
+    if (c != 0 || fold == other.fold) {
+      return c;
+    }
+    return fold < other.fold ? -1 : 1;
+  }
+
+  /** Compares the keys as {@link #compareTo} does, but without the folds. */
+  public int compareFeature(FeatureKey other) {
+    if (getTypeByte() != other.getTypeByte()) {
+      return getTypeByte() < other.getTypeByte() ? -1 : 1;
+    }
+    if (id != other.id) {
+      return id < other.id ? -1 : 1;
+    }
+    if (termLength != other.termLength) {
+      return termLength < other.termLength ? -1 : 1;
+    }
+    return WritableComparator.compareBytes(term, 0, termLength,
+                                           other.term, 0, other.termLength);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof FeatureKey && compareTo((FeatureKey) o) == 0;
+  }
+
+  /**
+   * Returns the same hash code in every JVM, for partitioning, which is the
+   * same for all the folds of a feature.
+   */
+  @Override
+  public int hashCode() {
+    int h = type.ordinal();
+    h = 31 * h + id;
+    return 31 * h + WritableComparator.hashBytes(term, termLength);
+  }
+
+  @Override
+  public String toString() {
+    if (type.hasTerm() && id >= 0) {
+      return type + "#" + id;
+    }
+    Text text = new Text();
+    toText(text, null);
+    return text.toString();
+  }
+
+  private void setTermBytes(byte[] bytes, int start, int length) {
+    ensureCapacity(length);
+    System.arraycopy(bytes, start, term, 0, length);
+    termLength = length;
+  }
+
+  private void ensureCapacity(int length) {
+    if (term.length < length) {
+      term = Arrays.copyOf(term, Math.max(length, 2 * term.length));
+    }
+  }
+
+  /** Compares the serialized keys byte by byte. */
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(FeatureKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      return compareBytes(b1, s1, l1, b2, s2, l2);
+    }
+  }
+
+  /**
+   * Compares the serialized keys byte by byte, without the folds, so that a
+   * reducer gets all the folds of a feature at once.
+   */
+  public static class FeatureComparator extends WritableComparator {
+    public FeatureComparator() {
+      super(FeatureKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      int f1 = (b1[s1] & FOLDED) != 0 ? 1 : 0;
+      int f2 = (b2[s2] & FOLDED) != 0 ? 1 : 0;
+      return compareBytes(b1, s1, l1 - f1, b2, s2, l2 - f2);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public int compare(WritableComparable a, WritableComparable b) {
+      return ((FeatureKey) a).compareFeature((FeatureKey) b);
+    }
+  }
+
+  private Type type = Type.POSTS;
+  private int id;
+  private int fold = -1;
+  private byte[] term = new byte[16];
+  private int termLength;
+}
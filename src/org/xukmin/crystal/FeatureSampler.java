@@ -0,0 +1,112 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+
+/**
+ * This class estimates the map output of {@link PostMapReduce} before the job,
+ * by running {@link FeatureExtractor} over the posts at the start of evenly
+ * spaced splits of the input, like Hadoop's InputSampler.SplitSampler.
+ */
+public class FeatureSampler {
+  /** Number of input splits sampled. */
+  public static final String SAMPLE_SPLITS = "crystal.sample.splits";
+
+  /** Number of posts sampled from each split. */
+  public static final String SAMPLE_RECORDS = "crystal.sample.records";
+
+  /** Index of the number of records of a key in the sampled weights. */
+  public static final int RECORDS = 0;
+
+  /** Index of the number of sampled splits with a key in the weights. */
+  public static final int SPLITS = 1;
+
+  // Index of the last sample (1, 2, ...) with a key in the weights.
+  private static final int LAST_SAMPLE = 2;
+
+  /**
+   * Samples the input of the job, and returns the number of records and the
+   * number of splits of each key, keyed with the vocabulary.
+   */
+  public static Map<FeatureKey, long[]> sample(Job job, Vocabulary vocabulary)
+      throws IOException, InterruptedException {
+    Configuration conf = job.getConfiguration();
+    List<InputSplit> splits = new PostInputFormat().getSplits(job);
+    int numSamples = Math.min(splits.size(), conf.getInt(SAMPLE_SPLITS, 10));
+    int maxRecords = conf.getInt(SAMPLE_RECORDS, 10000);
+
+    FeatureExtractor extractor = new FeatureExtractor(
+        StopWords.load(FileSystem.get(conf)), vocabulary,
+        FeatureHasher.get(conf), NGrams.get(conf));
+    final Map<FeatureKey, long[]> weights = new HashMap<FeatureKey, long[]>();
+    final int[] sampleNumber = new int[1];
+    FeatureExtractor.Output output = new FeatureExtractor.Output() {
+      @Override
+      public void write(FeatureKey key, int status, long count) {
+        long[] weight = weights.get(key);
+        if (weight == null) {
+          weight = new long[3];
+          weights.put(new FeatureKey(key), weight);
+        }
+        weight[RECORDS]++;
+        if (weight[LAST_SAMPLE] != sampleNumber[0]) {
+          weight[LAST_SAMPLE] = sampleNumber[0];
+          weight[SPLITS]++;
+        }
+      }
+    };
+
+    for (int i = 0; i < numSamples; i++) {
+      sampleNumber[0] = i + 1;
+      InputSplit split = splits.get((int) ((long) i * splits.size() /
+                                           numSamples));
+      TaskAttemptContext context =
+          new TaskAttemptContextImpl(conf, new TaskAttemptID());
+      try (RecordReader<LongWritable, Post> reader = new PostRecordReader()) {
+        reader.initialize(split, context);
+        for (int n = 0; n < maxRecords && reader.nextKeyValue(); n++) {
+          Post post = reader.getCurrentValue();
+          if (!post.isHeader()) {
+            extractor.extract(post, output);
+          }
+        }
+      }
+    }
+    return weights;
+  }
+
+  /**
+   * Returns the weights of a sample keyed without a vocabulary, keyed with
+   * the vocabulary instead, as {@link #sample} would key them with it: the
+   * terms in the vocabulary by their ids. Each term has one id, so the
+   * weights stay the same, and the input is not read again.
+   */
+  public static Map<FeatureKey, long[]> withVocabulary(
+      Map<FeatureKey, long[]> weights, Vocabulary vocabulary) {
+    Map<FeatureKey, long[]> keyed =
+        new HashMap<FeatureKey, long[]>(weights.size() * 2);
+    for (Map.Entry<FeatureKey, long[]> entry : weights.entrySet()) {
+      FeatureKey key = entry.getKey();
+      int id = key.getType().hasTerm() && key.getId() < 0 ?
+          vocabulary.getId(key.getType(), key.getTermBytes(), 0,
+                           key.getTermLength()) : -1;
+      if (id >= 0) {
+        key = new FeatureKey();
+        key.set(entry.getKey().getType(), id);
+      }
+      keyed.put(key, entry.getValue());
+    }
+    return keyed;
+  }
+}
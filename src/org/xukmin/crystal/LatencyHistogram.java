@@ -0,0 +1,137 @@
+package org.xukmin.crystal;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies in nanoseconds from many threads at once, and
+ * reports their percentiles.
+ *
+ * The buckets are log-linear: each power of 2 is split into 2^{@link #SHIFT}
+ * buckets, so a percentile is at most about 3% above the actual latency,
+ * whatever the range, in a fixed array of counters. Recording is one atomic
+ * increment and no allocation.
+ */
+public class LatencyHistogram {
+  private static final int SHIFT = 5;
+  private static final int BUCKETS = 64 << SHIFT;
+
+  public LatencyHistogram() {
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    buckets.incrementAndGet(getBucket(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    long max;
+    while (nanos > (max = this.max.get()) &&
+           !this.max.compareAndSet(max, nanos)) {
+    }
+  }
+
+  /**
+   * Values below 2^{@link #SHIFT} have their own bucket. The others are
+   * bucketed by their highest bit, and then by the next SHIFT bits.
+   */
+  private static int getBucket(long value) {
+    int exponent = 63 - Long.numberOfLeadingZeros(value) - SHIFT;
+    if (exponent <= 0) {
+      return (int) value;
+    }
+    return (exponent << SHIFT) + (int) (value >>> exponent);
+  }
+
+  /** Returns the largest value in the bucket. */
+  private static long getUpperBound(int bucket) {
+    int exponent = (bucket >>> SHIFT) - 1;
+    if (exponent <= 0) {
+      return bucket;
+    }
+    long base = (long) (bucket & ((1 << SHIFT) - 1)) | (1L << SHIFT);
+    return ((base + 1) << exponent) - 1;
+  }
+
+  /**
+   * Adds the latencies recorded by the other histogram, e.g. by another
+   * thread, which then need not share one histogram while recording.
+   */
+  public void merge(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long n = other.buckets.get(i);
+      if (n != 0) {
+        buckets.addAndGet(i, n);
+      }
+    }
+    count.addAndGet(other.count.get());
+    total.addAndGet(other.total.get());
+    long otherMax = other.max.get();
+    long max;
+    while (otherMax > (max = this.max.get()) &&
+           !this.max.compareAndSet(max, otherMax)) {
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : total.get() * 1.0 / n;
+  }
+
+  /**
+   * Returns the latency that the given fraction (e.g. 0.99) of the recorded
+   * latencies do not exceed, or 0 if nothing is recorded.
+   */
+  public long getPercentile(double fraction) {
+    long n = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      n += counts[i];
+    }
+    long rank = (long) Math.ceil(fraction * n);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen > 0 && seen >= rank) {
+        return Math.min(getUpperBound(i), max.get());
+      }
+    }
+    return 0;
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+
+  /** Prints the count, mean and percentiles, in microseconds. */
+  public void print(PrintStream out, String name) {
+    out.printf("%s Count       = %d\n", name, getCount());
+    out.printf("%s Mean (us)   = %.1f\n", name, getMean() / 1000);
+    out.printf("%s p50 (us)    = %.1f\n", name, getPercentile(0.5) / 1000.0);
+    out.printf("%s p99 (us)    = %.1f\n", name, getPercentile(0.99) / 1000.0);
+    out.printf("%s p99.9 (us)  = %.1f\n", name,
+               getPercentile(0.999) / 1000.0);
+    out.printf("%s Max (us)    = %.1f\n", name, getMax() / 1000.0);
+  }
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+}
@@ -0,0 +1,383 @@
+package org.xukmin.crystal;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class builds the same model as {@link PostMapReduce} in a single JVM,
+ * with a thread pool instead of a job, for development and data sets that fit
+ * on one machine, where starting a job takes longer than the counting.
+ *
+ * The input is cut into chunks by {@link PostInputFormat}, as it would be into
+ * splits, and each chunk is read by {@link PostRecordReader}. The threads take
+ * the chunks one at a time, and count the keys of {@link FeatureExtractor}
+ * into their own tables of {@link StatusCounts#COLUMNS} longs, so they share
+ * nothing while counting. The tables are striped by the hash of the key, and
+ * each stripe is then merged across the threads by one thread, sorted, and
+ * written out as {@link PostReducer} does, including the n-grams left out
+ * under {@link NGrams#MIN_COUNT} and the UNIQUE_WORDS / UNIQUE_TAGS counts.
+ *
+ * The output directory has the layout of {@link PostMapReduce}: the rows in
+ * "part-r-00000", the "counters" file and the {@link Metrics}. The terms are
+ * kept as strings rather than {@link Vocabulary} ids, which only shrink the
+ * shuffle, so the rows are the same but may be in another order.
+ */
+public class LocalTrainer extends Configured implements Tool {
+  /** Number of threads, the number of processors by default. */
+  public static final String THREADS = "crystal.local.threads";
+
+  /** Size of the chunks of the input, in MB. */
+  public static final String CHUNK_MB = "crystal.local.chunk.mb";
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new LocalTrainer(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws IOException, InterruptedException {
+    String defaultInput = "train_October_9_2012_clean_99.csv";
+    String defaultOutput = "output";
+
+    String input = args.length >= 1 ? args[0] : defaultInput;
+    String output = args.length >= 2 ? args[1] : defaultOutput;
+
+    Configuration conf = getConf();
+    int numThreads = conf.getInt(THREADS,
+                                 Runtime.getRuntime().availableProcessors());
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Invalid " + THREADS + ": " +
+                                         numThreads);
+    }
+    Path outputPath = new Path(output);
+    FileSystem fs = FileSystem.get(conf);
+    if (fs.exists(outputPath)) {
+      fs.delete(outputPath, true /* recursive */);
+    }
+
+    long startTime = System.currentTimeMillis();
+    Job job = Job.getInstance(conf, "LocalTrainer");
+    FileInputFormat.addInputPath(job, new Path(input));
+    FileInputFormat.setMaxInputSplitSize(
+        job, conf.getLong(CHUNK_MB, 32) * 1024 * 1024);
+    List<InputSplit> chunks = new PostInputFormat().getSplits(job);
+    StopWords stopWords = StopWords.load(fs);
+    FeatureHasher hasher = FeatureHasher.get(conf);
+    int numBuckets = hasher == null ? 0 : hasher.getNumBuckets();
+    NGrams ngrams = NGrams.get(conf);
+    int ngramSize = ngrams == null ? 1 : ngrams.getSize();
+    long minNGramCount = ngrams == null ? 0 : conf.getLong(NGrams.MIN_COUNT, 2);
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      AtomicInteger nextChunk = new AtomicInteger();
+      List<Future<Worker>> counting = new ArrayList<Future<Worker>>();
+      for (int i = 0; i < numThreads; i++) {
+        counting.add(executor.submit(new Worker(
+            conf, chunks, nextChunk, stopWords, numThreads)));
+      }
+      List<Worker> workers = getAll(counting);
+      long countTime = System.currentTimeMillis();
+
+      List<Future<Stripe>> merging = new ArrayList<Future<Stripe>>();
+      for (int i = 0; i < numThreads; i++) {
+        merging.add(executor.submit(
+            new Stripe(workers, i, minNGramCount)));
+      }
+      List<Stripe> stripes = getAll(merging);
+      long mergeTime = System.currentTimeMillis();
+
+      long posts = 0;
+      long headers = 0;
+      long stopWordCount = 0;
+      for (Worker worker : workers) {
+        posts += worker.posts;
+        headers += worker.headers;
+        stopWordCount += worker.stopWords;
+      }
+      long uniqueWords = 0;
+      long uniqueTags = 0;
+      long rows = 0;
+      for (Stripe stripe : stripes) {
+        uniqueWords += stripe.uniqueWords;
+        uniqueTags += stripe.uniqueTags;
+        rows += stripe.rows.length;
+      }
+      write(fs, outputPath, stripes);
+      PostMapReduce.writeCounters(fs, outputPath, uniqueWords, uniqueTags,
+                                  numBuckets, ngramSize);
+      fs.create(new Path(outputPath, "_SUCCESS"), true).close();
+      long endTime = System.currentTimeMillis();
+
+      System.out.printf("Threads = %d\n", numThreads);
+      System.out.printf("Chunks  = %d\n", chunks.size());
+      System.out.printf("Posts   = %d\n", posts);
+      System.out.printf("Rows    = %d\n", rows);
+      System.out.printf("UNIQUE_WORDS = %d\n", uniqueWords);
+      System.out.printf("UNIQUE_TAGS = %d\n", uniqueTags);
+      System.out.printf("Execution Time (ms) = %d\n", endTime - startTime);
+
+      Metrics metrics = new Metrics();
+      metrics.put("job.name", job.getJobName());
+      metrics.put("job.time.ms", endTime - startTime);
+      metrics.put("job.threads", numThreads);
+      metrics.put("job.chunks", chunks.size());
+      metrics.put("job.hash.buckets", numBuckets);
+      metrics.put("job.ngram.size", ngramSize);
+      metrics.put("map.posts", posts);
+      metrics.put("map.headers", headers);
+      metrics.put("map.stop.words", stopWordCount);
+      metrics.put("map.task.ms", countTime - startTime);
+      metrics.put("reduce.merge.ms", mergeTime - countTime);
+      metrics.put("reduce.write.ms", endTime - mergeTime);
+      metrics.put("model.rows", rows);
+      metrics.put("model.unique.words", uniqueWords);
+      metrics.put("model.unique.tags", uniqueTags);
+      metrics.write(conf, fs, new Path(outputPath, "metrics"));
+    } finally {
+      executor.shutdownNow();
+    }
+    return 0;
+  }
+
+  /** Waits for the tasks, and rethrows the first failure. */
+  private static <T> List<T> getAll(List<Future<T>> futures)
+      throws IOException, InterruptedException {
+    List<T> results = new ArrayList<T>();
+    for (Future<T> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof InterruptedException) {
+          throw (InterruptedException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+    return results;
+  }
+
+  /** Writes the rows of the stripes to "part-r-00000", in key order. */
+  private static void write(FileSystem fs, Path outputPath,
+                            List<Stripe> stripes) throws IOException {
+    // Each stripe is sorted, so the rows are merged from the heads of the
+    // stripes.
+    int[] next = new int[stripes.size()];
+    byte[] tab = {'\t'};
+    byte[] newline = {'\n'};
+    try (
+      OutputStream out =
+          new BufferedOutputStream(
+              fs.create(new Path(outputPath, "part-r-00000"), true));
+    ) {
+      while (true) {
+        int min = -1;
+        for (int i = 0; i < next.length; i++) {
+          Stripe stripe = stripes.get(i);
+          if (next[i] < stripe.keys.length && (min == -1 ||
+              stripe.keys[next[i]].compareTo(
+                  stripes.get(min).keys[next[min]]) < 0)) {
+            min = i;
+          }
+        }
+        if (min == -1) {
+          break;
+        }
+        Stripe stripe = stripes.get(min);
+        Text row = stripe.rows[next[min]++];
+        out.write(row.getBytes(), 0, row.getLength());
+        out.write(tab);
+        out.write(stripe.values[next[min] - 1].toString()
+            .getBytes(StandardCharsets.UTF_8));
+        out.write(newline);
+      }
+    }
+  }
+
+  /** Returns the stripe of the key among the given number of stripes. */
+  private static int getStripe(FeatureKey key, int numStripes) {
+    return (key.hashCode() & Integer.MAX_VALUE) % numStripes;
+  }
+
+  /**
+   * Counts the keys of the chunks taken by one thread, as {@link PostMapper}
+   * with in-mapper aggregation would, into one table per stripe.
+   */
+  private static class Worker implements Callable<Worker> {
+    Worker(Configuration conf, List<InputSplit> chunks,
+            AtomicInteger nextChunk, StopWords stopWords, int numStripes) {
+      this.conf = conf;
+      this.chunks = chunks;
+      this.nextChunk = nextChunk;
+      // The stop words are only read; the rest of the extractor is not
+      // thread-safe, so each thread has its own.
+      this.extractor = new FeatureExtractor(
+          stopWords, new Vocabulary(), FeatureHasher.get(conf),
+          NGrams.get(conf));
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      Map<FeatureKey, long[]>[] tables = new Map[numStripes];
+      for (int i = 0; i < numStripes; i++) {
+        tables[i] = new HashMap<FeatureKey, long[]>();
+      }
+      this.tables = tables;
+    }
+
+    @Override
+    public Worker call() throws IOException, InterruptedException {
+      FeatureExtractor.Output output = new FeatureExtractor.Output() {
+        @Override
+        public void write(FeatureKey key, int status, long count) {
+          Map<FeatureKey, long[]> table =
+              tables[getStripe(key, tables.length)];
+          long[] counts = table.get(key);
+          if (counts == null) {
+            counts = new long[StatusCounts.COLUMNS];
+            table.put(new FeatureKey(key), counts);
+          }
+          counts[StatusCounts.ALL] += count;
+          counts[status] += count;
+        }
+      };
+      int chunk;
+      while ((chunk = nextChunk.getAndIncrement()) < chunks.size()) {
+        TaskAttemptContext context =
+            new TaskAttemptContextImpl(conf, new TaskAttemptID());
+        try (RecordReader<LongWritable, Post> reader = new PostRecordReader()) {
+          reader.initialize(chunks.get(chunk), context);
+          while (reader.nextKeyValue()) {
+            Post post = reader.getCurrentValue();
+            // Every file of the data starts with a header.
+            if (post.isHeader()) {
+              headers++;
+              continue;
+            }
+            posts++;
+            extractor.extract(post, output);
+            stopWords += extractor.getStopWordsInBody() +
+                extractor.getStopWordsInTitle();
+          }
+        }
+      }
+      return this;
+    }
+
+    private final Configuration conf;
+    private final List<InputSplit> chunks;
+    private final AtomicInteger nextChunk;
+    private final FeatureExtractor extractor;
+    private final Map<FeatureKey, long[]>[] tables;
+    private long posts;
+    private long headers;
+    private long stopWords;
+  }
+
+  /**
+   * Merges one stripe of the tables of all the threads, and makes its rows,
+   * sorted by key, as {@link PostReducer} would.
+   */
+  private static class Stripe implements Callable<Stripe> {
+    Stripe(List<Worker> workers, int stripe, long minNGramCount) {
+      this.workers = workers;
+      this.stripe = stripe;
+      this.minNGramCount = minNGramCount;
+    }
+
+    @Override
+    public Stripe call() {
+      // The first table with the stripe is the merged one.
+      Map<FeatureKey, long[]> merged = null;
+      for (Worker worker : workers) {
+        Map<FeatureKey, long[]> table = worker.tables[stripe];
+        if (merged == null) {
+          merged = table;
+          continue;
+        }
+        for (Map.Entry<FeatureKey, long[]> entry : table.entrySet()) {
+          long[] counts = merged.get(entry.getKey());
+          if (counts == null) {
+            merged.put(entry.getKey(), entry.getValue());
+          } else {
+            long[] other = entry.getValue();
+            for (int i = 0; i < counts.length; i++) {
+              counts[i] += other[i];
+            }
+          }
+        }
+        table.clear();
+      }
+
+      FeatureKey[] sorted = merged.keySet().toArray(new FeatureKey[0]);
+      Arrays.sort(sorted);
+      List<FeatureKey> keyList = new ArrayList<FeatureKey>(sorted.length);
+      List<Text> rowList = new ArrayList<Text>(sorted.length);
+      List<StatusCounts> valueList = new ArrayList<StatusCounts>(sorted.length);
+      for (FeatureKey key : sorted) {
+        long[] counts = merged.get(key);
+        Text row = new Text();
+        key.toText(row, null);
+        if (counts[StatusCounts.ALL] < minNGramCount &&
+            key.getType() == FeatureKey.Type.WORD &&
+            PostReducer.isNGram(row)) {
+          continue;
+        }
+        StatusCounts value = new StatusCounts();
+        value.set(counts);
+        keyList.add(key);
+        rowList.add(row);
+        valueList.add(value);
+        if (key.getType().isWord()) {
+          uniqueWords++;
+        } else if (key.getType().isTag()) {
+          uniqueTags++;
+        }
+      }
+      merged.clear();
+      keys = keyList.toArray(new FeatureKey[0]);
+      rows = rowList.toArray(new Text[0]);
+      values = valueList.toArray(new StatusCounts[0]);
+      return this;
+    }
+
+    private final List<Worker> workers;
+    private final int stripe;
+    private final long minNGramCount;
+    private FeatureKey[] keys;
+    private Text[] rows;
+    private StatusCounts[] values;
+    private long uniqueWords;
+    private long uniqueTags;
+  }
+}
@@ -0,0 +1,284 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class looks up the parameters in a model file written by
+ * {@link ModelCompiler}.
+ *
+ * The file is memory mapped, and the keys are binary searched in place, so
+ * opening a model does not parse or copy anything onto the heap, and all the
+ * processes on a host that open the same file share its pages.
+ *
+ * Each key is stored with its whole row of counts, so one lookup gives the
+ * counts for every status. The file layout is:
+ *
+ *   int MAGIC, int VERSION, int number of columns,
+ *   int number of counters, {UTF name, long value} for each counter,
+ *   {int key length, UTF-8 key, long value for each column} for each key,
+ *   sorted by key,
+ *   int offset of each key entry, in the same order,
+ *   {int number of slots, int length of the prefix of the keys,
+ *   int offset of a term or 0 for each slot} for the words, and for the tags,
+ *   {int offset of the key entry, int hash, int columns that are not 0,
+ *   double log-likelihood for each column} for each term,
+ *   long offset of the first key offset, long offset of the terms,
+ *   int number of keys, int MAGIC.
+ *
+ * The terms are the words and tags that {@link ScoringModel} scores, hashed
+ * into open addressing tables, each with its Laplace smoothed log-likelihoods
+ * for every column, so that a model is scored in place too, see
+ * {@link Terms}.
+ */
+public class MappedModel implements Model {
+  public static final int MAGIC = 0x43525953;  // "CRYS"
+  public static final int VERSION = 3;
+
+  // Offset of the trailer from the end of the file.
+  static final int TRAILER_SIZE = 8 + 8 + 4 + 4;
+  // Size of a term, with a log-likelihood for each column.
+  static final int TERM_SIZE = 4 + 4 + 4 + 8 * StatusCounts.COLUMNS;
+
+  public MappedModel(String file) throws IOException {
+    try (
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      FileChannel channel = raf.getChannel();
+    ) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Model file is too large to be mapped: " + file);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    if (buffer.limit() < 8 + TRAILER_SIZE ||
+        buffer.getInt(0) != MAGIC ||
+        buffer.getInt(buffer.limit() - 4) != MAGIC) {
+      throw new IOException("Not a model file: " + file);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported model file version: " + file);
+    }
+
+    ByteBuffer header = buffer.duplicate();
+    header.position(8);
+    numColumns = header.getInt();
+    int numCounters = header.getInt();
+    for (int i = 0; i < numCounters; i++) {
+      String name = readUTF(header);
+      counters.put(name, header.getLong());
+    }
+
+    indexOffset = (int) buffer.getLong(buffer.limit() - TRAILER_SIZE);
+    termsOffset = (int) buffer.getLong(buffer.limit() - TRAILER_SIZE + 8);
+    numKeys = buffer.getInt(buffer.limit() - TRAILER_SIZE + 16);
+  }
+
+  private static String readUTF(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    // Counter names are plain ASCII, where modified UTF-8 is the same as UTF-8.
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Returns the offset of the entry of the key, or -1 if there is none. */
+  private int find(byte[] key) {
+    int low = 0;
+    int high = numKeys - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = buffer.getInt(indexOffset + 4 * mid);
+      int cmp = compare(entry, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  /** Compares the key of an entry with the given key, byte by byte. */
+  private int compare(int entry, byte[] key) {
+    int length = buffer.getInt(entry);
+    int n = Math.min(length, key.length);
+    for (int i = 0; i < n; i++) {
+      int a = buffer.get(entry + 4 + i) & 0xFF;
+      int b = key[i] & 0xFF;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return length - key.length;
+  }
+
+  @Override
+  public boolean get(String key, long[] counts) {
+    int entry = find(key.getBytes(StandardCharsets.UTF_8));
+    if (entry < 0) {
+      Arrays.fill(counts, 0);
+      return false;
+    }
+    int offset = entry + 4 + buffer.getInt(entry);
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = i < numColumns ? buffer.getLong(offset + 8 * i) : 0;
+    }
+    return true;
+  }
+
+  @Override
+  public Iterable<String> keys() {
+    return new Iterable<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return new Iterator<String>() {
+          @Override
+          public boolean hasNext() {
+            return next < numKeys;
+          }
+
+          @Override
+          public String next() {
+            if (next >= numKeys) {
+              throw new NoSuchElementException();
+            }
+            int entry = buffer.getInt(indexOffset + 4 * next++);
+            byte[] key = new byte[buffer.getInt(entry)];
+            ByteBuffer view = buffer.duplicate();
+            view.position(entry + 4);
+            view.get(key);
+            return new String(key, StandardCharsets.UTF_8);
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+
+          private int next = 0;
+        };
+      }
+    };
+  }
+
+  @Override
+  public long getCounter(String name) {
+    Long value = counters.get(name);
+    return value == null ? 0 : value;
+  }
+
+  /**
+   * Returns the words and tags of the model for {@link ScoringModel}, which
+   * keep the file mapped after the model is closed.
+   */
+  Terms getTerms() {
+    return new Terms(buffer, termsOffset);
+  }
+
+  /** Returns the number of keys in the model. */
+  public int size() {
+    return numKeys;
+  }
+
+  @Override
+  public void close() {
+    // A mapped buffer is unmapped when it is garbage collected.
+    buffer = null;
+  }
+
+  private ByteBuffer buffer;
+  private int numColumns;
+  private int indexOffset;
+  private int termsOffset;
+  private int numKeys;
+  private HashMap<String, Long> counters = new HashMap<String, Long>();
+
+  /**
+   * The words and tags of a model file, looked up in place. A term is found
+   * by its {@link TermIndex#hash} in the table of the words or of the tags,
+   * and compared with its key entry without the prefix, e.g. "/TAG/". Its id
+   * is the offset of the term, from which its log-likelihoods are read.
+   *
+   * The stop words of {@link ModelCompiler} are not in the table of the
+   * words, and the close reasons are added to closed, as
+   * {@link ScoringModel} loads them from a {@link Model}.
+   */
+  static class Terms {
+    Terms(ByteBuffer buffer, int wordTable) {
+      this.buffer = buffer;
+      this.wordTable = wordTable;
+      this.tagTable = wordTable + 8 + 4 * buffer.getInt(wordTable);
+    }
+
+    /**
+     * Returns the id of the UTF-8 word in bytes[start, end), or -1 if it is
+     * not in the model.
+     */
+    int getWord(byte[] bytes, int start, int end) {
+      return find(wordTable, bytes, start, end);
+    }
+
+    /**
+     * Returns the id of the UTF-8 tag in bytes[start, end), or -1 if it is
+     * not in the model.
+     */
+    int getTag(byte[] bytes, int start, int end) {
+      return find(tagTable, bytes, start, end);
+    }
+
+    /** Returns the bits of the columns whose counts of the term are not 0. */
+    int getColumns(int term) {
+      return buffer.getInt(term + 8);
+    }
+
+    /** Returns the log-likelihood of the term for the column. */
+    double getLog(int term, int column) {
+      return buffer.getDouble(term + 12 + 8 * column);
+    }
+
+    private int find(int table, byte[] bytes, int start, int end) {
+      int mask = buffer.getInt(table) - 1;
+      int prefix = buffer.getInt(table + 4);
+      int hash = TermIndex.hash(bytes, start, end);
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int term = buffer.getInt(table + 8 + 4 * slot);
+        if (term == 0) {
+          return -1;
+        }
+        if (buffer.getInt(term + 4) == hash &&
+            equals(buffer.getInt(term), prefix, bytes, start, end)) {
+          return term;
+        }
+      }
+    }
+
+    /** Whether the key of the entry is the prefix and bytes[start, end). */
+    private boolean equals(int entry, int prefix, byte[] bytes, int start,
+                           int end) {
+      int length = end - start;
+      if (buffer.getInt(entry) != prefix + length) {
+        return false;
+      }
+      int key = entry + 4 + prefix;
+      for (int i = 0; i < length; i++) {
+        if (buffer.get(key + i) != bytes[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private final ByteBuffer buffer;
+    private final int wordTable;
+    private final int tagTable;
+  }
+}
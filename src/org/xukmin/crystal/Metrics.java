@@ -0,0 +1,152 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * This class collects the metrics of a run as named values, e.g.
+ * "map.parse.ms", in the order they are added, and writes them next to the
+ * model as "<name>.json", one JSON object, and "<name>.csv", one
+ * "name,value" line each, so that runs can be compared by scripts.
+ *
+ * The metrics are collected by counters and timers that cost little enough
+ * to be always on: the fine-grained timers of {@link FeatureExtractor} only
+ * time one post in every {@link #TIMING_INTERVAL}. Only writing the files
+ * can be turned off, by {@link #ENABLED}.
+ */
+public class Metrics {
+  /** Whether to write the metrics files. */
+  public static final String ENABLED = "crystal.metrics";
+
+  /**
+   * {@link FeatureExtractor} times one post in every this many posts, or
+   * none with 0.
+   */
+  public static final String TIMING_INTERVAL =
+      "crystal.metrics.timing.interval";
+
+  public Metrics() {
+  }
+
+  public void put(String name, long value) {
+    values.put(name, value);
+  }
+
+  public void put(String name, double value) {
+    values.put(name, value);
+  }
+
+  public void put(String name, boolean value) {
+    values.put(name, value);
+  }
+
+  public void put(String name, String value) {
+    values.put(name, value);
+  }
+
+  /**
+   * Adds the count, mean, percentiles and maximum of the histogram, in
+   * microseconds, e.g. "predict.latency.p99.us".
+   */
+  public void put(String prefix, LatencyHistogram histogram) {
+    put(prefix + ".count", histogram.getCount());
+    put(prefix + ".mean.us", histogram.getMean() / 1000);
+    put(prefix + ".p50.us", histogram.getPercentile(0.5) / 1000.0);
+    put(prefix + ".p90.us", histogram.getPercentile(0.9) / 1000.0);
+    put(prefix + ".p99.us", histogram.getPercentile(0.99) / 1000.0);
+    put(prefix + ".p999.us", histogram.getPercentile(0.999) / 1000.0);
+    put(prefix + ".max.us", histogram.getMax() / 1000.0);
+  }
+
+  /** Returns the value of the metric, or null if there is none. */
+  public Object get(String name) {
+    return values.get(name);
+  }
+
+  public String toJson() {
+    StringBuilder json = new StringBuilder("{\n");
+    int i = 0;
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      Object value = entry.getValue();
+      json.append("  ").append(quoteJson(entry.getKey())).append(": ")
+          .append(value instanceof String ?
+              quoteJson((String) value) : format(value))
+          .append(++i < values.size() ? ",\n" : "\n");
+    }
+    return json.append("}\n").toString();
+  }
+
+  public String toCsv() {
+    StringBuilder csv = new StringBuilder("name,value\n");
+    for (Map.Entry<String, Object> entry : values.entrySet()) {
+      Object value = entry.getValue();
+      csv.append(entry.getKey()).append(',')
+          .append(value instanceof String ?
+              "\"" + ((String) value).replace("\"", "\"\"") + "\"" :
+              format(value))
+          .append('\n');
+    }
+    return csv.toString();
+  }
+
+  /** Formats a number or a boolean, with null for NaN and infinity. */
+  private static String format(Object value) {
+    if (value instanceof Double) {
+      double d = (Double) value;
+      return Double.isNaN(d) || Double.isInfinite(d) ?
+          "null" : String.format(Locale.ROOT, "%.3f", d);
+    }
+    return value.toString();
+  }
+
+  /**
+   * Writes the metrics to "<path>.json" and "<path>.csv", unless the metrics
+   * are disabled.
+   */
+  public void write(Configuration conf, FileSystem fs, Path path)
+      throws IOException {
+    if (!conf.getBoolean(ENABLED, true)) {
+      return;
+    }
+    write(fs, path.suffix(".json"), toJson());
+    write(fs, path.suffix(".csv"), toCsv());
+  }
+
+  private static void write(FileSystem fs, Path path, String text)
+      throws IOException {
+    try (
+      PrintWriter writer =
+          new PrintWriter(
+              new OutputStreamWriter(
+                  fs.create(path, true), StandardCharsets.UTF_8));
+    ) {
+      writer.print(text);
+    }
+  }
+
+  private static String quoteJson(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  private final Map<String, Object> values =
+      new LinkedHashMap<String, Object>();
+}
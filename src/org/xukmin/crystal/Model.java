@@ -0,0 +1,23 @@
+package org.xukmin.crystal;
+
+import java.io.Closeable;
+
+/**
+ * The parameters of the Naive Bayes model, i.e. the rows of counts of all the
+ * keys written by {@link PostReducer}, and the counters written by
+ * {@link PostMapReduce}.
+ */
+public interface Model extends Closeable {
+  /**
+   * Sets the counts to the row of the key, in the columns of
+   * {@link StatusCounts}, or to 0 if the model does not have the key, and
+   * returns whether it has. One lookup gives the counts for every status.
+   */
+  boolean get(String key, long[] counts);
+
+  /** Returns all the keys in the model, in no particular order. */
+  Iterable<String> keys();
+
+  /** Returns the value of the counter, or 0 if the model does not have it. */
+  long getCounter(String name);
+}
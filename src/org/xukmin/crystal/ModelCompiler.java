@@ -0,0 +1,371 @@
+package org.xukmin.crystal;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class compiles the output directory of {@link PostMapReduce} into a
+ * single model file for {@link MappedModel}.
+ *
+ * The part-r-* files are sorted by {@link FeatureKey} rather than by the
+ * strings of the keys, so all the keys are read and sorted in memory. The
+ * model is about the size of the part files, and is mapped whole by
+ * {@link MappedModel} anyway.
+ *
+ * The words and tags are also written with their log-likelihoods, as
+ * {@link ScoringModel} would compute them for every column, so that it scores
+ * them in the mapped file instead of loading every key onto the heap. The
+ * stop words of the {@link StopWords#FILE} are left out of the words then,
+ * which is the list the model is trained and used with.
+ */
+public class ModelCompiler extends Configured implements Tool {
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new ModelCompiler(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws IOException {
+    String input = args.length >= 1 ? args[0] : "output";
+    String output = args.length >= 2 ? args[1] : "model.bin";
+
+    long startTime = System.currentTimeMillis();
+    int numKeys = compile(getConf(), input, new Path(output));
+    long endTime = System.currentTimeMillis();
+
+    System.out.printf("Keys = %d\n", numKeys);
+    System.out.printf("Execution Time (ms) = %d\n", endTime - startTime);
+    return 0;
+  }
+
+  /**
+   * Compiles the model in the directory into the file, and returns the number
+   * of keys written.
+   */
+  public static int compile(Configuration conf, String directory, Path file)
+      throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    Map<String, Long> counters = readCounters(fs, directory);
+    StopWords stopWords = StopWords.load(fs);
+
+    // The reducers write the keys in the order of FeatureKey, not of the
+    // strings, so the keys of all the part files are sorted here.
+    List<Entry> entries = new ArrayList<Entry>();
+    for (FileStatus status :
+         fs.globStatus(new Path(directory + "/part-r-*"))) {
+      try (Cursor cursor = new Cursor(fs, status.getPath())) {
+        while (cursor.next()) {
+          entries.add(new Entry(cursor.key, cursor.counts));
+        }
+      }
+    }
+    Collections.sort(entries, ORDER);
+
+    int numKeys = 0;
+    List<Term> words = new ArrayList<Term>();
+    List<Term> tags = new ArrayList<Term>();
+    long[] numWordsStatus = new long[StatusCounts.COLUMNS];
+    long[] numTagsStatus = new long[StatusCounts.COLUMNS];
+    try (
+      DataOutputStream out =
+          new DataOutputStream(
+              new BufferedOutputStream(
+                  file.getFileSystem(conf).create(file, true)));
+    ) {
+      out.writeInt(MappedModel.MAGIC);
+      out.writeInt(MappedModel.VERSION);
+      out.writeInt(StatusCounts.COLUMNS);
+      out.writeInt(counters.size());
+      for (Map.Entry<String, Long> counter : counters.entrySet()) {
+        out.writeUTF(counter.getKey());
+        out.writeLong(counter.getValue());
+      }
+
+      long offset = out.size();
+      int[] offsets = new int[1024];
+      for (int i = 0; i < entries.size(); ) {
+        byte[] key = entries.get(i).key;
+        long[] counts = entries.get(i++).counts;
+        // The same key in two part files would only come from a custom
+        // partitioner; add the counts up as the reducer would.
+        while (i < entries.size() && compare(entries.get(i).key, key) == 0) {
+          long[] other = entries.get(i++).counts;
+          for (int j = 0; j < counts.length; j++) {
+            counts[j] += other[j];
+          }
+        }
+
+        if (offset > Integer.MAX_VALUE) {
+          throw new IOException("Model is too large to be mapped.");
+        }
+        if (numKeys == offsets.length) {
+          offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        offsets[numKeys++] = (int) offset;
+        out.writeInt(key.length);
+        out.write(key);
+        for (long count : counts) {
+          out.writeLong(count);
+        }
+        addTerm(key, (int) offset, counts, stopWords, words, tags,
+                numWordsStatus, numTagsStatus);
+        offset += 4 + key.length + 8 * counts.length;
+      }
+
+      for (int i = 0; i < numKeys; i++) {
+        out.writeInt(offsets[i]);
+      }
+      long termsOffset = offset + 4L * numKeys;
+      int wordSlots = getNumSlots(words.size());
+      int tagSlots = getNumSlots(tags.size());
+      long wordsOffset = termsOffset + 8 + 4L * wordSlots + 8 + 4L * tagSlots;
+      long tagsOffset =
+          wordsOffset + (long) MappedModel.TERM_SIZE * words.size();
+      if (tagsOffset + (long) MappedModel.TERM_SIZE * tags.size() >
+          Integer.MAX_VALUE) {
+        throw new IOException("Model is too large to be mapped.");
+      }
+      writeTable(out, words, 0, wordSlots, (int) wordsOffset);
+      writeTable(out, tags, TAG_PREFIX.length, tagSlots, (int) tagsOffset);
+      writeTerms(out, words, numWordsStatus,
+                 get(counters, PostReducer.Counters.UNIQUE_WORDS.name()));
+      writeTerms(out, tags, numTagsStatus,
+                 get(counters, PostReducer.Counters.UNIQUE_TAGS.name()));
+
+      out.writeLong(offset);
+      out.writeLong(termsOffset);
+      out.writeInt(numKeys);
+      out.writeInt(MappedModel.MAGIC);
+    }
+    return numKeys;
+  }
+
+  /**
+   * Adds the key to the words or the tags if it is one, as
+   * {@link ScoringModel} reads them, or keeps the totals of the words and the
+   * tags, with the close reasons added to closed.
+   */
+  private static void addTerm(byte[] key, int entry, long[] counts,
+                              StopWords stopWords, List<Term> words,
+                              List<Term> tags, long[] numWordsStatus,
+                              long[] numTagsStatus) {
+    if (Arrays.equals(key, WORDS)) {
+      System.arraycopy(counts, 0, numWordsStatus, 0, counts.length);
+      StatusCounts.addCloseReasons(numWordsStatus);
+    } else if (Arrays.equals(key, TAGS)) {
+      System.arraycopy(counts, 0, numTagsStatus, 0, counts.length);
+      StatusCounts.addCloseReasons(numTagsStatus);
+    } else if (startsWith(key, TAG_PREFIX)) {
+      tags.add(new Term(entry, TermIndex.hash(key, TAG_PREFIX.length,
+                                              key.length), counts));
+    } else if (indexOf(key, (byte) '/') == -1 &&
+               !stopWords.contains(new String(key, StandardCharsets.UTF_8))) {
+      words.add(new Term(entry, TermIndex.hash(key, 0, key.length), counts));
+    }
+  }
+
+  /** Returns the number of slots of a table of the terms, a power of 2. */
+  private static int getNumSlots(int numTerms) {
+    int numSlots = 16;
+    while (numSlots < 2 * numTerms) {
+      numSlots *= 2;
+    }
+    return numSlots;
+  }
+
+  /**
+   * Writes the table of the terms, which are written from the offset, with
+   * the length of the prefix of their keys.
+   */
+  private static void writeTable(DataOutputStream out, List<Term> terms,
+                                 int prefixLength, int numSlots, int offset)
+      throws IOException {
+    int[] slots = new int[numSlots];
+    int mask = numSlots - 1;
+    for (int i = 0; i < terms.size(); i++) {
+      int slot = terms.get(i).hash & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = offset + i * MappedModel.TERM_SIZE;
+    }
+    out.writeInt(numSlots);
+    out.writeInt(prefixLength);
+    for (int slot : slots) {
+      out.writeInt(slot);
+    }
+  }
+
+  /**
+   * Writes the terms with their Laplace smoothed log-likelihoods for every
+   * column, the same doubles as {@link ScoringModel} computes.
+   */
+  private static void writeTerms(DataOutputStream out, List<Term> terms,
+                                 long[] numTermsStatus, long numUniqueTerms)
+      throws IOException {
+    long[] counts = new long[StatusCounts.COLUMNS];
+    for (Term term : terms) {
+      System.arraycopy(term.counts, 0, counts, 0, counts.length);
+      StatusCounts.addCloseReasons(counts);
+      int columns = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] != 0) {
+          columns |= 1 << i;
+        }
+      }
+      out.writeInt(term.entry);
+      out.writeInt(term.hash);
+      out.writeInt(columns);
+      for (int i = 0; i < counts.length; i++) {
+        out.writeDouble(Math.log((counts[i] + 1.0) /
+                                 (numTermsStatus[i] + numUniqueTerms)));
+      }
+    }
+  }
+
+  private static long get(Map<String, Long> counters, String name) {
+    Long value = counters.get(name);
+    return value == null ? 0 : value;
+  }
+
+  /** Whether the key is the prefix followed by something. */
+  private static boolean startsWith(byte[] key, byte[] prefix) {
+    if (key.length <= prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (key[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] bytes, byte b) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Reads the counters file of the output directory of PostMapReduce. */
+  static Map<String, Long> readCounters(FileSystem fs, String directory)
+      throws IOException {
+    Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    try (
+      BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(
+                  fs.open(new Path(directory + "/counters"))));
+    ) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] kv = line.split("\t");
+        if (kv.length != 2) {
+          throw new IOException("Invalid line in counters file: " + line);
+        }
+        counters.put(kv[0], Long.valueOf(kv[1]));
+      }
+    }
+    return counters;
+  }
+
+  /** Compares keys the same way as {@link MappedModel} does. */
+  private static int compare(byte[] a, byte[] b) {
+    return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+  }
+
+  private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      return ModelCompiler.compare(a.key, b.key);
+    }
+  };
+
+  private static final byte[] WORDS = bytes("/WORDS");
+  private static final byte[] TAGS = bytes("/TAGS");
+  private static final byte[] TAG_PREFIX = bytes("/TAG/");
+
+  private static byte[] bytes(String key) {
+    return key.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** A word or tag, at the offset of its key entry. */
+  private static class Term {
+    Term(int entry, int hash, long[] counts) {
+      this.entry = entry;
+      this.hash = hash;
+      this.counts = counts;
+    }
+
+    final int entry;
+    final int hash;
+    final long[] counts;
+  }
+
+  private static class Entry {
+    Entry(byte[] key, long[] counts) {
+      this.key = key;
+      this.counts = counts;
+    }
+
+    final byte[] key;
+    final long[] counts;
+  }
+
+  /** Reads the rows of a part file one by one. */
+  private static class Cursor implements Closeable {
+    Cursor(FileSystem fs, Path path) throws IOException {
+      this.path = path;
+      reader = new BufferedReader(
+          new InputStreamReader(fs.open(path), StandardCharsets.UTF_8));
+    }
+
+    boolean next() throws IOException {
+      String line = reader.readLine();
+      if (line == null) {
+        return false;
+      }
+      counts = new long[StatusCounts.COLUMNS];
+      String row = StatusCounts.parse(line, counts);
+      if (row == null) {
+        throw new IOException("Invalid line in " + path + ": " + line);
+      }
+      key = row.getBytes(StandardCharsets.UTF_8);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+
+    byte[] key;
+    long[] counts;
+
+    private Path path;
+    private BufferedReader reader;
+  }
+}
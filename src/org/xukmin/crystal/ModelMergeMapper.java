@@ -0,0 +1,30 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+/**
+ * This class reads the rows of the models being merged by
+ * {@link ModelMerger}, e.g. "word\t12\t10\t2\t0\t0\t0\t0", and writes each
+ * feature with its counts.
+ */
+public class ModelMergeMapper
+    extends Mapper<LongWritable, Text, Text, StatusCounts> {
+  private long[] counts = new long[StatusCounts.COLUMNS];
+  private Text outputKey = new Text();
+  private StatusCounts outputValue = new StatusCounts();
+
+  @Override
+  public void map(LongWritable offset, Text line, Context context)
+      throws IOException, InterruptedException {
+    String key = StatusCounts.parse(line.toString(), counts);
+    if (key == null) {
+      throw new IOException("Invalid line in model: " + line);
+    }
+    outputKey.set(key);
+    outputValue.set(counts);
+    context.write(outputKey, outputValue);
+  }
+}
@@ -0,0 +1,85 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * This class adds up the counts of each feature over the models being merged
+ * by {@link ModelMerger}.
+ *
+ * Like {@link PostReducer}, it sees every feature of the merged model exactly
+ * once, so it recounts the unique words and tags in the UNIQUE_WORDS /
+ * UNIQUE_TAGS counters: a word that is new in the delta is counted, and a
+ * word in both models is counted once.
+ *
+ * With {@link NGrams}, the n-grams that occur fewer than
+ * {@link NGrams#MIN_COUNT} times in the merged counts are left out, and not
+ * counted, so that a delta trained without the minimum count merges into the
+ * same model as training on all the data at once. An n-gram already left out
+ * of a model has lost its counts there, though.
+ */
+public class ModelMergeReducer
+    extends Reducer<Text, StatusCounts, Text, StatusCounts> {
+  private static final byte[] TAG_PREFIX = bytes("/TAG/");
+  private static final byte[] WORD_BUCKET_PREFIX = bytes("/WORD_BUCKET/");
+  private static final byte[] TAG_BUCKET_PREFIX = bytes("/TAG_BUCKET/");
+
+  private long minNGramCount;
+  private Counter uniqueWordsCounter;
+  private Counter uniqueTagsCounter;
+  private StatusCounts result = new StatusCounts();
+
+  @Override
+  protected void setup(Context context)
+      throws IOException, InterruptedException {
+    super.setup(context);
+    if (NGrams.get(context.getConfiguration()) != null) {
+      minNGramCount = context.getConfiguration().getLong(NGrams.MIN_COUNT, 2);
+    }
+    uniqueWordsCounter = context.getCounter(PostReducer.Counters.UNIQUE_WORDS);
+    uniqueTagsCounter = context.getCounter(PostReducer.Counters.UNIQUE_TAGS);
+  }
+
+  @Override
+  public void reduce(Text key, Iterable<StatusCounts> values, Context context)
+      throws IOException, InterruptedException {
+    result.clear();
+    for (StatusCounts value : values) {
+      result.add(value);
+    }
+    // The words have no slash, and the tags are "/TAG/tag", as
+    // ScoringModel reads them. Hashed, they are buckets instead.
+    boolean isWord = key.find("/") == -1;
+    if (isWord && result.get(StatusCounts.ALL) < minNGramCount &&
+        PostReducer.isNGram(key)) {
+      return;
+    }
+    context.write(key, result);
+    if (startsWith(key, TAG_PREFIX) || startsWith(key, TAG_BUCKET_PREFIX)) {
+      uniqueTagsCounter.increment(1);
+    } else if (isWord || startsWith(key, WORD_BUCKET_PREFIX)) {
+      uniqueWordsCounter.increment(1);
+    }
+  }
+
+  /** Whether the key is the prefix followed by something. */
+  private static boolean startsWith(Text key, byte[] prefix) {
+    if (key.getLength() <= prefix.length) {
+      return false;
+    }
+    byte[] bytes = key.getBytes();
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] bytes(String prefix) {
+    return prefix.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,117 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class merges output directories of {@link PostMapReduce} into one, as
+ * if it had been trained on all their training data at once.
+ *
+ * The model is nothing but counts, so the counts of each feature are added
+ * up, and the UNIQUE_WORDS / UNIQUE_TAGS counters are recounted from the
+ * merged features by {@link ModelMergeReducer}, which also leaves out the
+ * n-grams that occur fewer than {@link NGrams#MIN_COUNT} times in all the
+ * models together, as {@link PostReducer} does. It reads the models, whose
+ * size is bounded by the number of features, and never the training data, so
+ * a model is kept up to date by training on the new posts only and merging.
+ *
+ * Usage: ModelMerger <output> <model> <model>...
+ */
+public class ModelMerger extends Configured implements Tool {
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new ModelMerger(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws IOException, ClassNotFoundException,
+      InterruptedException {
+    if (args.length < 2) {
+      System.err.println("Usage: ModelMerger <output> <model> <model>...");
+      return 1;
+    }
+    Path[] models = new Path[args.length - 1];
+    for (int i = 1; i < args.length; i++) {
+      models[i - 1] = new Path(args[i]);
+    }
+    return merge(getConf(), new Path(args[0]), models) ? 0 : 1;
+  }
+
+  /**
+   * Merges the models into the output directory, which is replaced if it
+   * exists, and returns whether the job succeeded.
+   */
+  public static boolean merge(Configuration conf, Path output, Path... models)
+      throws IOException, ClassNotFoundException, InterruptedException {
+    FileSystem fs = FileSystem.get(conf);
+    // Models only add up with the same buckets and the same n-grams.
+    long numBuckets = getSetting(fs, FeatureHasher.COUNTER, 0, models);
+    long ngramSize = getSetting(fs, NGrams.COUNTER, 1, models);
+    if (fs.exists(output)) {
+      fs.delete(output, true /* recursive */);
+    }
+
+    Job job = Job.getInstance(conf, "ModelMerger");
+    // The reducer applies the minimum count of the n-grams of the models.
+    job.getConfiguration().setInt(NGrams.SIZE, (int) ngramSize);
+    job.setJarByClass(ModelMerger.class);
+    job.setInputFormatClass(TextInputFormat.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+    for (Path model : models) {
+      FileInputFormat.addInputPath(job, new Path(model, "part-r-*"));
+    }
+    FileOutputFormat.setOutputPath(job, output);
+    job.setMapperClass(ModelMergeMapper.class);
+    // No combiner: a feature is in each model once, so there is little to
+    // combine, and the reducer has to see every feature to count it.
+    job.setReducerClass(ModelMergeReducer.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(StatusCounts.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(StatusCounts.class);
+
+    long startTime = System.currentTimeMillis();
+    boolean succeeded = job.waitForCompletion(true);
+    long endTime = System.currentTimeMillis();
+    System.out.printf("Merge Time (ms) = %d\n", endTime - startTime);
+
+    if (succeeded) {
+      PostMapReduce.writeCounters(fs, output, job.getCounters(),
+                                  (int) numBuckets, (int) ngramSize);
+    }
+    return succeeded;
+  }
+
+  /**
+   * Returns the counter of the models, or the default value if they do not
+   * have it, which has to be the same for all of them.
+   */
+  private static long getSetting(FileSystem fs, String name,
+                                 long defaultValue, Path... models)
+      throws IOException {
+    Long setting = null;
+    for (Path model : models) {
+      Long value = ModelCompiler.readCounters(fs, model.toString()).get(name);
+      if (value == null) {
+        value = defaultValue;
+      }
+      if (setting != null && !value.equals(setting)) {
+        throw new IOException("Cannot merge models with " + name + " " +
+                              setting + " and " + value + ".");
+      }
+      setting = value;
+    }
+    return setting;
+  }
+}
@@ -0,0 +1,378 @@
+package org.xukmin.crystal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class prunes the words and tags that tell little about the status of
+ * a post from the output directory of {@link PostMapReduce}, and writes the
+ * rest as another output directory, with UNIQUE_WORDS / UNIQUE_TAGS
+ * recounted for the smoothing.
+ *
+ * A word or tag is kept if it occurs at least {@link #MIN_COUNT} times, and
+ * if its {@link #SCORE} is at least {@link #THRESHOLD} and among the
+ * {@link #TOP} best of its kind. The scores are:
+ *
+ * - count: the number of occurrences.
+ * - chi2: the chi-square statistic of the occurrences of the term against
+ *   the occurrences of all the words (or tags), over the statuses.
+ * - mi: the mutual information between the term being the word (or tag) and
+ *   the status.
+ *
+ * The other features are always kept, and so are the totals, so a pruned
+ * term is scored as an unknown term. The part files are streamed one row at
+ * a time; with {@link #TOP}, they are read twice, first to find the score of
+ * the last term kept.
+ *
+ * With test data, it also reports the number of rows, size, load time,
+ * prediction throughput, accuracy and F-measure of both models.
+ *
+ * Usage: ModelPruner <model> <output> [<test data>]
+ */
+public class ModelPruner extends Configured implements Tool {
+  /** Minimum number of occurrences of the words and tags kept. */
+  public static final String MIN_COUNT = "crystal.prune.min.count";
+  /** Score of the words and tags: count, chi2 or mi. */
+  public static final String SCORE = "crystal.prune.score";
+  /** Minimum score of the words and tags kept. */
+  public static final String THRESHOLD = "crystal.prune.threshold";
+  /** Maximum number of words, and of tags, kept, or 0 for no maximum. */
+  public static final String TOP = "crystal.prune.top";
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new ModelPruner(), args);
+    System.exit(res);
+  }
+
+  private static final String TAG_PREFIX = "/TAG/";
+  private static final String TAG_BUCKET_PREFIX = "/TAG_BUCKET/";
+  private static final String WORD_BUCKET_PREFIX = "/WORD_BUCKET/";
+  private static final int OTHER = 0;
+  private static final int WORD = 1;
+  private static final int TAG = 2;
+
+  @Override
+  public int run(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: ModelPruner <model> <output> [<test data>]");
+      return 1;
+    }
+    String input = args[0];
+    String output = args[1];
+    minCount = getConf().getLong(MIN_COUNT, 2);
+    score = getConf().get(SCORE, "count");
+    if (!Arrays.asList("count", "chi2", "mi").contains(score)) {
+      throw new IllegalArgumentException("Unknown score: " + score);
+    }
+    threshold = getConf().getDouble(THRESHOLD, Double.NEGATIVE_INFINITY);
+    int top = getConf().getInt(TOP, 0);
+    FileSystem fs = FileSystem.get(getConf());
+
+    long startTime = System.currentTimeMillis();
+    Map<String, Long> counters = ModelCompiler.readCounters(fs, input);
+    FileStatus[] parts = fs.globStatus(new Path(input + "/part-r-*"));
+    long[] counts = new long[StatusCounts.COLUMNS];
+    readTotals(fs, parts, counts);
+
+    // Raise the thresholds to the scores of the last terms kept.
+    wordThreshold = threshold;
+    tagThreshold = threshold;
+    if (top > 0) {
+      double[][] scores = {new double[1024], new double[1024]};
+      int[] numScores = new int[2];
+      for (FileStatus part : parts) {
+        try (BufferedReader reader = open(fs, part.getPath())) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            String key = parse(line, part.getPath(), counts);
+            int kind = getKind(key);
+            if (kind == OTHER || counts[StatusCounts.ALL] < minCount) {
+              continue;
+            }
+            double s = score(kind, counts);
+            if (s < threshold) {
+              continue;
+            }
+            int i = kind - 1;
+            if (numScores[i] == scores[i].length) {
+              scores[i] = Arrays.copyOf(scores[i], 2 * numScores[i]);
+            }
+            scores[i][numScores[i]++] = s;
+          }
+        }
+      }
+      wordThreshold = Math.max(threshold, cutoff(scores[0], numScores[0], top));
+      tagThreshold = Math.max(threshold, cutoff(scores[1], numScores[1], top));
+    }
+
+    Path outputPath = new Path(output);
+    if (fs.exists(outputPath)) {
+      fs.delete(outputPath, true /* recursive */);
+    }
+    long numRows = 0;
+    long numKept = 0;
+    long numWords = 0;
+    long numTags = 0;
+    StatusCounts value = new StatusCounts();
+    for (FileStatus part : parts) {
+      try (
+        BufferedReader reader = open(fs, part.getPath());
+        PrintWriter writer =
+            new PrintWriter(
+                new OutputStreamWriter(
+                    fs.create(new Path(outputPath, part.getPath().getName())),
+                    StandardCharsets.UTF_8));
+      ) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          numRows++;
+          String key = parse(line, part.getPath(), counts);
+          int kind = getKind(key);
+          if (kind != OTHER && !keep(kind, counts)) {
+            continue;
+          }
+          numKept++;
+          if (kind == WORD) {
+            numWords++;
+          } else if (kind == TAG) {
+            numTags++;
+          }
+          value.set(counts);
+          writer.printf("%s\t%s\n", key, value);
+        }
+      }
+    }
+
+    counters.put(PostReducer.Counters.UNIQUE_WORDS.name(), numWords);
+    counters.put(PostReducer.Counters.UNIQUE_TAGS.name(), numTags);
+    try (
+      PrintWriter writer =
+          new PrintWriter(
+              new OutputStreamWriter(
+                  fs.create(new Path(outputPath, "counters"), true)));
+    ) {
+      for (Map.Entry<String, Long> counter : counters.entrySet()) {
+        writer.printf("%s\t%d\n", counter.getKey(), counter.getValue());
+      }
+    }
+    fs.create(new Path(outputPath, "_SUCCESS"), true).close();
+    long endTime = System.currentTimeMillis();
+
+    System.out.printf("Rows Kept   = %d / %d\n", numKept, numRows);
+    System.out.printf("UNIQUE_WORDS = %d\n", numWords);
+    System.out.printf("UNIQUE_TAGS  = %d\n", numTags);
+    System.out.printf("Execution Time (ms) = %d\n", endTime - startTime);
+
+    if (args.length >= 3) {
+      System.out.printf(REPORT_FORMAT, "Model", "Rows", "Size (MB)",
+                        "Load (ms)", "Posts/s", "Accuracy", "F-measure");
+      report(fs, "original", input, numRows, args[2]);
+      report(fs, "pruned", output, numKept, args[2]);
+    }
+    return 0;
+  }
+
+  private static final String REPORT_FORMAT =
+      "%-8s %10s %10s %10s %10s %10s %10s\n";
+
+  /**
+   * Loads the model and predicts the test data with it, twice so that the
+   * second runs are warmed up, and prints the costs and the quality.
+   */
+  private void report(FileSystem fs, String name, String model, long numRows,
+                      String testData) throws IOException {
+    long size = getModelSize(fs, model);
+    new PostPredictor(getConf(), model).close();
+    long start = System.nanoTime();
+    long loadTime;
+    Evaluation evaluation;
+    double seconds;
+    try (PostPredictor predictor = new PostPredictor(getConf(), model)) {
+      loadTime = System.nanoTime() - start;
+      predictor.evaluate(testData);
+      start = System.nanoTime();
+      evaluation = predictor.evaluate(testData);
+      seconds = (System.nanoTime() - start) / 1e9;
+    }
+    System.out.printf(REPORT_FORMAT, name, numRows,
+                      String.format("%.2f", size / 1048576.0),
+                      loadTime / 1000000,
+                      String.format("%.0f", evaluation.getNumPosts() / seconds),
+                      String.format("%.3f%%", 100 * evaluation.getAccuracy()),
+                      String.format("%.3f%%", 100 * evaluation.getFMeasure()));
+  }
+
+  /**
+   * Returns the size of the model in the output directory, i.e. of its
+   * part-r-* files and counters file, without the metrics or a model file
+   * compiled into it.
+   */
+  private static long getModelSize(FileSystem fs, String model)
+      throws IOException {
+    long size = fs.getFileStatus(new Path(model, "counters")).getLen();
+    for (FileStatus part : fs.globStatus(new Path(model, "part-r-*"))) {
+      size += part.getLen();
+    }
+    return size;
+  }
+
+  /** Reads the /WORDS and /TAGS rows, the totals the terms are scored by. */
+  private void readTotals(FileSystem fs, FileStatus[] parts, long[] counts)
+      throws IOException {
+    for (FileStatus part : parts) {
+      try (BufferedReader reader = open(fs, part.getPath())) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String key = parse(line, part.getPath(), counts);
+          if (key.equals("/WORDS")) {
+            wordTotals = counts.clone();
+          } else if (key.equals("/TAGS")) {
+            tagTotals = counts.clone();
+          }
+        }
+      }
+    }
+    if (wordTotals == null || tagTotals == null) {
+      throw new IOException("Model has no /WORDS or /TAGS row.");
+    }
+  }
+
+  private static BufferedReader open(FileSystem fs, Path path)
+      throws IOException {
+    return new BufferedReader(
+        new InputStreamReader(fs.open(path), StandardCharsets.UTF_8));
+  }
+
+  private static String parse(String line, Path path, long[] counts)
+      throws IOException {
+    String key = StatusCounts.parse(line, counts);
+    if (key == null) {
+      throw new IOException("Invalid line in " + path + ": " + line);
+    }
+    return key;
+  }
+
+  /**
+   * Returns whether the key is a word (no slash), a tag ("/TAG/tag"), or
+   * one of their buckets if they are hashed, as {@link ScoringModel} reads
+   * them, or any other feature.
+   */
+  private static int getKind(String key) {
+    if (key.indexOf('/') == -1 ||
+        (key.startsWith(WORD_BUCKET_PREFIX) &&
+         key.length() > WORD_BUCKET_PREFIX.length())) {
+      return WORD;
+    }
+    if ((key.startsWith(TAG_PREFIX) && key.length() > TAG_PREFIX.length()) ||
+        (key.startsWith(TAG_BUCKET_PREFIX) &&
+         key.length() > TAG_BUCKET_PREFIX.length())) {
+      return TAG;
+    }
+    return OTHER;
+  }
+
+  private boolean keep(int kind, long[] counts) {
+    return counts[StatusCounts.ALL] >= minCount &&
+        score(kind, counts) >= (kind == WORD ? wordThreshold : tagThreshold);
+  }
+
+  private double score(int kind, long[] counts) {
+    if (score.equals("count")) {
+      return counts[StatusCounts.ALL];
+    }
+    long[] totals = kind == WORD ? wordTotals : tagTotals;
+    return score.equals("chi2") ?
+        chiSquare(counts, totals) : mutualInformation(counts, totals);
+  }
+
+  /**
+   * Returns the chi-square statistic of the 2 x statuses table of the
+   * occurrences of the term, and of the other terms, in each status.
+   */
+  static double chiSquare(long[] counts, long[] totals) {
+    double n = 0;
+    double a = 0;
+    for (int i = 1; i < StatusCounts.COLUMNS; i++) {
+      n += totals[i];
+      a += counts[i];
+    }
+    if (a <= 0 || a >= n) {
+      return 0;
+    }
+    double chiSquare = 0;
+    for (int i = 1; i < StatusCounts.COLUMNS; i++) {
+      if (totals[i] == 0) {
+        continue;
+      }
+      double expected = a * totals[i] / n;
+      double otherExpected = (n - a) * totals[i] / n;
+      double other = totals[i] - counts[i];
+      chiSquare += (counts[i] - expected) * (counts[i] - expected) / expected +
+          (other - otherExpected) * (other - otherExpected) / otherExpected;
+    }
+    return chiSquare;
+  }
+
+  /**
+   * Returns the mutual information, in nats, between an occurrence being the
+   * term and the status of the post.
+   */
+  static double mutualInformation(long[] counts, long[] totals) {
+    double n = 0;
+    double a = 0;
+    for (int i = 1; i < StatusCounts.COLUMNS; i++) {
+      n += totals[i];
+      a += counts[i];
+    }
+    if (a <= 0 || a >= n) {
+      return 0;
+    }
+    double mi = 0;
+    for (int i = 1; i < StatusCounts.COLUMNS; i++) {
+      if (totals[i] == 0) {
+        continue;
+      }
+      double status = totals[i] / n;
+      double term = counts[i] / n;
+      double other = (totals[i] - counts[i]) / n;
+      if (term > 0) {
+        mi += term * Math.log(term / (a / n * status));
+      }
+      if (other > 0) {
+        mi += other * Math.log(other / ((n - a) / n * status));
+      }
+    }
+    return mi;
+  }
+
+  /** Returns the top-th highest of the scores, or -infinity if fewer. */
+  private static double cutoff(double[] scores, int numScores, int top) {
+    if (numScores <= top) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    double[] sorted = Arrays.copyOf(scores, numScores);
+    Arrays.sort(sorted);
+    return sorted[numScores - top];
+  }
+
+  private long minCount;
+  private String score;
+  private double threshold;
+  private double wordThreshold;
+  private double tagThreshold;
+  private long[] wordTotals;
+  private long[] tagTotals;
+}
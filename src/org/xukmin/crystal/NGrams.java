@@ -0,0 +1,112 @@
+package org.xukmin.crystal;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * This class makes the n-grams of a text as its words come out of a
+ * {@link Tokenizer}: after each word, the 2-gram up to the n-gram that end
+ * with it, e.g. "hash map" and "java hash map", as the words joined by single
+ * spaces. The caller leaves out the stop words first, so the n-grams are made
+ * of the words that are features themselves.
+ *
+ * With {@link #SIZE} set, {@link FeatureExtractor} counts the n-grams as words
+ * when training, the size is written to the counters of the model as
+ * {@link #COUNTER}, and {@link PostPredictor} makes the same n-grams when
+ * predicting. N-grams never span the title and the body.
+ *
+ * The previous words are kept as offsets into the bytes of the tokenizer,
+ * which stay the same until it is reset, and an n-gram is copied into a
+ * buffer owned by this class, so no string is made. An NGrams is not
+ * thread-safe.
+ */
+public class NGrams {
+  /** Largest n of the n-grams of words, 1 for the words only. */
+  public static final String SIZE = "crystal.ngram.size";
+
+  /**
+   * Minimum number of occurrences of an n-gram written to the model by
+   * {@link PostReducer}, unless the words are hashed.
+   */
+  public static final String MIN_COUNT = "crystal.ngram.min.count";
+
+  /** Name of the n of the n-grams in the counters of the model. */
+  public static final String COUNTER = "NGRAM_SIZE";
+
+  public NGrams(int size) {
+    if (size < 2) {
+      throw new IllegalArgumentException("N-gram size must be at least 2: " +
+                                         size);
+    }
+    this.size = size;
+    this.bytes = new byte[size][];
+    this.starts = new int[size];
+    this.ends = new int[size];
+  }
+
+  /** Returns the n-grams of the configuration, or null for words only. */
+  public static NGrams get(Configuration conf) {
+    int size = conf.getInt(SIZE, 1);
+    return size > 1 ? new NGrams(size) : null;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /** Starts a new text. */
+  public void reset() {
+    numWords = 0;
+  }
+
+  /**
+   * Adds the word in bytes[start, end), which has to stay unchanged until the
+   * next reset(), and returns the number of n-grams that end with it.
+   */
+  public int add(byte[] bytes, int start, int end) {
+    int i = numWords % size;
+    this.bytes[i] = bytes;
+    starts[i] = start;
+    ends[i] = end;
+    numWords++;
+    return Math.min(numWords, size) - 1;
+  }
+
+  /**
+   * Copies the (i + 2)-gram that ends with the last word into
+   * {@link #getBytes()}, where i is less than the result of add(), and
+   * returns its length.
+   */
+  public int get(int i) {
+    int n = i + 2;
+    int length = n - 1;
+    for (int j = numWords - n; j < numWords; j++) {
+      length += ends[j % size] - starts[j % size];
+    }
+    if (buffer.length < length) {
+      buffer = new byte[Math.max(length, 2 * buffer.length)];
+    }
+    int position = 0;
+    for (int j = numWords - n; j < numWords; j++) {
+      int k = j % size;
+      if (position > 0) {
+        buffer[position++] = ' ';
+      }
+      int wordLength = ends[k] - starts[k];
+      System.arraycopy(bytes[k], starts[k], buffer, position, wordLength);
+      position += wordLength;
+    }
+    return length;
+  }
+
+  /** Returns the buffer of the last n-gram. */
+  public byte[] getBytes() {
+    return buffer;
+  }
+
+  private final int size;
+  private final byte[][] bytes;
+  private final int[] starts;
+  private final int[] ends;
+  private byte[] buffer = new byte[64];
+  private int numWords;
+}
@@ -5,81 +5,313 @@
 
 package org.xukmin.crystal;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.TimeZone;
+import org.apache.hadoop.io.Text;
 
 /**
  * This class represents a post (question) on Stack Overflow.
  *
- * It parses a line from CSV and creates an ArrayList internally to hold the
- * post data.
+ * It parses a line from CSV by recording where each column starts and ends in
+ * the UTF-8 bytes of the line, and only decodes a column when it is accessed.
+ * A Post can be reused for many lines with set(), so that a task needs only
+ * one of them. The bytes of the line are not copied, and must not change
+ * until the next set().
+ *
+ * A Post is not thread-safe, but different threads can use different posts.
  */
 public class Post {
+  public Post() {
+  }
+
   public Post(String line) {
-    post = new ArrayList<String>(Arrays.asList(line.split(",")));
-    if (post.size() != NUM_COLUMNS) {
+    set(line);
+  }
+
+  /** Parses the line. The bytes of the Text are used in place. */
+  public void set(Text line) {
+    set(line.getBytes(), 0, line.getLength());
+  }
+
+  /** Parses the line, encoded into a new byte array. */
+  public void set(String line) {
+    byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+    set(encoded, 0, encoded.length);
+  }
+
+  /**
+   * Parses the UTF-8 line in bytes[start, end).
+   *
+   * Like `line.split(",")`, trailing empty columns are ignored, and the line
+   * must have exactly NUM_COLUMNS columns otherwise.
+   */
+  public void set(byte[] bytes, int start, int end) {
+    this.bytes = bytes;
+    postId = null;
+    title = null;
+    body = null;
+    status = null;
+
+    int column = 0;
+    int numColumns = 0;
+    int columnStart = start;
+    for (int i = start; i <= end; i++) {
+      if (i < end && bytes[i] != ',') {
+        continue;
+      }
+      if (i > columnStart) {
+        if (column >= NUM_COLUMNS) {
+          throw new IllegalArgumentException();
+        }
+        numColumns = column + 1;
+      }
+      if (column < NUM_COLUMNS) {
+        starts[column] = columnStart;
+        ends[column] = i;
+      }
+      column++;
+      columnStart = i + 1;
+    }
+    if (numColumns != NUM_COLUMNS) {
       throw new IllegalArgumentException();
     }
+
+    numTags = 0;
+    for (int i = TAG1; i <= TAG5; i++) {
+      if (ends[i] > starts[i]) {
+        tagColumns[numTags++] = i;
+      }
+    }
   }
 
-  long getPostCreationDate() {
-    try {
-      return format.parse(post.get(POST_CREATION_DATE)).getTime();
-    } catch (ParseException e) {
-      e.printStackTrace();
+  /** Returns whether this is the header line of the CSV file. */
+  boolean isHeader() {
+    return ends[POST_ID] > starts[POST_ID] &&
+        !isDigit(bytes[starts[POST_ID]]);
+  }
+
+  String getPostId() {
+    if (postId == null) {
+      postId = decode(POST_ID);
     }
-    return 0;
+    return postId;
+  }
+
+  long getPostCreationDate() {
+    return parseDate(POST_CREATION_DATE);
   }
 
   long getOwnerCreationDate() {
-    try {
-      return format.parse(post.get(OWNER_CREATION_DATE)).getTime();
-    } catch (ParseException e) {
-      e.printStackTrace();
-    }
-    return 0;
+    return parseDate(OWNER_CREATION_DATE);
   }
 
   int getReputationAtPostCreation() {
-    return Integer.valueOf(post.get(REPUTATION_AT_POST_CREATION));
+    return parseInt(REPUTATION_AT_POST_CREATION);
   }
 
   int getOwnerUndeletedAnswerCountAtPostTime() {
-    return Integer.valueOf(post.get(OWNER_UNDELETED_ANSWER_COUNT_AT_POST_TIME));
+    return parseInt(OWNER_UNDELETED_ANSWER_COUNT_AT_POST_TIME);
   }
 
   String getTitle() {
-    return post.get(TITLE);
+    if (title == null) {
+      title = decode(TITLE);
+    }
+    return title;
   }
 
   String getBody() {
-    return post.get(BODY);
+    if (body == null) {
+      body = decode(BODY);
+    }
+    return body;
+  }
+
+  /** Starts tokenizing the title in place. */
+  void tokenizeTitle(Tokenizer tokenizer) {
+    tokenizer.reset(bytes, starts[TITLE], ends[TITLE]);
+  }
+
+  /** Starts tokenizing the body in place. */
+  void tokenizeBody(Tokenizer tokenizer) {
+    tokenizer.reset(bytes, starts[BODY], ends[BODY]);
   }
 
   List<String> getTags() {
-    List<String> tags = new ArrayList<String>(post.subList(TAG1, TAG5 + 1));
-    tags.removeAll(Collections.singleton(""));
+    List<String> tags = new ArrayList<String>(numTags);
+    for (int i = 0; i < numTags; i++) {
+      tags.add(decode(tagColumns[i]));
+    }
     return tags;
   }
 
+  /** Returns the number of non-empty tags. */
+  int getNumTags() {
+    return numTags;
+  }
+
+  /** The i-th non-empty tag is in getBytes()[getTagStart(i), getTagEnd(i)). */
+  int getTagStart(int i) {
+    return starts[tagColumns[i]];
+  }
+
+  int getTagEnd(int i) {
+    return ends[tagColumns[i]];
+  }
+
+  /** Returns the bytes of the line, for the ranges of the tags. */
+  byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the status of the post, one of {@link StatusCounts#STATUSES}:
+   * "open", the close reason, or "closed" for any other status.
+   */
   String getStatus() {
-    // return post.get(STATUS);
-    return post.get(STATUS).equals("open") ? "open" : "closed";
+    if (status == null) {
+      status = "closed";
+      for (int i = 0; i < STATUSES.length; i++) {
+        if (equals(STATUS, STATUSES[i])) {
+          status = StatusCounts.STATUSES[i];
+          break;
+        }
+      }
+    }
+    return status;
   }
 
-  private List<String> post;
+  private String decode(int column) {
+    return new String(bytes, starts[column], ends[column] - starts[column],
+                      StandardCharsets.UTF_8);
+  }
+
+  private boolean equals(int column, byte[] value) {
+    if (ends[column] - starts[column] != value.length) {
+      return false;
+    }
+    for (int i = 0; i < value.length; i++) {
+      if (bytes[starts[column] + i] != value[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-  private static final String DELIMITERS = "[\\p{Punct}\\s]+";
+  /** Parses the column as a decimal int, like Integer.valueOf(). */
+  private int parseInt(int column) {
+    int i = starts[column];
+    int end = ends[column];
+    boolean negative = false;
+    if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+      negative = bytes[i] == '-';
+      i++;
+    }
+    if (i == end) {
+      throw new NumberFormatException(decode(column));
+    }
+    // Accumulate negatively, so that Integer.MIN_VALUE does not overflow.
+    long value = 0;
+    for (; i < end; i++) {
+      if (!isDigit(bytes[i])) {
+        throw new NumberFormatException(decode(column));
+      }
+      value = value * 10 - (bytes[i] - '0');
+      if (value < Integer.MIN_VALUE) {
+        throw new NumberFormatException(decode(column));
+      }
+    }
+    if (!negative && value == Integer.MIN_VALUE) {
+      throw new NumberFormatException(decode(column));
+    }
+    return (int) (negative ? value : -value);
+  }
 
-  private static final DateFormat format =
-      new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
+  /**
+   * Parses a "MM/dd/yyyy HH:mm:ss" date in the default time zone into
+   * milliseconds since the epoch, like a lenient SimpleDateFormat, or returns
+   * 0 if the date is invalid.
+   */
+  private long parseDate(int column) {
+    int[] fields = dateFields;
+    int i = starts[column];
+    int end = ends[column];
+    for (int field = 0; field < fields.length; field++) {
+      if (field > 0) {
+        if (i == end || bytes[i] != DATE_SEPARATORS[field - 1]) {
+          return 0;
+        }
+        i++;
+      }
+      int numDigits = 0;
+      int value = 0;
+      while (i < end && isDigit(bytes[i]) && numDigits < 9) {
+        value = value * 10 + (bytes[i++] - '0');
+        numDigits++;
+      }
+      if (numDigits == 0) {
+        return 0;
+      }
+      fields[field] = value;
+    }
+
+    long month = fields[0] - 1;
+    long year = fields[2] + Math.floorDiv(month, 12);
+    month = Math.floorMod(month, 12);
+    long days = daysFromCivil(year, (int) month + 1) + fields[1] - 1;
+    long local = days * 86400000L + fields[3] * 3600000L +
+        fields[4] * 60000L + fields[5] * 1000L;
+    int offset = TIME_ZONE.getOffset(local - TIME_ZONE.getRawOffset());
+    // A local time skipped by a daylight saving transition is read as
+    // standard time, the same as the lenient SimpleDateFormat.
+    offset = TIME_ZONE.getOffset(local - offset);
+    return local - offset;
+  }
+
+  /** Returns the days from 1970-01-01 to the first day of the month. */
+  private static long daysFromCivil(long year, int month) {
+    // Howard Hinnant's algorithm, for the proleptic Gregorian calendar.
+    year -= month <= 2 ? 1 : 0;
+    long era = Math.floorDiv(year, 400);
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5;
+    long dayOfEra =
+        yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private byte[] bytes;
+  private int[] starts = new int[NUM_COLUMNS];
+  private int[] ends = new int[NUM_COLUMNS];
+  private int[] tagColumns = new int[TAG5 - TAG1 + 1];
+  private int numTags;
+  private int[] dateFields = new int[6];
+
+  // Columns decoded so far.
+  private String postId;
+  private String title;
+  private String body;
+  private String status;
+
+  private static final byte[][] STATUSES =
+      new byte[StatusCounts.STATUSES.length][];
+  static {
+    for (int i = 0; i < STATUSES.length; i++) {
+      STATUSES[i] = StatusCounts.STATUSES[i].getBytes(StandardCharsets.UTF_8);
+    }
+  }
+  private static final byte[] DATE_SEPARATORS = "// ::".getBytes(
+      StandardCharsets.UTF_8);
+
+  // Cloned once, as TimeZone.getDefault() returns a new copy every time.
+  private static final TimeZone TIME_ZONE = TimeZone.getDefault();
 
-  @SuppressWarnings("unused")
   private static final int POST_ID = 0;
   private static final int POST_CREATION_DATE = 1;
   @SuppressWarnings("unused")
@@ -90,8 +322,11 @@ public class Post {
   private static final int TITLE = 6;
   private static final int BODY = 7;
   private static final int TAG1 = 8;
+  @SuppressWarnings("unused")
   private static final int TAG2 = 9;
+  @SuppressWarnings("unused")
   private static final int TAG3 = 10;
+  @SuppressWarnings("unused")
   private static final int TAG4 = 11;
   private static final int TAG5 = 12;
   @SuppressWarnings("unused")
@@ -0,0 +1,28 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * This class sums up the partial counts for each key on the map side, column
+ * by column.
+ *
+ * Unlike {@link PostReducer}, it does not touch the UNIQUE_WORDS / UNIQUE_TAGS
+ * counters: the framework may run it zero, one or many times for a key, while
+ * the reducer sees every key exactly once.
+ */
+public class PostCombiner
+    extends Reducer<FeatureKey, StatusCounts, FeatureKey, StatusCounts> {
+  private StatusCounts result = new StatusCounts();
+
+  @Override
+  public void reduce(FeatureKey key, Iterable<StatusCounts> values,
+                     Context context)
+      throws IOException, InterruptedException {
+    result.clear();
+    for (StatusCounts value : values) {
+      result.add(value);
+    }
+    context.write(key, result);
+  }
+}
@@ -0,0 +1,32 @@
+package org.xukmin.crystal;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * This class reads the posts from the CSV files of Stack Overflow as they are,
+ * with quoted columns spanning multiple lines, so they do not need to be
+ * converted by {@link CSVPreprocessor} first. Files already converted are read
+ * the same way.
+ *
+ * Uncompressed files are split, see {@link PostRecordReader}.
+ */
+public class PostInputFormat extends FileInputFormat<LongWritable, Post> {
+  @Override
+  public RecordReader<LongWritable, Post> createRecordReader(
+      InputSplit split, TaskAttemptContext context) {
+    return new PostRecordReader();
+  }
+
+  @Override
+  protected boolean isSplitable(JobContext context, Path file) {
+    return new CompressionCodecFactory(context.getConfiguration())
+        .getCodec(file) == null;
+  }
+}
@@ -8,16 +8,16 @@ package org.xukmin.crystal;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.Map;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -26,8 +26,28 @@ import org.apache.hadoop.util.ToolRunner;
 /**
  * This class reads the training data set and builds the Naive Bayes model by
  * calculating all the parameters in the model.
+ *
+ * The {@link Metrics} of the job, from the timers and counters of
+ * {@link PostMapper} and {@link PostReducer} and the counters of the
+ * framework, are written to "metrics.json" and "metrics.csv" in the model.
  */
 public class PostMapReduce extends Configured implements Tool {
+  /** Whether to run {@link PostCombiner} on the map output. */
+  public static final String COMBINER = "crystal.combiner";
+
+  /**
+   * Whether to sample the input and partition the hot keys with
+   * {@link SkewPartitioner} when there is more than one reducer.
+   */
+  public static final String SKEW_PARTITIONER = "crystal.partitioner.skew";
+
+  /**
+   * Whether to add the training data to the model already in the output
+   * directory, instead of replacing it. Only the new data is trained, into
+   * "<output>.delta", and {@link ModelMerger} adds it to the model.
+   */
+  public static final String INCREMENTAL = "crystal.incremental";
+
   public static void main(String[] args) throws Exception {
     int res = ToolRunner.run(new Configuration(), new PostMapReduce(), args);
     System.exit(res);
@@ -46,24 +66,74 @@ public class PostMapReduce extends Configured implements Tool {
     Path outputPath = new Path(output);
 
     FileSystem fs = FileSystem.get(getConf());
+    Path modelPath = null;
+    if (getConf().getBoolean(INCREMENTAL, false) &&
+        fs.exists(new Path(outputPath, "counters"))) {
+      // Train on the new data only, and merge it into the model afterwards.
+      modelPath = outputPath;
+      outputPath = outputPath.suffix(".delta");
+    }
     if (fs.exists(outputPath)) {
       fs.delete(outputPath, true /* recursive */);
     }
 
     Job job = Job.getInstance(getConf(), "PostMapReduce");
+    if (modelPath != null) {
+      // An n-gram rare in the new data may not be rare in the model, so the
+      // delta keeps them all, and ModelMergeReducer applies the minimum count
+      // on the merged counts.
+      job.getConfiguration().setLong(NGrams.MIN_COUNT, 0);
+    }
     job.setJarByClass(PostMapReduce.class);
-    job.setInputFormatClass(TextInputFormat.class);
+    job.setInputFormatClass(PostInputFormat.class);
     job.setOutputFormatClass(TextOutputFormat.class);
     FileInputFormat.addInputPath(job, inputPath);
     FileOutputFormat.setOutputPath(job, outputPath);
     job.setMapperClass(PostMapper.class);
+    if (getConf().getBoolean(COMBINER, true)) {
+      job.setCombinerClass(PostCombiner.class);
+    }
     job.setReducerClass(PostReducer.class);
+    job.setMapOutputKeyClass(FeatureKey.class);
+    job.setMapOutputValueClass(StatusCounts.class);
     job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(LongWritable.class);
+    job.setOutputValueClass(StatusCounts.class);
 
     long startTime = System.currentTimeMillis();
+    FeatureHasher hasher = FeatureHasher.get(getConf());
+    int numBuckets = hasher == null ? 0 : hasher.getNumBuckets();
+    NGrams ngrams = NGrams.get(getConf());
+    int ngramSize = ngrams == null ? 1 : ngrams.getSize();
+    Vocabulary vocabulary = new Vocabulary();
+    Path vocabularyFile = null;
+    int vocabularySize = getConf().getInt(Vocabulary.SIZE, 65536);
+    // Hashed terms are written as buckets, which need no vocabulary.
+    boolean buildVocabulary = vocabularySize > 0 && hasher == null;
+    boolean partition = job.getNumReduceTasks() > 1 &&
+        getConf().getBoolean(SKEW_PARTITIONER, true);
+    // The input is sampled once, for the vocabulary and the hot keys both.
+    Map<FeatureKey, long[]> sample = buildVocabulary || partition ?
+        FeatureSampler.sample(job, vocabulary) : null;
+    if (buildVocabulary) {
+      vocabulary = Vocabulary.build(sample, vocabularySize);
+      vocabularyFile = outputPath.suffix(".vocabulary");
+      vocabulary.write(job.getConfiguration(), vocabularyFile);
+      System.out.printf("Vocabulary Size = %d\n", vocabulary.size());
+    }
+    Path partitionFile = null;
+    if (partition) {
+      partitionFile = outputPath.suffix(".partitions");
+      SkewPartitioner.writePartitionFile(job, partitionFile,
+          FeatureSampler.withVocabulary(sample, vocabulary));
+      job.setPartitionerClass(SkewPartitioner.class);
+    }
     boolean succeeded = job.waitForCompletion(true);
     long endTime = System.currentTimeMillis();
+    for (Path file : new Path[]{vocabularyFile, partitionFile}) {
+      if (file != null) {
+        fs.delete(file, false);
+      }
+    }
 
     if (succeeded) {
       System.err.println("SUCCESS!");
@@ -74,21 +144,171 @@ public class PostMapReduce extends Configured implements Tool {
     System.out.printf("Execution Time (ms) = %d\n", endTime - startTime);
 
     Counters counters = job.getCounters();
+    printTaskCounters(counters);
+    writeCounters(fs, outputPath, counters, numBuckets, ngramSize);
+
+    if (succeeded && modelPath != null) {
+      succeeded = mergeDelta(fs, modelPath, outputPath);
+    }
+    if (succeeded) {
+      getMetrics(job, endTime - startTime).write(getConf(), fs,
+          new Path(modelPath != null ? modelPath : outputPath, "metrics"));
+    }
+    return succeeded ? 0 : 1;
+  }
+
+  /**
+   * Merges the model trained on the new data into the model, which is only
+   * replaced once the merged model is complete.
+   */
+  private boolean mergeDelta(FileSystem fs, Path model, Path delta)
+      throws IOException, ClassNotFoundException, InterruptedException {
+    Path merged = model.suffix(".merged");
+    if (!ModelMerger.merge(getConf(), merged, model, delta)) {
+      return false;
+    }
+    Path old = model.suffix(".old");
+    fs.delete(old, true);
+    if (!fs.rename(model, old) || !fs.rename(merged, model)) {
+      throw new IOException("Cannot replace " + model + " with " + merged);
+    }
+    fs.delete(old, true);
+    fs.delete(delta, true);
+    return true;
+  }
 
+  /**
+   * Writes the UNIQUE_WORDS / UNIQUE_TAGS counters of the job to the
+   * "counters" file of the model, the number of buckets if the words and
+   * tags are hashed, and the n of the n-grams if there are any.
+   */
+  static void writeCounters(FileSystem fs, Path outputPath, Counters counters,
+                            int numBuckets, int ngramSize)
+      throws IOException {
+    writeCounters(fs, outputPath,
+        counters.findCounter(PostReducer.Counters.UNIQUE_WORDS).getValue(),
+        counters.findCounter(PostReducer.Counters.UNIQUE_TAGS).getValue(),
+        numBuckets, ngramSize);
+  }
+
+  /** Writes the "counters" file of a model with the given unique terms. */
+  static void writeCounters(FileSystem fs, Path outputPath, long uniqueWords,
+                            long uniqueTags, int numBuckets, int ngramSize)
+      throws IOException {
     try (
       PrintWriter writer =
           new PrintWriter(
               new OutputStreamWriter(
-                  fs.create(new Path(defaultOutput + "/counters"), true)));
+                  fs.create(new Path(outputPath, "counters"), true)));
     ) {
       writer.printf("%s\t%d\n",
-          PostReducer.Counters.UNIQUE_WORDS.name(),
-          counters.findCounter(PostReducer.Counters.UNIQUE_WORDS).getValue());
+          PostReducer.Counters.UNIQUE_WORDS.name(), uniqueWords);
       writer.printf("%s\t%d\n",
-          PostReducer.Counters.UNIQUE_TAGS.name(),
-          counters.findCounter(PostReducer.Counters.UNIQUE_TAGS).getValue());
+          PostReducer.Counters.UNIQUE_TAGS.name(), uniqueTags);
+      if (numBuckets > 0) {
+        writer.printf("%s\t%d\n", FeatureHasher.COUNTER, numBuckets);
+      }
+      if (ngramSize > 1) {
+        writer.printf("%s\t%d\n", NGrams.COUNTER, ngramSize);
+      }
     }
+  }
 
-    return succeeded ? 0 : 1;
+  /**
+   * Returns the metrics of a training job from its counters. The time to
+   * tokenize, look up stop words and emit is measured on the timed posts
+   * only, and scaled up to all the posts.
+   */
+  static Metrics getMetrics(Job job, long millis) throws IOException {
+    Counters counters = job.getCounters();
+    Configuration conf = job.getConfiguration();
+    Metrics metrics = new Metrics();
+    metrics.put("job.name", job.getJobName());
+    metrics.put("job.time.ms", millis);
+    metrics.put("job.reduces", job.getNumReduceTasks());
+    metrics.put("job.combiner", conf.getBoolean(COMBINER, true));
+    metrics.put("job.inmapper", conf.getBoolean(PostMapper.IN_MAPPER, false));
+    metrics.put("job.hash.buckets", conf.getInt(FeatureHasher.BUCKETS, 0));
+    metrics.put("job.ngram.size", conf.getInt(NGrams.SIZE, 1));
+
+    long posts = counters.findCounter(PostMapper.Counters.LINES).getValue();
+    long timedPosts =
+        counters.findCounter(PostMapper.Counters.TIMED_POSTS).getValue();
+    double scale = timedPosts == 0 ? 0 : posts * 1.0 / timedPosts;
+    metrics.put("map.posts", posts);
+    metrics.put("map.timed.posts", timedPosts);
+    metrics.put("map.task.ms",
+                getMillis(counters, PostMapper.Counters.MAP_NANOS, 1));
+    metrics.put("map.parse.ms",
+                getMillis(counters, PostMapper.Counters.PARSE_NANOS, 1));
+    metrics.put("map.tokenize.ms",
+                getMillis(counters, PostMapper.Counters.TOKENIZE_NANOS, scale));
+    metrics.put("map.stop.words.ms",
+        getMillis(counters, PostMapper.Counters.STOP_WORD_NANOS, scale));
+    metrics.put("map.emit.ms",
+                getMillis(counters, PostMapper.Counters.EMIT_NANOS, scale));
+    metrics.put("map.inmapper.flush.ms",
+        getMillis(counters, PostMapper.Counters.IN_MAPPER_FLUSH_NANOS, 1));
+    metrics.put("reduce.task.ms",
+                getMillis(counters, PostReducer.Counters.REDUCE_NANOS, 1));
+
+    for (FeatureKey.Type type : FeatureKey.Type.values()) {
+      long records = counters.findCounter(PostMapper.OUTPUT_COUNTERS,
+          type.name() + "_RECORDS").getValue();
+      if (records > 0) {
+        String name = "map.output." + type.name().toLowerCase();
+        metrics.put(name + ".records", records);
+        metrics.put(name + ".bytes", counters.findCounter(
+            PostMapper.OUTPUT_COUNTERS, type.name() + "_BYTES").getValue());
+      }
+    }
+
+    TaskCounter[] taskCounters = {
+      TaskCounter.MAP_OUTPUT_RECORDS,
+      TaskCounter.MAP_OUTPUT_BYTES,
+      TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES,
+      TaskCounter.COMBINE_INPUT_RECORDS,
+      TaskCounter.COMBINE_OUTPUT_RECORDS,
+      TaskCounter.REDUCE_INPUT_RECORDS,
+      TaskCounter.REDUCE_SHUFFLE_BYTES,
+      TaskCounter.SPILLED_RECORDS,
+      TaskCounter.GC_TIME_MILLIS,
+      TaskCounter.CPU_MILLISECONDS,
+    };
+    for (TaskCounter counter : taskCounters) {
+      metrics.put("counter." + counter.name(),
+                  counters.findCounter(counter).getValue());
+    }
+    metrics.put("model.unique.words",
+        counters.findCounter(PostReducer.Counters.UNIQUE_WORDS).getValue());
+    metrics.put("model.unique.tags",
+        counters.findCounter(PostReducer.Counters.UNIQUE_TAGS).getValue());
+    return metrics;
+  }
+
+  private static double getMillis(Counters counters, Enum<?> counter,
+                                  double scale) {
+    return counters.findCounter(counter).getValue() * scale / 1000000;
+  }
+
+  /**
+   * Prints the framework counters that show how much data goes through the
+   * shuffle, so that the aggregation modes can be compared.
+   */
+  private static void printTaskCounters(Counters counters) {
+    TaskCounter[] taskCounters = {
+      TaskCounter.MAP_OUTPUT_RECORDS,
+      TaskCounter.MAP_OUTPUT_BYTES,
+      TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES,
+      TaskCounter.COMBINE_INPUT_RECORDS,
+      TaskCounter.COMBINE_OUTPUT_RECORDS,
+      TaskCounter.REDUCE_INPUT_RECORDS,
+      TaskCounter.REDUCE_SHUFFLE_BYTES,
+      TaskCounter.SPILLED_RECORDS,
+    };
+    for (TaskCounter counter : taskCounters) {
+      System.out.printf("%s = %d\n",
+          counter.name(), counters.findCounter(counter).getValue());
+    }
   }
 }
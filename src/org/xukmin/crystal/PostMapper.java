@@ -5,136 +5,255 @@
 
 package org.xukmin.crystal;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashSet;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Mapper;
 
 /**
  * This class reads training records, tokenizes the body / title contents,
  * removes punctuations and stop words, and counts number of occurrences of
- * each feature, in open / closed / all posts respectively.
+ * each feature, in all posts and in the posts of each status, as one
+ * {@link StatusCounts} value per feature per post. The keys are made by
+ * {@link FeatureExtractor}.
+ *
+ * With {@link #IN_MAPPER} enabled, the counts are aggregated in a per-task
+ * table and written out when the table gets full, when the heap runs low, and
+ * when the task finishes, instead of writing one record per occurrence.
+ *
+ * With {@link CrossValidation#FOLDS} set, each post is assigned to a fold by
+ * its PostId, and its keys are tagged with the fold, so that the counts of
+ * the folds are kept apart until {@link CrossValidationReducer}.
+ *
+ * For {@link Metrics}, it times the task and the parsing of the posts, and
+ * counts the records and bytes of the map output by {@link FeatureKey.Type}
+ * in the {@link #OUTPUT_COUNTERS} group, e.g. WORD_BYTES. The time to
+ * tokenize the posts, look up the stop words and write the keys is measured
+ * on the posts timed by {@link FeatureExtractor}. The timers and counters are
+ * kept in fields, and only added to the MapReduce counters at the end.
  */
-public class PostMapper extends Mapper<LongWritable, Text, Text, LongWritable> {
+public class PostMapper
+    extends Mapper<LongWritable, Post, FeatureKey, StatusCounts> {
   public static enum Counters {
     HEADERS,
     LINES,
     STOP_WORDS,
     STOP_WORDS_IN_BODY,
     STOP_WORDS_IN_TITLE,
+    IN_MAPPER_FLUSHES,
+    IN_MAPPER_FLUSH_NANOS,
+    MAP_NANOS,
+    PARSE_NANOS,
+    TIMED_POSTS,
+    TOKENIZE_NANOS,
+    STOP_WORD_NANOS,
+    EMIT_NANOS,
   }
 
-  private static final Text NUM_POSTS_KEY = new Text("/POSTS");
-  private static final Text NUM_WORDS_KEY = new Text("/WORDS");
+  /** Group of the counters of the map output by type of key. */
+  public static final String OUTPUT_COUNTERS = "MapOutputByType";
 
-  private static final LongWritable ZERO = new LongWritable(0);
-  private static final LongWritable ONE = new LongWritable(1);
+  /** Whether to aggregate the counts in the mapper. */
+  public static final String IN_MAPPER = "crystal.inmapper";
 
-  private static final LongWritable TITLE_WEIGHT = new LongWritable(1);
-  private static final LongWritable TAG_WEIGHT = new LongWritable(1);
+  /** Maximum number of distinct keys held by the in-mapper table. */
+  public static final String IN_MAPPER_MAX_ENTRIES =
+      "crystal.inmapper.max.entries";
 
-  private static final String DELIMITERS = "[\\p{Punct}\\s]+";
+  /**
+   * Fraction of the maximum heap size above which the in-mapper table is
+   * flushed.
+   */
+  public static final String IN_MAPPER_MEMORY_RATIO =
+      "crystal.inmapper.memory.ratio";
 
-  private HashSet<String> stopWords = new HashSet<String>();
+  // Checking the heap usage is not free, so it is done once every so many new
+  // keys.
+  private static final int MEMORY_CHECK_INTERVAL = 1024;
+
+  private FeatureExtractor extractor;
+  private FeatureExtractor.Output output;
+  private Counter linesCounter;
+  private Counter stopWordsCounter;
+  private Counter stopWordsInBodyCounter;
+  private Counter stopWordsInTitleCounter;
+
+  private boolean inMapper;
+  private int maxEntries;
+  private long maxUsedMemory;
+  private Map<FeatureKey, StatusCounts> table =
+      new HashMap<FeatureKey, StatusCounts>();
+  private StatusCounts outputValue = new StatusCounts();
+
+  private FeatureHasher folds;
+  private int fold = -1;
+  private FeatureKey foldKey = new FeatureKey();
+
+  private long parseNanos;
+  private long flushNanos;
+  private long[] outputRecords = new long[FeatureKey.Type.values().length];
+  private long[] outputBytes = new long[FeatureKey.Type.values().length];
 
   @Override
-  protected void setup(
-      Mapper<LongWritable, Text, Text, LongWritable>.Context context)
+  protected void setup(final Context context)
       throws IOException, InterruptedException {
     super.setup(context);
-    Path path = new Path("stop-word-list.txt");
     FileSystem fs = FileSystem.get(context.getConfiguration());
-    try (
-      BufferedReader reader =
-          new BufferedReader(new InputStreamReader(fs.open(path)));
-    ) {
-      String word;
-      while ((word = reader.readLine()) != null) {
-        stopWords.add(word);
+    extractor = new FeatureExtractor(
+        StopWords.load(fs), Vocabulary.load(context.getConfiguration()),
+        FeatureHasher.get(context.getConfiguration()),
+        NGrams.get(context.getConfiguration()));
+    extractor.setTimingInterval(
+        context.getConfiguration().getInt(Metrics.TIMING_INTERVAL, 16));
+    output = new FeatureExtractor.Output() {
+      @Override
+      public void write(FeatureKey key, int status, long count)
+          throws IOException, InterruptedException {
+        PostMapper.this.write(key, status, count, context);
+      }
+    };
+    linesCounter = context.getCounter(Counters.LINES);
+    stopWordsCounter = context.getCounter(Counters.STOP_WORDS);
+    stopWordsInBodyCounter = context.getCounter(Counters.STOP_WORDS_IN_BODY);
+    stopWordsInTitleCounter = context.getCounter(Counters.STOP_WORDS_IN_TITLE);
+
+    Configuration conf = context.getConfiguration();
+    inMapper = conf.getBoolean(IN_MAPPER, false);
+    maxEntries = conf.getInt(IN_MAPPER_MAX_ENTRIES, 1000000);
+    maxUsedMemory = (long) (Runtime.getRuntime().maxMemory() *
+        conf.getFloat(IN_MAPPER_MEMORY_RATIO, 0.7f));
+    folds = CrossValidation.getFolds(conf);
+  }
+
+  @Override
+  protected void cleanup(
+      Mapper<LongWritable, Post, FeatureKey, StatusCounts>.Context context)
+      throws IOException, InterruptedException {
+    flush(context);
+    context.getCounter(Counters.PARSE_NANOS).increment(parseNanos);
+    context.getCounter(Counters.IN_MAPPER_FLUSH_NANOS).increment(flushNanos);
+    context.getCounter(Counters.TIMED_POSTS)
+        .increment(extractor.getTimedPosts());
+    context.getCounter(Counters.TOKENIZE_NANOS)
+        .increment(extractor.getTokenizeNanos());
+    context.getCounter(Counters.STOP_WORD_NANOS)
+        .increment(extractor.getStopWordNanos());
+    context.getCounter(Counters.EMIT_NANOS)
+        .increment(extractor.getEmitNanos());
+    for (FeatureKey.Type type : FeatureKey.Type.values()) {
+      if (outputRecords[type.ordinal()] > 0) {
+        context.getCounter(OUTPUT_COUNTERS, type.name() + "_RECORDS")
+            .increment(outputRecords[type.ordinal()]);
+        context.getCounter(OUTPUT_COUNTERS, type.name() + "_BYTES")
+            .increment(outputBytes[type.ordinal()]);
       }
     }
+    super.cleanup(context);
   }
 
+  /**
+   * Runs the task as Mapper does, and times it, and the reading and parsing
+   * of each post.
+   */
   @Override
-  public void map(LongWritable key, Text value, Context context)
-      throws InterruptedException, IOException {
-    if (key.equals(ZERO)) {
-      context.getCounter(Counters.HEADERS).increment(1);
+  public void run(Context context) throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    setup(context);
+    try {
+      while (true) {
+        long parseStart = System.nanoTime();
+        boolean hasNext = context.nextKeyValue();
+        parseNanos += System.nanoTime() - parseStart;
+        if (!hasNext) {
+          break;
+        }
+        map(context.getCurrentKey(), context.getCurrentValue(), context);
+      }
+    } finally {
+      cleanup(context);
+      context.getCounter(Counters.MAP_NANOS)
+          .increment(System.nanoTime() - start);
+    }
+  }
+
+  private void emit(FeatureKey key, StatusCounts value, Context context)
+      throws IOException, InterruptedException {
+    context.write(key, value);
+    int type = key.getType().ordinal();
+    outputRecords[type]++;
+    outputBytes[type] += key.getSerializedSize() + value.getSerializedSize();
+  }
+
+  private void write(FeatureKey key, int status, long count, Context context)
+      throws IOException, InterruptedException {
+    if (fold >= 0) {
+      // The key belongs to the extractor, so the fold goes on a copy.
+      foldKey.set(key);
+      foldKey.setFold(fold);
+      key = foldKey;
+    }
+    if (!inMapper) {
+      outputValue.set(status, count);
+      emit(key, outputValue, context);
       return;
     }
-    context.getCounter(Counters.LINES).increment(1);
-
-    Post post = new Post(value.toString());
-    String status = post.getStatus();
-    int numWords = 0;
-    // For bigrams, use TextUtils.getBigrams(post.getBody().split(DELIMITERS))).
-    for (String word : post.getBody().split(DELIMITERS)) {
-      if (word.isEmpty()) {
-        continue;
-      }
-      if (stopWords.contains(word.toLowerCase())) {
-        context.getCounter(Counters.STOP_WORDS_IN_BODY).increment(1);
-        context.getCounter(Counters.STOP_WORDS).increment(1);
-        continue;
-      }
-      context.write(new Text(word), ONE);
-      context.write(new Text(word + "/" + status), ONE);
-      numWords++;
+
+    StatusCounts value = table.get(key);
+    if (value != null) {
+      value.add(status, count);
+      return;
+    }
+    value = new StatusCounts();
+    value.set(status, count);
+    table.put(new FeatureKey(key), value);
+    if (table.size() >= maxEntries ||
+        (table.size() % MEMORY_CHECK_INTERVAL == 0 && isMemoryLow())) {
+      flush(context);
     }
+  }
 
-    // For bigrams, use TextUtils.getBigrams(post.getTitle().split(DELIMITERS))).
-    for (String word : post.getTitle().split(DELIMITERS)) {
-      if (word.isEmpty()) {
-        continue;
-      }
-      if (stopWords.contains(word.toLowerCase())) {
-        context.getCounter(Counters.STOP_WORDS_IN_TITLE).increment(1);
-        context.getCounter(Counters.STOP_WORDS).increment(1);
-        continue;
-      }
-      context.write(new Text(word), TITLE_WEIGHT);
-      context.write(new Text(word + "/" + status), TITLE_WEIGHT);
-      numWords += TITLE_WEIGHT.get();
+  private boolean isMemoryLow() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory() > maxUsedMemory;
+  }
+
+  private void flush(Context context)
+      throws IOException, InterruptedException {
+    if (table.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    context.getCounter(Counters.IN_MAPPER_FLUSHES).increment(1);
+    for (Map.Entry<FeatureKey, StatusCounts> entry : table.entrySet()) {
+      emit(entry.getKey(), entry.getValue(), context);
     }
+    table.clear();
+    flushNanos += System.nanoTime() - start;
+  }
 
-    List<String> tags = post.getTags();
-    for (String tag : tags) {
-      if (!tag.isEmpty()) {
-        context.write(new Text("/TAG/" + tag), TAG_WEIGHT);
-        context.write(new Text("/TAG/" + tag + "/" + status), TAG_WEIGHT);
-        numWords += TAG_WEIGHT.get();
-      }
+  @Override
+  public void map(LongWritable key, Post post, Context context)
+      throws InterruptedException, IOException {
+    // Every file of the data starts with a header, which may be in any split
+    // when the files are concatenated.
+    if (post.isHeader()) {
+      context.getCounter(Counters.HEADERS).increment(1);
+      return;
+    }
+    linesCounter.increment(1);
+
+    if (folds != null) {
+      fold = CrossValidation.getFold(folds, post);
     }
-    context.write(new Text("/TAGS_PER_POST/" + tags.size() + "/" + status), ONE);
-    context.write(new Text("/TAGS_STATUS/" + status), new LongWritable(tags.size()));
-
-    int reputation = post.getReputationAtPostCreation();
-    reputation = Math.max(reputation, -10);
-    reputation = Math.min(reputation, 1000);
-    int bin = (reputation + 10) / 1;
-    context.write(new Text("/REPUTATION/" + bin + "/" + status), ONE);
-
-    int undeleted = post.getOwnerUndeletedAnswerCountAtPostTime();
-    undeleted = Math.max(undeleted, 0);
-    undeleted = Math.min(undeleted, 1000);
-    int undeletedBins = (undeleted) / 1;
-    context.write(new Text("/UNDELETED/" + undeletedBins + "/" + status), ONE);
-
-    long time = (post.getPostCreationDate() - post.getOwnerCreationDate()) / 86400000;
-    time = Math.max(time, 0);
-    time = Math.min(time, 300);
-    time /= 10;
-    context.write(new Text("/TIME/" + time + "/" + status), ONE);
-
-    context.write(NUM_POSTS_KEY, ONE);
-    context.write(NUM_WORDS_KEY,  new LongWritable(numWords));
-    context.write(new Text("/" + status), ONE);
-    context.write(new Text("/WORDS_STATUS/" + status), new LongWritable(numWords));
+    extractor.extract(post, output);
+    int stopWordsInBody = extractor.getStopWordsInBody();
+    int stopWordsInTitle = extractor.getStopWordsInTitle();
+    stopWordsInBodyCounter.increment(stopWordsInBody);
+    stopWordsInTitleCounter.increment(stopWordsInTitle);
+    stopWordsCounter.increment(stopWordsInBody + stopWordsInTitle);
   }
 }
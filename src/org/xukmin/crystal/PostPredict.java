@@ -0,0 +1,138 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class applies the Naive Bayes Classifier to the test data set in a
+ * MapReduce.
+ *
+ * The model is compiled by {@link ModelCompiler} and shipped to every mapper
+ * once through the distributed cache. Each mapper predicts the posts in its
+ * split, writes the prediction of each post, and counts the posts by actual
+ * and predicted status. A single reducer adds up the counts and computes
+ * precision, recall, F-measure and accuracy.
+ */
+public class PostPredict extends Configured implements Tool {
+  public static enum Counters {
+    PREDICT_OPEN_ACTUAL_OPEN,
+    PREDICT_OPEN_ACTUAL_CLOSED,
+    PREDICT_CLOSED_ACTUAL_OPEN,
+    PREDICT_CLOSED_ACTUAL_CLOSED,
+  }
+
+  /** Name of the model file in the working directory of the tasks. */
+  static final String MODEL_LINK = "model.bin";
+
+  /** Named output of the predictions of each post. */
+  static final String PREDICTIONS = "predictions";
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new PostPredict(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws IOException, ClassNotFoundException,
+      InterruptedException {
+    String model = args.length >= 1 ? args[0] : "output";
+    String input = args.length >= 2 ? args[1] :
+        "train_October_9_2012_clean_1.csv";
+    String output = args.length >= 3 ? args[2] : "predictions";
+
+    FileSystem fs = FileSystem.get(getConf());
+    Path outputPath = new Path(output);
+    if (fs.exists(outputPath)) {
+      fs.delete(outputPath, true /* recursive */);
+    }
+    Path modelPath = new Path(model);
+    Path modelFile = null;
+    if (fs.getFileStatus(modelPath).isDirectory()) {
+      // Compiled next to the output, like the other files of a job, rather
+      // than into the MapReduce output directory, which is only read.
+      modelFile = outputPath.suffix(".model.bin");
+      ModelCompiler.compile(getConf(), model, modelFile);
+      modelPath = modelFile;
+    }
+    modelPath = fs.makeQualified(modelPath);
+
+    Job job = Job.getInstance(getConf(), "PostPredict");
+    job.setJarByClass(PostPredict.class);
+    try {
+      job.addCacheFile(
+          new URI(modelPath.toUri().toString() + "#" + MODEL_LINK));
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+    job.setInputFormatClass(PostInputFormat.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+    FileInputFormat.addInputPath(job, new Path(input));
+    FileOutputFormat.setOutputPath(job, outputPath);
+    MultipleOutputs.addNamedOutput(job, PREDICTIONS, TextOutputFormat.class,
+                                   Text.class, Text.class);
+    job.setMapperClass(PostPredictMapper.class);
+    job.setReducerClass(PostPredictReducer.class);
+    job.setNumReduceTasks(1);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(LongWritable.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(Text.class);
+
+    long startTime = System.currentTimeMillis();
+    boolean succeeded = job.waitForCompletion(true);
+    long endTime = System.currentTimeMillis();
+    if (modelFile != null) {
+      fs.delete(modelFile, false);
+    }
+
+    if (succeeded) {
+      System.err.println("SUCCESS!");
+    } else {
+      System.err.println("FAIL!");
+    }
+
+    System.out.printf("Execution Time (ms) = %d\n", endTime - startTime);
+
+    if (succeeded) {
+      getEvaluation(job.getCounters()).print(System.out);
+    }
+    return succeeded ? 0 : 1;
+  }
+
+  static Counters getCounter(boolean actualClosed, boolean predictClosed) {
+    if (predictClosed) {
+      return actualClosed ?
+          Counters.PREDICT_CLOSED_ACTUAL_CLOSED :
+          Counters.PREDICT_CLOSED_ACTUAL_OPEN;
+    }
+    return actualClosed ?
+        Counters.PREDICT_OPEN_ACTUAL_CLOSED :
+        Counters.PREDICT_OPEN_ACTUAL_OPEN;
+  }
+
+  private static Evaluation getEvaluation(
+      org.apache.hadoop.mapreduce.Counters counters) {
+    Evaluation evaluation = new Evaluation();
+    for (boolean actualClosed : new boolean[]{false, true}) {
+      for (boolean predictClosed : new boolean[]{false, true}) {
+        evaluation.add(actualClosed, predictClosed, counters.findCounter(
+            getCounter(actualClosed, predictClosed)).getValue());
+      }
+    }
+    return evaluation;
+  }
+}
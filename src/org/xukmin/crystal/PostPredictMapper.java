@@ -0,0 +1,81 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+
+/**
+ * This class predicts the posts in a split of the test data with the model
+ * from the distributed cache.
+ *
+ * It writes the predicted status of each post to the "predictions" named
+ * output, and at the end of the task, the number of posts for each actual /
+ * predicted status to the reducer.
+ */
+public class PostPredictMapper
+    extends Mapper<LongWritable, Post, Text, LongWritable> {
+  private PostPredictor predictor;
+  private Evaluation evaluation = new Evaluation();
+  private MultipleOutputs<Text, Text> outputs;
+  private Text postId = new Text();
+  private Text prediction = new Text();
+
+  @Override
+  protected void setup(Context context)
+      throws IOException, InterruptedException {
+    super.setup(context);
+    predictor = new PostPredictor(context.getConfiguration(),
+                                  PostPredict.MODEL_LINK);
+    outputs = newOutputs(context);
+  }
+
+  /**
+   * Returns the outputs of the predictions, whose values are Text, unlike
+   * those of the context, which MultipleOutputs only takes the configuration
+   * and the task of.
+   */
+  @SuppressWarnings("unchecked")
+  private static MultipleOutputs<Text, Text> newOutputs(Context context) {
+    return new MultipleOutputs<Text, Text>(
+        (TaskInputOutputContext<?, ?, Text, Text>)
+            (TaskInputOutputContext<?, ?, ?, ?>) context);
+  }
+
+  @Override
+  public void map(LongWritable key, Post post, Context context)
+      throws IOException, InterruptedException {
+    if (post.isHeader()) {
+      return;
+    }
+    String predict = predictor.predict(post);
+    evaluation.add(!post.getStatus().equals("open"), !predict.equals("open"));
+
+    postId.set(post.getPostId());
+    prediction.set(predict);
+    outputs.write(PostPredict.PREDICTIONS, postId, prediction);
+  }
+
+  @Override
+  protected void cleanup(Context context)
+      throws IOException, InterruptedException {
+    Text cell = new Text();
+    LongWritable count = new LongWritable();
+    for (boolean actualClosed : new boolean[]{false, true}) {
+      for (boolean predictClosed : new boolean[]{false, true}) {
+        PostPredict.Counters counter =
+            PostPredict.getCounter(actualClosed, predictClosed);
+        long n = evaluation.getCount(actualClosed, predictClosed);
+        context.getCounter(counter).increment(n);
+        cell.set(counter.name());
+        count.set(n);
+        context.write(cell, count);
+      }
+    }
+    outputs.close();
+    predictor.close();
+    super.cleanup(context);
+  }
+}
@@ -0,0 +1,48 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * This class adds up the number of posts for each actual / predicted status
+ * from all the mappers, and computes precision, recall, F-measure and
+ * accuracy. There must be only one reducer.
+ */
+public class PostPredictReducer
+    extends Reducer<Text, LongWritable, Text, Text> {
+  private Evaluation evaluation = new Evaluation();
+
+  @Override
+  public void reduce(Text key, Iterable<LongWritable> values, Context context)
+      throws IOException, InterruptedException {
+    long count = 0;
+    for (LongWritable value : values) {
+      count += value.get();
+    }
+    PostPredict.Counters cell = PostPredict.Counters.valueOf(key.toString());
+    evaluation.add(cell == PostPredict.Counters.PREDICT_OPEN_ACTUAL_CLOSED ||
+                   cell == PostPredict.Counters.PREDICT_CLOSED_ACTUAL_CLOSED,
+                   cell == PostPredict.Counters.PREDICT_CLOSED_ACTUAL_OPEN ||
+                   cell == PostPredict.Counters.PREDICT_CLOSED_ACTUAL_CLOSED,
+                   count);
+    context.write(key, new Text(Long.toString(count)));
+  }
+
+  @Override
+  protected void cleanup(Context context)
+      throws IOException, InterruptedException {
+    write(context, "Posts", Long.toString(evaluation.getNumPosts()));
+    write(context, "Precision", Double.toString(evaluation.getPrecision()));
+    write(context, "Recall", Double.toString(evaluation.getRecall()));
+    write(context, "F-measure", Double.toString(evaluation.getFMeasure()));
+    write(context, "Accuracy", Double.toString(evaluation.getAccuracy()));
+    super.cleanup(context);
+  }
+
+  private static void write(Context context, String name, String value)
+      throws IOException, InterruptedException {
+    context.write(new Text(name), new Text(value));
+  }
+}
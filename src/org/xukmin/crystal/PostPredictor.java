@@ -4,306 +4,748 @@
  */
 package org.xukmin.crystal;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 /**
  * This class applies the Naive Bayes Classifier.
  *
- * It reads output of `PostMapReduce` and loads all the key-value pairs into a
- * `HashMap<String, Long>`. For each post it parses, PostPredictor goes through
+ * It reads output of `PostMapReduce`, either directly or compiled into a single
+ * file by `ModelCompiler`. For each post it parses, PostPredictor goes through
  * the selected features and calculates the probability for each post status
  * (“open” and “closed”) respectively, and selects the one with the maximum
  * probability as the predicted post status.  PostPredictor eventually outputs
  * all the statistics, number of posts that are predicted / actually closed,
  * precision, recall, F-measure, and accuracy.
+ *
+ * With {@link #STATES} set to "open" and the close reasons, it predicts the
+ * close reason too. Each feature is looked up once for all the states, and
+ * its log-likelihoods for the states are added up in one loop, so the cost
+ * per word grows little with the number of states. The statistics then also
+ * have the precision, recall and F-measure of each state, and the confusion
+ * matrix.
+ *
+ * The model can be reloaded while predicting, e.g. by a long-running
+ * {@link ScoringServer}. The model, the stop words it was built with and the
+ * tokenizers are swapped together, and each prediction reads them once, so
+ * the predictions in flight finish on the old model and the new ones use the
+ * new model, without waiting for each other.
+ *
+ * It keeps {@link Metrics} of the predictions: the load time and heap of the
+ * model, the throughput of the last {@link #evaluate}, and a histogram of the
+ * time to score each post. Each worker thread records into a histogram of
+ * its own, merged when it is done. The command line writes them next to the
+ * model, see {@link #writeMetrics()}.
  */
-public class PostPredictor {
-  public PostPredictor(String directory)
-      throws NumberFormatException, IOException {
-    loadStopWords();
-    loadCounters(directory);
-    loadParameters(directory);
-  }
-
-  private void loadParameters(String directory) throws IOException {
-    System.out.println("Loading Classification Model...");
-    for (FileStatus file :
-         fileSystem.globStatus(new Path(directory + "/part-r-*"))) {
-      System.out.print(".");
-      try (
-        BufferedReader reader =
-            new BufferedReader(
-                new InputStreamReader(
-                    fileSystem.open(file.getPath())));
-      ) {
-        String line;
-        while ((line = reader.readLine()) != null) {
-          String[] kv = line.split("\t");
-          if (kv.length != 2) {
-            System.err.printf("Invalid line in %s.", file.getPath());
-            System.exit(1);
-          }
-          parameters.put(kv[0], Long.valueOf(kv[1]));
-        }
-      }
+public class PostPredictor implements Closeable {
+  /** Number of threads that parse and predict the test data. */
+  public static final String THREADS = "crystal.predictor.threads";
+  /** Maximum number of test files read at the same time. */
+  public static final String READERS = "crystal.predictor.readers";
+  /** Number of batches of lines queued up between the readers and workers. */
+  public static final String QUEUE_SIZE = "crystal.predictor.queue.size";
+  /** Number of lines in each batch. */
+  public static final String BATCH_SIZE = "crystal.predictor.batch.size";
+  /**
+   * Seconds between checks of the model for a new version, or 0 to never
+   * reload it.
+   */
+  public static final String RELOAD_INTERVAL =
+      "crystal.predictor.reload.interval";
+  /**
+   * The groups of features that are scored together, each with a weight for
+   * its log-likelihoods, set by crystal.predictor.weight.<group>, e.g.
+   * crystal.predictor.weight.tags=8.
+   */
+  public static enum Group {
+    TITLE(2),
+    BODY(1),
+    TAGS(8),
+    REPUTATION(30),
+    UNDELETED(16),
+    TIME(0),
+    PRIOR(1);
+
+    public static final int COUNT = values().length;
+
+    private Group(double defaultWeight) {
+      this.defaultWeight = defaultWeight;
     }
-    System.out.println("");
-    System.out.println("Classification Model loaded successfully.");
-  }
-
-  private void loadCounters(String directory) throws IOException {
-    try (
-      BufferedReader reader =
-          new BufferedReader(
-              new InputStreamReader(
-                  fileSystem.open(new Path(directory + "/counters"))));
-    ) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        String[] kv = line.split("\t");
-        if (kv.length != 2) {
-          System.err.printf("Invalid line in counters file.\n");
-          System.exit(1);
-        }
-        counters.put(kv[0], Long.valueOf(kv[1]));
-      }
+
+    /** Returns the name of the weight in the configuration. */
+    public String getWeightKey() {
+      return "crystal.predictor.weight." + name().toLowerCase();
     }
-  }
 
-  private void loadStopWords() throws IOException {
-    try (
-      BufferedReader reader =
-          new BufferedReader(
-              new InputStreamReader(
-                  fileSystem.open(new Path("stop-word-list.txt"))));
-    ) {
-      String word;
-      while ((word = reader.readLine()) != null) {
-        stopWords.add(word);
-      }
+    public double getDefaultWeight() {
+      return defaultWeight;
     }
+
+    private final double defaultWeight;
   }
 
-  private void addWord(String word, int weight, long numWords,
-                       Long[] numStates, double[] probabilities) {
-    if (word.isEmpty()) {
-      return;
+  /**
+   * Statuses to predict, separated by commas: "open,closed" by default, or
+   * e.g. "open" and the close reasons of {@link StatusCounts#STATUSES}.
+   */
+  public static final String STATES = "crystal.predictor.states";
+
+  public PostPredictor(String location) throws IOException {
+    this(new Configuration(), location);
+  }
+
+  public PostPredictor(Configuration conf, String location)
+      throws IOException {
+    this.conf = conf;
+    fileSystem = FileSystem.get(conf);
+    numThreads = conf.getInt(THREADS,
+        Runtime.getRuntime().availableProcessors());
+    maxReaders = conf.getInt(READERS, 4);
+    queueSize = conf.getInt(QUEUE_SIZE, 64);
+    batchSize = conf.getInt(BATCH_SIZE, 256);
+    states = conf.getTrimmedStrings(STATES, "open", "closed");
+    for (String state : states) {
+      StatusCounts.getColumn(state);
     }
+    weights = new double[Group.COUNT];
+    for (Group group : Group.values()) {
+      weights[group.ordinal()] =
+          conf.getDouble(group.getWeightKey(), group.getDefaultWeight());
+    }
+    this.location = location;
+    loaded = load();
+
+    int interval = conf.getInt(RELOAD_INTERVAL, 0);
+    if (interval > 0) {
+      watcher = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "PostPredictor reloader");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      watcher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          reloadIfChanged();
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+    }
+  }
 
-    if (stopWords.contains(word.toLowerCase())) {
-      return;
+  /** A loaded model, with the stop words it was built with. */
+  private class LoadedModel {
+    LoadedModel(long version) throws IOException {
+      this.version = version;
+      stopWords = StopWords.load(fileSystem);
+      try (Model model = openModel(fileSystem, location)) {
+        scoringModel = new ScoringModel(model, states, stopWords);
+      }
     }
 
-    for (int i = 0; i < states.length; i++) {
-      Long numWordStatus = parameters.get(word + "/" + states[i]);
-      if (numWordStatus == null) {
-        numWordStatus = ZERO;
+    final long version;
+    long loadMillis;
+    long loadPeakBytes;
+    final StopWords stopWords;
+    final ScoringModel scoringModel;
+    final ThreadLocal<Tokenizer> tokenizers = new ThreadLocal<Tokenizer>() {
+      @Override
+      protected Tokenizer initialValue() {
+        return new Tokenizer(stopWords);
       }
-      Long numWordsStatus = parameters.get("/WORDS_STATUS/" + states[i]);
-      if (numWordsStatus == null) {
-        numWordsStatus = ZERO;
+    };
+    final ThreadLocal<NGrams> ngrams = new ThreadLocal<NGrams>() {
+      @Override
+      protected NGrams initialValue() {
+        int size = scoringModel.getNGramSize();
+        return size > 1 ? new NGrams(size) : null;
       }
-      // Laplace smoothing
-      probabilities[i] +=
-          weight * Math.log((numWordStatus + 1.0) / (numWordsStatus + numWords));
-    }
+    };
   }
 
-  private void addTag(String tag, int weight, long numUniqueTags,
-                      Long[] numStates, double[] probabilities) {
-    if (tag.isEmpty()) {
-      return;
+  /**
+   * Returns the version of the model: the modification time of the model
+   * file, or of the counters file of the output directory of
+   * {@link PostMapReduce}, which is written last.
+   */
+  private long getVersion() throws IOException {
+    File file = new File(location);
+    if (file.isFile()) {
+      return file.lastModified();
     }
-    for (int i = 0; i < states.length; i++) {
-      Long numWordStatus = parameters.get("/TAG/" + tag + "/" + states[i]);
-      if (numWordStatus == null) {
-        numWordStatus = ZERO;
-      }
-      Long numWordsStatus = parameters.get("/TAGS_STATUS/" + states[i]);
-      if (numWordsStatus == null) {
-        numWordsStatus = ZERO;
+    return fileSystem.getFileStatus(new Path(location, "counters"))
+        .getModificationTime();
+  }
+
+  /**
+   * Reloads the model if it has a new version. A model that fails to load,
+   * e.g. because it is still being written, is tried again the next time.
+   */
+  private void reloadIfChanged() {
+    try {
+      if (getVersion() != loaded.version) {
+        reload();
       }
-      // Laplace smoothing
-      probabilities[i] += weight * Math.log((numWordStatus + 1.0) /
-          (numWordsStatus.longValue() + numUniqueTags));
+    } catch (IOException | RuntimeException e) {
+      System.err.printf("Failed to reload the model %s: %s\n", location, e);
     }
   }
 
-  private void addNumber(String name, int weight, int bins,
-                         Long[] numStates, double[] probabilities) {
-    for (int i = 0; i < states.length; i++) {
-      Long numWordStatus = parameters.get(name + "/" + states[i]);
-      if (numWordStatus == null) {
-        numWordStatus = ZERO;
+  /**
+   * Loads the model again and switches to it once it is loaded. Predictions
+   * are never blocked: they go on with the old model in the meantime, and the
+   * old model is garbage as soon as the predictions in flight are done with
+   * it.
+   */
+  public synchronized void reload() throws IOException {
+    LoadedModel model = load();
+    loaded = model;
+
+    numReloads++;
+    lastReloadMillis = model.loadMillis;
+    lastReloadPeakBytes = model.loadPeakBytes;
+    printReloadStats(System.out);
+  }
+
+  /** Loads the current version of the model, and measures the load. */
+  private LoadedModel load() throws IOException {
+    long version = getVersion();
+    List<MemoryPoolMXBean> pools = getHeapPools();
+    long heapBefore = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      heapBefore += pool.getUsage().getUsed();
+      pool.resetPeakUsage();
+    }
+    long start = System.nanoTime();
+    LoadedModel model = new LoadedModel(version);
+    long end = System.nanoTime();
+    long heapPeak = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      heapPeak += pool.getPeakUsage().getUsed();
+    }
+    model.loadMillis = (end - start) / 1000000;
+    model.loadPeakBytes = Math.max(heapPeak - heapBefore, 0);
+    return model;
+  }
+
+  private static List<MemoryPoolMXBean> getHeapPools() {
+    List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pools.add(pool);
       }
-      probabilities[i] += weight * Math.log((numWordStatus + 1.0) /
-          (numStates[i].longValue() + bins));
     }
+    return pools;
   }
 
-  public String predict(Post post) {
-    double[] probabilities = new double[states.length];
+  public int getNumReloads() {
+    return numReloads;
+  }
 
-    long numUniqueWords = counters.get(PostReducer.Counters.UNIQUE_WORDS.name());
-    long numUniqueTags = counters.get(PostReducer.Counters.UNIQUE_TAGS.name());
-    long numPosts = parameters.get("/POSTS");
+  /** Returns how long the last reload took to load the new model. */
+  public long getLastReloadMillis() {
+    return lastReloadMillis;
+  }
 
-    Long[] numStates = new Long[states.length];
-    for (int i = 0; i < states.length; i++) {
+  /**
+   * Returns the peak heap used during the last reload on top of the heap used
+   * before it, i.e. about the extra memory to hold both models at once. It is
+   * the sum of the peaks of the heap pools, so it errs on the high side.
+   */
+  public long getLastReloadPeakBytes() {
+    return lastReloadPeakBytes;
+  }
 
-      numStates[i] = parameters.get("/" + states[i]);
-      if (numStates[i] == null) {
-        System.err.print("numStates[" + i + "] is null.");
-        System.exit(1);
-      }
+  public void printReloadStats(PrintStream out) {
+    out.printf("Model Reloads                     = %d\n", numReloads);
+    out.printf("Model Reload Time (ms)            = %d\n", lastReloadMillis);
+    out.printf("Model Reload Peak Extra Heap (MB) = %.1f\n",
+               lastReloadPeakBytes / 1048576.0);
+  }
+
+  /** Stops checking the model for new versions. */
+  @Override
+  public void close() {
+    if (watcher != null) {
+      watcher.shutdownNow();
     }
+  }
 
-    List<String> tags = post.getTags();
-    String[] title = post.getTitle().split(DELIMITERS);
-    String[] body = post.getBody().split(DELIMITERS);
-    // For bigrams, use TextUtils.getBigrams(title).
-    for (String word : title) {
-      // Weight for title words is 2.
-      addWord(word, 2, numUniqueWords, numStates, probabilities);
+  /**
+   * Opens a model file compiled by {@link ModelCompiler} if the location is a
+   * local file, or loads the output directory of {@link PostMapReduce}
+   * otherwise.
+   */
+  static Model openModel(FileSystem fileSystem, String location)
+      throws IOException {
+    if (new File(location).isFile()) {
+      return new MappedModel(location);
+    }
+    return new TextModel(fileSystem, location);
+  }
+
+  /**
+   * Adds the words of the text, in the tokenizer, and their n-grams if there
+   * are any, to the scores from scores[offset].
+   */
+  private static void addWords(ScoringModel scoringModel, Tokenizer tokenizer,
+                               NGrams ngrams, double[] scores, int offset) {
+    if (ngrams != null) {
+      ngrams.reset();
+    }
+    while (tokenizer.next()) {
+      int id = scoringModel.getWordId(tokenizer.getBytes(),
+                                      tokenizer.getStart(),
+                                      tokenizer.getEnd());
+      // Stop words are never in the model, so only unknown words need
+      // checking, unless the words are hashed into buckets.
+      if ((id < 0 || scoringModel.isHashed()) && tokenizer.isStopWord()) {
+        continue;
+      }
+      scoringModel.addWord(id, scores, offset);
+      if (ngrams != null) {
+        addNGrams(scoringModel, tokenizer, ngrams, scores, offset);
+      }
     }
+  }
 
-    // For bigrams, use TextUtils.getBigrams(body).
-    for (String word : body) {
-      addWord(word, 1, numUniqueWords, numStates, probabilities);
+  /**
+   * Adds the n-grams that end with the current word of the tokenizer. Most
+   * n-grams are not in the model, and these carry no evidence, so unlike
+   * unknown words they are left out.
+   */
+  private static void addNGrams(ScoringModel scoringModel, Tokenizer tokenizer,
+                                NGrams ngrams, double[] scores, int offset) {
+    int n = ngrams.add(tokenizer.getBytes(), tokenizer.getStart(),
+                       tokenizer.getEnd());
+    for (int i = 0; i < n; i++) {
+      int id = scoringModel.getWordId(ngrams.getBytes(), 0, ngrams.get(i));
+      if (id >= 0) {
+        scoringModel.addWord(id, scores, offset);
+      }
     }
+  }
 
-    for (String tag : tags) {
-      addTag(tag, TAG_WEIGHT, numUniqueTags, numStates, probabilities);
+  private static void addTags(ScoringModel scoringModel, Post post,
+                              double[] scores, int offset) {
+    for (int i = 0; i < post.getNumTags(); i++) {
+      int id = scoringModel.getTagId(post.getBytes(), post.getTagStart(i),
+                                     post.getTagEnd(i));
+      scoringModel.addTag(id, scores, offset);
     }
+  }
+
+  public String predict(Post post) {
+    return states[predictState(post)];
+  }
+
+  /** Returns the index of the predicted state in {@link #getStates()}. */
+  public int predictState(Post post) {
+    double[] scores = new double[Group.COUNT * states.length];
+    scoreGroups(post, scores, 0);
+    return predictState(scores, 0, weights, states.length);
+  }
+
+  /**
+   * Adds the log-likelihoods of the features of the post for each state, by
+   * group: the scores of group g and state s are at
+   * scores[offset + g * states + s]. The weights are not applied.
+   */
+  void scoreGroups(Post post, double[] scores, int offset) {
+    // The model may be swapped while predicting; stick to the one read here.
+    LoadedModel model = loaded;
+    ScoringModel scoringModel = model.scoringModel;
+    int numStates = states.length;
+
+    Tokenizer tokenizer = model.tokenizers.get();
+    NGrams ngrams = model.ngrams.get();
+    post.tokenizeTitle(tokenizer);
+    addWords(scoringModel, tokenizer, ngrams, scores,
+             offset + Group.TITLE.ordinal() * numStates);
+
+    post.tokenizeBody(tokenizer);
+    addWords(scoringModel, tokenizer, ngrams, scores,
+             offset + Group.BODY.ordinal() * numStates);
+
+    addTags(scoringModel, post, scores,
+            offset + Group.TAGS.ordinal() * numStates);
 
     int reputation = post.getReputationAtPostCreation();
     reputation = Math.max(reputation, -10);
     reputation = Math.min(reputation, 1000);
     int bin = (reputation + 10);
-    addNumber("/REPUTATION/" + bin, REPUTATION_WEIGHT, 10010, numStates,
-              probabilities);
+    scoringModel.addReputation(bin, scores,
+                               offset + Group.REPUTATION.ordinal() * numStates);
 
     int undeleted = post.getOwnerUndeletedAnswerCountAtPostTime();
     undeleted = Math.max(undeleted, 0);
     undeleted = Math.min(undeleted, 1000);
-    addNumber("/UNDELETED/" + undeleted, UNDELETED_WEIGHT, 1000, numStates,
-              probabilities);
+    scoringModel.addUndeleted(undeleted, scores,
+                              offset + Group.UNDELETED.ordinal() * numStates);
 
     long time = (post.getPostCreationDate() - post.getOwnerCreationDate()) /
         86400000;
-    time = Math.min(time, 0);
-    time = Math.max(time, 300);
+    time = Math.max(time, 0);
+    time = Math.min(time, 300);
     time /= 10;
-    addNumber("/TIME/" + time, TIME_WEIGHT, 30, numStates, probabilities);
+    scoringModel.addTime((int) time, scores,
+                         offset + Group.TIME.ordinal() * numStates);
 
-    for (int i = 0; i < states.length; i++) {
-      probabilities[i] += Math.log(numStates[i] * 1.0 / numPosts);
-    }
+    scoringModel.addPrior(scores, offset + Group.PRIOR.ordinal() * numStates);
+  }
 
+  /**
+   * Returns the state with the highest weighted sum of the scores of the
+   * groups, as laid out by {@link #scoreGroups}, with the weights of
+   * {@link Group}.
+   */
+  static int predictState(double[] scores, int offset, double[] weights,
+                          int numStates) {
     int m = 0;
-    for (int i = 0; i < probabilities.length; i++) {
-      if (probabilities[i] > probabilities[m]) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < numStates; i++) {
+      double score = 0;
+      for (int g = 0; g < Group.COUNT; g++) {
+        score += weights[g] * scores[offset + g * numStates + i];
+      }
+      if (score > max || i == 0) {
+        max = score;
         m = i;
       }
     }
+    return m;
+  }
 
-    return states[m];
-  }
-
-  private static double fMeasure(double beta, double precision, double recall) {
-    return (1.0 + beta * beta) * precision * recall /
-        (beta * beta * precision + recall);
-  }
-
-  public void predictAll(String file) throws NumberFormatException, IOException {
-    try (
-      BufferedReader reader =
-          new BufferedReader(
-              new InputStreamReader(
-                  fileSystem.open(new Path(file))));
-    ) {
-      String line = reader.readLine();
-      long numAccurate = 0;
-      long numPredictClosedActualClosed = 0;
-      long numPredictClosed = 0;
-      long numActualClosed = 0;
-      long all = 0;
-      while ((line = reader.readLine()) != null) {
-        Post post = new Post(line);
-        String predict = predict(post);
-        boolean actualClosed = !post.getStatus().equals("open");
-        boolean predictClosed = !predict.equals("open");
-        if (predictClosed == actualClosed) {
-          numAccurate++;
-        }
-        if (predictClosed) {
-          numPredictClosed++;
+  public String[] getStates() {
+    return states.clone();
+  }
+
+  /** Returns the weights of the groups, indexed by {@link Group#ordinal()}. */
+  public double[] getWeights() {
+    return weights.clone();
+  }
+
+  /**
+   * Predicts the posts in all the files matching the pattern, and prints the
+   * statistics of the predictions.
+   */
+  public void predictAll(String pattern) throws IOException {
+    evaluate(pattern).print(System.out);
+    writeMetrics();
+  }
+
+  /**
+   * Predicts the posts in all the files matching the pattern, and returns the
+   * statistics of the predictions.
+   */
+  public Evaluation evaluate(String pattern) throws IOException {
+    FileStatus[] files = fileSystem.globStatus(new Path(pattern));
+    if (files == null || files.length == 0) {
+      throw new IOException("No test data matches " + pattern);
+    }
+
+    latencies.reset();
+    long start = System.nanoTime();
+    Evaluation evaluation;
+    if (numThreads <= 1) {
+      evaluation = new Evaluation(states);
+      for (FileStatus file : files) {
+        predictFile(file.getPath(), evaluation, latencies);
+      }
+    } else {
+      evaluation = predictAllInParallel(files);
+    }
+    evaluateNanos = System.nanoTime() - start;
+    evaluatedPosts = evaluation.getNumPosts();
+    return evaluation;
+  }
+
+  /**
+   * Returns the metrics of the loaded model and of the last
+   * {@link #evaluate}.
+   */
+  public Metrics getMetrics() {
+    LoadedModel model = loaded;
+    Runtime runtime = Runtime.getRuntime();
+    Metrics metrics = new Metrics();
+    metrics.put("model.location", location);
+    metrics.put("model.load.ms", model.loadMillis);
+    metrics.put("model.load.peak.heap.mb", model.loadPeakBytes / 1048576.0);
+    metrics.put("model.reloads", numReloads);
+    metrics.put("heap.used.mb",
+        (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0);
+    metrics.put("heap.max.mb", runtime.maxMemory() / 1048576.0);
+    metrics.put("predict.threads", numThreads);
+    metrics.put("predict.posts", evaluatedPosts);
+    metrics.put("predict.time.ms", evaluateNanos / 1000000);
+    metrics.put("predict.posts.per.sec",
+                evaluatedPosts * 1e9 / evaluateNanos);
+    metrics.put("predict.latency", latencies);
+    return metrics;
+  }
+
+  /**
+   * Writes the metrics next to the model: to "predict-metrics.json" and
+   * ".csv" in the output directory of {@link PostMapReduce}, or to
+   * "<model file>.predict-metrics.json" and ".csv". A model that cannot be
+   * written to is only reported.
+   */
+  public void writeMetrics() {
+    try {
+      if (new File(location).isFile()) {
+        getMetrics().write(conf, FileSystem.getLocal(conf),
+                           new Path(location + ".predict-metrics"));
+      } else {
+        getMetrics().write(conf, fileSystem,
+                           new Path(location, "predict-metrics"));
+      }
+    } catch (IOException e) {
+      System.err.printf("Failed to write the metrics of %s: %s\n",
+                        location, e);
+    }
+  }
+
+  private void predictFile(Path file, Evaluation evaluation,
+                           LatencyHistogram latencies) throws IOException {
+    try (CSVLineReader reader = new CSVLineReader(fileSystem.open(file))) {
+      Post post = new Post();
+      Text line = new Text();
+      while (reader.readLine(line) > 0) {
+        if (line.getLength() > 0) {
+          post.set(line);
+          predictLine(post, evaluation, latencies);
         }
-        if (actualClosed) {
-          numActualClosed++;
+      }
+    }
+  }
+
+  private void predictLine(Post post, Evaluation evaluation,
+                           LatencyHistogram latencies) {
+    if (post.isHeader()) {
+      return;
+    }
+    int actual = evaluation.getState(post.getStatus());
+    if (actual == -1) {
+      evaluation.skip();
+      return;
+    }
+    long start = System.nanoTime();
+    int state = predictState(post);
+    latencies.record(System.nanoTime() - start);
+    evaluation.add(actual, state);
+  }
+
+  /**
+   * Predicts the files in a pipeline: reader threads read the files
+   * concurrently and queue up batches of lines, and worker threads parse and
+   * predict the batches. Each worker keeps its own statistics, which are only
+   * merged at the end, so the workers share nothing but the queue.
+   *
+   * The first error stops the pipeline: the readers stop queueing batches
+   * that no worker may be left to take, and the workers are cancelled. An
+   * Error is rethrown as it is.
+   */
+  private Evaluation predictAllInParallel(FileStatus[] files)
+      throws IOException {
+    final BlockingQueue<List<Text>> queue =
+        new ArrayBlockingQueue<List<Text>>(queueSize);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    ExecutorService readerPool =
+        Executors.newFixedThreadPool(Math.min(files.length, maxReaders));
+    ExecutorService workerPool = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> readers = new ArrayList<Future<?>>();
+      for (final FileStatus file : files) {
+        readers.add(readerPool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException, InterruptedException {
+            readFile(file.getPath(), queue, error);
+            return null;
+          }
+        }));
+      }
+
+      List<Future<Evaluation>> workers = new ArrayList<Future<Evaluation>>();
+      for (int i = 0; i < numThreads; i++) {
+        workers.add(workerPool.submit(new Callable<Evaluation>() {
+          @Override
+          public Evaluation call() throws InterruptedException {
+            return predictBatches(queue, error);
+          }
+        }));
+      }
+
+      for (Future<?> reader : readers) {
+        waitFor(reader, error);
+      }
+      for (int i = 0; i < numThreads; i++) {
+        put(queue, END_OF_DATA, error);
+      }
+      if (error.get() != null) {
+        for (Future<Evaluation> worker : workers) {
+          worker.cancel(true);
         }
-        if (predictClosed && actualClosed) {
-          numPredictClosedActualClosed++;
+      }
+      Evaluation evaluation = new Evaluation(states);
+      for (Future<Evaluation> worker : workers) {
+        Evaluation result = waitFor(worker, error);
+        if (result != null) {
+          evaluation.merge(result);
         }
-        all++;
       }
-      double precision = numPredictClosedActualClosed * 1.0 / numPredictClosed;
-      double recall = numPredictClosedActualClosed * 1.0 / numActualClosed;
-
-      System.out.printf("Predict Closed Actual Closed = %d\n",
-                        numPredictClosedActualClosed);
-      System.out.printf("Predict Closed               = %d\n", numPredictClosed);
-      System.out.printf("Actual  Closed               = %d\n", numActualClosed);
-      System.out.printf("Accurate                     = %d\n", numAccurate);
-      System.out.printf("Posts                        = %d\n", all);
-
-      System.out.printf("Precision = %f%%\n", 100.0 * precision);
-      System.out.printf("Recall    = %f%%\n", 100.0 * recall);
-      System.out.printf("F-measure = %f%%\n",
-                        100.0 * fMeasure(1, precision, recall));
-      System.out.printf("Accuracy  = %f%%\n", 100.0 * numAccurate / all);
+
+      if (error.get() instanceof Error) {
+        throw (Error) error.get();
+      }
+      if (error.get() != null) {
+        throw new IOException("Prediction failed.", error.get());
+      }
+      return evaluation;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Prediction interrupted.");
+    } finally {
+      readerPool.shutdownNow();
+      workerPool.shutdownNow();
     }
   }
 
-  public static void main(String[] args)
-      throws NumberFormatException, IOException {
-    PostPredictor predictor = new PostPredictor(args[0]);
-    predictor.predictAll(args[1]);
+  private static <T> T waitFor(Future<T> future,
+                               AtomicReference<Throwable> error)
+      throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      error.compareAndSet(null, e.getCause());
+      return null;
+    } catch (CancellationException e) {
+      // Only cancelled after an error.
+      return null;
+    }
   }
 
-  private static final String DELIMITERS = "[\\p{Punct}\\s]+";
-
-  private FileSystem fileSystem = FileSystem.get(new Configuration());
-  private HashSet<String> stopWords = new HashSet<String>();
-  private HashMap<String, Long> counters = new HashMap<String, Long>();
-  private HashMap<String, Long> parameters = new HashMap<String, Long>();
+  /**
+   * Puts the item into the queue unless there is an error, after which the
+   * queue may never be drained again.
+   */
+  private static <T> void put(BlockingQueue<T> queue, T item,
+                              AtomicReference<Throwable> error)
+      throws InterruptedException {
+    while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+      if (error.get() != null) {
+        return;
+      }
+    }
+  }
 
-  private String[] states = new String[]{"open", "closed"};
+  private void readFile(Path file, BlockingQueue<List<Text>> queue,
+                        AtomicReference<Throwable> error)
+      throws IOException, InterruptedException {
+    try (CSVLineReader reader = new CSVLineReader(fileSystem.open(file))) {
+      Text line = new Text();
+      List<Text> batch = new ArrayList<Text>(batchSize);
+      while (error.get() == null && reader.readLine(line) > 0) {
+        if (line.getLength() == 0) {
+          continue;
+        }
+        // The lines stay undecoded bytes until the workers parse them.
+        batch.add(new Text(line));
+        if (batch.size() == batchSize) {
+          put(queue, batch, error);
+          batch = new ArrayList<Text>(batchSize);
+        }
+      }
+      if (!batch.isEmpty()) {
+        put(queue, batch, error);
+      }
+    }
+  }
 
-  /*
-  private String[] states = new String[]{
-    "not a real question",
-    "not constructive",
-    "off topic",
-    "open",
-    "too localized"
-  };
-  */
+  /**
+   * Predicts the batches in the queue until the end of data. After an error,
+   * it keeps draining the queue until it is cancelled. An Error ends the
+   * worker, and stops the readers through the shared error.
+   */
+  private Evaluation predictBatches(BlockingQueue<List<Text>> queue,
+                                    AtomicReference<Throwable> error)
+      throws InterruptedException {
+    Evaluation evaluation = new Evaluation(states);
+    LatencyHistogram workerLatencies = new LatencyHistogram();
+    Post post = new Post();
+    List<Text> batch;
+    while ((batch = queue.take()) != END_OF_DATA) {
+      if (error.get() != null) {
+        continue;
+      }
+      try {
+        for (Text line : batch) {
+          post.set(line);
+          predictLine(post, evaluation, workerLatencies);
+        }
+      } catch (RuntimeException e) {
+        error.compareAndSet(null, e);
+      } catch (Error e) {
+        error.compareAndSet(null, e);
+        throw e;
+      }
+    }
+    latencies.merge(workerLatencies);
+    return evaluation;
+  }
 
-  private static Long ZERO = new Long(0);
+  public static void main(String[] args) throws IOException {
+    Configuration conf = new Configuration();
+    args = new GenericOptionsParser(conf, args).getRemainingArgs();
+    PostPredictor predictor = new PostPredictor(conf, args[0]);
+    predictor.predictAll(args[1]);
+  }
 
-  private static int TAG_WEIGHT = 8;
-  private static int REPUTATION_WEIGHT = 30;
-  private static int UNDELETED_WEIGHT = 16;
-  private static int TIME_WEIGHT = 0;
+  private static final List<Text> END_OF_DATA = new ArrayList<Text>();
+
+  private Configuration conf;
+  private FileSystem fileSystem;
+  private int numThreads;
+  private int maxReaders;
+  private int queueSize;
+  private int batchSize;
+  private String location;
+  private volatile LoadedModel loaded;
+  private ScheduledExecutorService watcher;
+  private volatile int numReloads;
+  private volatile long lastReloadMillis;
+  private volatile long lastReloadPeakBytes;
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private long evaluateNanos;
+  private long evaluatedPosts;
+
+  private String[] states;
+
+  private double[] weights;
 }
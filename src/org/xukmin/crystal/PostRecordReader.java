@@ -0,0 +1,107 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * This class reads the posts in a split of a CSV file, keyed by the offset of
+ * each record in the file.
+ *
+ * Like Hadoop's LineRecordReader, a split reads the records that start after
+ * its first byte and up to its last byte, so a record crossing the end of a
+ * split is read as a whole by that split, and skipped by the next one. As a
+ * split may start in quotes, it skips to the first line that looks like the
+ * start of a record, see {@link CSVLineReader#skipToRecord()}.
+ *
+ * The same Post is returned for every record, and only stays valid until the
+ * next one is read.
+ */
+public class PostRecordReader extends RecordReader<LongWritable, Post> {
+  @Override
+  public void initialize(InputSplit genericSplit, TaskAttemptContext context)
+      throws IOException {
+    FileSplit split = (FileSplit) genericSplit;
+    Configuration conf = context.getConfiguration();
+    Path file = split.getPath();
+    start = split.getStart();
+    end = start + split.getLength();
+
+    FileSystem fs = file.getFileSystem(conf);
+    FSDataInputStream fileIn = fs.open(file);
+    CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+    if (codec != null) {
+      // A compressed file is not splittable, and read as a whole.
+      reader = new CSVLineReader(codec.createInputStream(fileIn));
+      end = Long.MAX_VALUE;
+    } else {
+      fileIn.seek(start);
+      reader = new CSVLineReader(fileIn);
+    }
+    pos = start;
+    if (start != 0) {
+      pos += reader.skipToRecord();
+    }
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException {
+    while (pos <= end) {
+      key.set(pos);
+      int size = reader.readLine(record);
+      if (size == 0) {
+        return false;
+      }
+      pos += size;
+      // Empty lines are skipped.
+      if (record.getLength() > 0) {
+        value.set(record);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() {
+    return key;
+  }
+
+  @Override
+  public Post getCurrentValue() {
+    return value;
+  }
+
+  @Override
+  public float getProgress() {
+    if (start == end) {
+      return 0.0f;
+    }
+    return Math.min(1.0f, (pos - start) / (float) (end - start));
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+    }
+  }
+
+  private long start;
+  private long end;
+  private long pos;
+  private CSVLineReader reader;
+  private LongWritable key = new LongWritable();
+  private Text record = new Text();
+  private Post value = new Post();
+}
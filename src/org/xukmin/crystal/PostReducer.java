@@ -5,37 +5,96 @@
 package org.xukmin.crystal;
 
 import java.io.IOException;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Reducer;
 
-// TODO(xukmin): Add combiner to improve performance.
-
 /**
- * This class aggregates and outputs the total values for each key.
+ * This class aggregates and outputs the total counts for each key, as one row
+ * with a column for all the posts and for each status.
  *
  * It also counts the number of unique words in post body and title (i.e. the
  * vocabulary size), and number of unique tags through MapReduce counters.
+ * The counters are only updated here, never in {@link PostCombiner}, so they
+ * stay correct however many times the combiner runs.
+ *
+ * The {@link FeatureKey}s are written as the strings of the model, e.g.
+ * "word", with the terms looked up in the {@link Vocabulary}.
+ *
+ * With {@link NGrams}, the n-grams that occur fewer than
+ * {@link NGrams#MIN_COUNT} times are left out of the model, and not counted,
+ * since most n-grams occur once.
+ *
+ * The time from the setup to the cleanup of the task is added up in
+ * REDUCE_NANOS, for {@link Metrics}.
  */
-public class PostReducer extends Reducer<Text, LongWritable, Text, LongWritable> {
+public class PostReducer
+    extends Reducer<FeatureKey, StatusCounts, Text, StatusCounts> {
   public static enum Counters {
     UNIQUE_WORDS,
     UNIQUE_TAGS,
+    REDUCE_NANOS,
+  }
+
+  private Vocabulary vocabulary;
+  private long minNGramCount;
+  private Counter uniqueWordsCounter;
+  private Counter uniqueTagsCounter;
+  private Text outputKey = new Text();
+  private StatusCounts outputValue = new StatusCounts();
+  private long startNanos;
+
+  @Override
+  protected void setup(Context context)
+      throws IOException, InterruptedException {
+    super.setup(context);
+    startNanos = System.nanoTime();
+    vocabulary = Vocabulary.load(context.getConfiguration());
+    if (NGrams.get(context.getConfiguration()) != null) {
+      minNGramCount = context.getConfiguration().getLong(NGrams.MIN_COUNT, 2);
+    }
+    uniqueWordsCounter = context.getCounter(Counters.UNIQUE_WORDS);
+    uniqueTagsCounter = context.getCounter(Counters.UNIQUE_TAGS);
   }
 
   @Override
-  public void reduce(Text key, Iterable<LongWritable> values, Context context)
+  public void reduce(FeatureKey key, Iterable<StatusCounts> values,
+                     Context context)
       throws IOException, InterruptedException {
-    long count = 0;
-    for (LongWritable value : values) {
-      count += value.get();
+    outputValue.clear();
+    for (StatusCounts value : values) {
+      outputValue.add(value);
+    }
+    key.toText(outputKey, vocabulary);
+    if (outputValue.get(StatusCounts.ALL) < minNGramCount &&
+        key.getType() == FeatureKey.Type.WORD && isNGram(outputKey)) {
+      return;
+    }
+    context.write(outputKey, outputValue);
+    // With hashing, the buckets in use take the place of the unique terms.
+    if (key.getType().isWord()) {
+      uniqueWordsCounter.increment(1);
+    } else if (key.getType().isTag()) {
+      uniqueTagsCounter.increment(1);
     }
-    context.write(key, new LongWritable(count));
-    if (key.toString().indexOf("/") == -1) {
-      context.getCounter(Counters.UNIQUE_WORDS).increment(1);
-    } else if (key.toString().startsWith("/TAG/") &&
-               key.toString().lastIndexOf("/") == 4) {
-      context.getCounter(Counters.UNIQUE_TAGS).increment(1);
+  }
+
+  @Override
+  protected void cleanup(Context context)
+      throws IOException, InterruptedException {
+    context.getCounter(Counters.REDUCE_NANOS)
+        .increment(System.nanoTime() - startNanos);
+    super.cleanup(context);
+  }
+
+  /** Returns whether the word is an n-gram, i.e. has a space. */
+  static boolean isNGram(Text word) {
+    byte[] bytes = word.getBytes();
+    for (int i = 0; i < word.getLength(); i++) {
+      if (bytes[i] == ' ') {
+        return true;
+      }
     }
+    return false;
   }
 }
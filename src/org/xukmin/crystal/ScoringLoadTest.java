@@ -0,0 +1,145 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * This class sends the posts of a test data file to a {@link ScoringServer}
+ * from concurrent clients, and prints the latencies and the throughput seen
+ * by the clients.
+ *
+ * Each client sends its requests one after another, each with a number of
+ * posts, going round the test data until it has sent its share of requests.
+ *
+ * Usage: ScoringLoadTest <url> <test data>
+ */
+public class ScoringLoadTest {
+  /** Number of concurrent clients. */
+  public static final String CLIENTS = "crystal.loadtest.clients";
+  /** Total number of requests sent by all the clients. */
+  public static final String REQUESTS = "crystal.loadtest.requests";
+  /** Number of posts in each request. */
+  public static final String POSTS = "crystal.loadtest.posts";
+
+  public static void main(String[] args) throws Exception {
+    Configuration conf = new Configuration();
+    args = new GenericOptionsParser(conf, args).getRemainingArgs();
+    if (args.length < 2) {
+      System.err.println("Usage: ScoringLoadTest <url> <test data>");
+      System.exit(1);
+    }
+    final URL url = new URL(new URL(args[0]), "/predict");
+    int numClients = conf.getInt(CLIENTS, 8);
+    int numRequests = conf.getInt(REQUESTS, 10000);
+    final int numPosts = conf.getInt(POSTS, 1);
+    final List<byte[]> records =
+        readRecords(FileSystem.get(conf), new Path(args[1]));
+    if (records.isEmpty()) {
+      throw new IOException("No posts in " + args[1]);
+    }
+
+    final LatencyHistogram latencies = new LatencyHistogram();
+    final AtomicLong next = new AtomicLong();
+    final AtomicLong numErrors = new AtomicLong();
+    ExecutorService pool = Executors.newFixedThreadPool(numClients);
+    long start = System.nanoTime();
+    try {
+      List<Future<?>> clients = new ArrayList<Future<?>>();
+      for (int i = 0; i < numClients; i++) {
+        final int requests = numRequests / numClients +
+            (i < numRequests % numClients ? 1 : 0);
+        clients.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            for (int r = 0; r < requests; r++) {
+              long first = next.getAndAdd(numPosts);
+              long begin = System.nanoTime();
+              if (send(url, records, first, numPosts)) {
+                latencies.record(System.nanoTime() - begin);
+              } else {
+                numErrors.incrementAndGet();
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> client : clients) {
+        client.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    latencies.print(System.out, "Request");
+    System.out.printf("Errors               = %d\n", numErrors.get());
+    System.out.printf("Requests / Second    = %.1f\n",
+                      latencies.getCount() / seconds);
+    System.out.printf("Posts / Second       = %.1f\n",
+                      latencies.getCount() * numPosts / seconds);
+  }
+
+  /** Reads the records of the file, without the header. */
+  private static List<byte[]> readRecords(FileSystem fileSystem, Path file)
+      throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    try (CSVLineReader reader = new CSVLineReader(fileSystem.open(file))) {
+      Text line = new Text();
+      Post post = new Post();
+      while (reader.readLine(line) > 0) {
+        if (line.getLength() == 0) {
+          continue;
+        }
+        post.set(line);
+        if (!post.isHeader()) {
+          records.add(line.copyBytes());
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Sends the posts from the given one on, wrapping around, and returns
+   * whether the server predicted them.
+   */
+  private static boolean send(URL url, List<byte[]> records, long first,
+                              int numPosts) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    try (OutputStream out = connection.getOutputStream()) {
+      for (int i = 0; i < numPosts; i++) {
+        out.write(records.get((int) ((first + i) % records.size())));
+        out.write('\n');
+      }
+    }
+    boolean ok = connection.getResponseCode() == 200;
+    // Read the response to the end, so that the connection is kept alive.
+    try (
+      InputStream in = ok ?
+          connection.getInputStream() : connection.getErrorStream();
+    ) {
+      byte[] buffer = new byte[4096];
+      while (in != null && in.read(buffer) >= 0) {
+      }
+    }
+    return ok;
+  }
+}
@@ -0,0 +1,372 @@
+package org.xukmin.crystal;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the log-likelihoods of all the features of a {@link Model}
+ * for each post status, computed once when the model is loaded.
+ *
+ * Words and tags are mapped to dense ids by a {@link TermIndex}, and the
+ * Laplace smoothed log-likelihoods of feature i for status s are stored at
+ * i * numStates + s of a double array, with one extra row at the end for the
+ * features that are not in the model. Scoring a feature then takes one
+ * lookup and no allocation, and gives exactly the same sums as computing the
+ * log-likelihoods from the counts every time. Each feature is looked up in
+ * the model once, for the counts of all the states.
+ *
+ * The states are any of the statuses, e.g. "open" and "closed", or "open"
+ * and the close reasons, whose log-likelihoods are next to each other in the
+ * row of each feature.
+ *
+ * A model trained with {@link FeatureHasher} has buckets in place of the
+ * words and tags. Their ids are then the buckets, and the arrays have a row
+ * for every bucket, so the model takes the same memory whatever the number
+ * of terms, and no term is stored.
+ *
+ * A {@link MappedModel} has its words and tags compiled with their
+ * log-likelihoods for every column, see {@link MappedModel.Terms}. They are
+ * then looked up and read in the mapped file, and the id of a term is its
+ * offset there, so loading the model does not walk the keys, and the model
+ * takes no heap for the terms, whose pages are shared by all the processes
+ * that map the file.
+ */
+public class ScoringModel {
+  /** Number of reputation bins used for smoothing. */
+  public static final int REPUTATION_BINS = 10010;
+  /** Number of undeleted answer count bins used for smoothing. */
+  public static final int UNDELETED_BINS = 1000;
+  /** Number of time bins used for smoothing. */
+  public static final int TIME_BINS = 30;
+
+  // Largest bin numbers that PostMapper writes.
+  private static final int MAX_REPUTATION_BIN = 1010;
+  private static final int MAX_UNDELETED_BIN = 1000;
+  private static final int MAX_TIME_BIN = 30;
+
+  /**
+   * Builds the tables for the states from the model. Stop words are left out
+   * of the word index, so any word found in it is not a stop word. The stop
+   * words of a {@link MappedModel} are left out when it is compiled.
+   */
+  public ScoringModel(Model model, String[] states, StopWords stopWords) {
+    numStates = states.length;
+    columns = new int[numStates];
+    int stateColumns = 0;
+    for (int i = 0; i < numStates; i++) {
+      columns[i] = StatusCounts.getColumn(states[i]);
+      stateColumns |= 1 << columns[i];
+    }
+    this.stateColumns = stateColumns;
+    long[] counts = new long[StatusCounts.COLUMNS];
+
+    long numUniqueWords =
+        model.getCounter(PostReducer.Counters.UNIQUE_WORDS.name());
+    long numUniqueTags =
+        model.getCounter(PostReducer.Counters.UNIQUE_TAGS.name());
+    int numBuckets = (int) model.getCounter(FeatureHasher.COUNTER);
+    hasher = numBuckets > 0 ? new FeatureHasher(numBuckets) : null;
+    ngramSize = (int) Math.max(model.getCounter(NGrams.COUNTER), 1);
+    terms = hasher == null && model instanceof MappedModel ?
+        ((MappedModel) model).getTerms() : null;
+
+    get(model, "/POSTS", counts);
+    long numPosts = counts[StatusCounts.ALL];
+    long[] numStatePosts = new long[numStates];
+    for (int i = 0; i < numStates; i++) {
+      numStatePosts[i] = counts[columns[i]];
+      if (numStatePosts[i] == 0) {
+        throw new IllegalArgumentException(
+            "Model has no posts of status " + states[i]);
+      }
+    }
+    get(model, "/WORDS", counts);
+    long[] numWordsStatus = select(counts);
+    get(model, "/TAGS", counts);
+    long[] numTagsStatus = select(counts);
+
+    if (hasher != null) {
+      numWordIds = numBuckets;
+      numTagIds = numBuckets;
+      wordLogs = bucketLogs(model, "/WORD_BUCKET/", numBuckets,
+                            numWordsStatus, numUniqueWords);
+      tagLogs = bucketLogs(model, "/TAG_BUCKET/", numBuckets,
+                           numTagsStatus, numUniqueTags);
+    } else if (terms != null) {
+      // Only the rows of the unknown terms.
+      numWordIds = 0;
+      numTagIds = 0;
+      wordLogs = termLogs(model, words, "", numWordsStatus, numUniqueWords);
+      tagLogs = termLogs(model, tags, TAG_PREFIX, numTagsStatus,
+                         numUniqueTags);
+    } else {
+      loadTerms(model, stopWords);
+      numWordIds = words.size();
+      numTagIds = tags.size();
+      wordLogs = termLogs(model, words, "", numWordsStatus, numUniqueWords);
+      tagLogs = termLogs(model, tags, TAG_PREFIX, numTagsStatus,
+                         numUniqueTags);
+    }
+
+    reputationLogs = numberLogs(model, "/REPUTATION/",
+        MAX_REPUTATION_BIN, REPUTATION_BINS, numStatePosts);
+    undeletedLogs = numberLogs(model, "/UNDELETED/",
+        MAX_UNDELETED_BIN, UNDELETED_BINS, numStatePosts);
+    timeLogs = numberLogs(model, "/TIME/",
+        MAX_TIME_BIN, TIME_BINS, numStatePosts);
+
+    priorLogs = new double[numStates];
+    for (int i = 0; i < numStates; i++) {
+      priorLogs[i] = Math.log(numStatePosts[i] * 1.0 / numPosts);
+    }
+  }
+
+  /** Indexes the words and tags counted for some of the states. */
+  private void loadTerms(Model model, StopWords stopWords) {
+    long[] counts = new long[StatusCounts.COLUMNS];
+    // The word keys have no slash, and the other keys start with one. Only
+    // the features counted for some of the states are kept.
+    for (String key : model.keys()) {
+      boolean isTag = key.startsWith(TAG_PREFIX) &&
+          key.length() > TAG_PREFIX.length();
+      if (!isTag && key.indexOf('/') != -1) {
+        continue;
+      }
+      get(model, key, counts);
+      if (!hasState(counts)) {
+        continue;
+      }
+      if (isTag) {
+        tags.add(key.substring(TAG_PREFIX.length()));
+      } else if (!stopWords.contains(key)) {
+        words.add(key);
+      }
+    }
+  }
+
+  /**
+   * Returns the log-likelihoods of the terms in the index, keyed by the
+   * prefix and the term, with the last row for the unknown terms.
+   */
+  private double[] termLogs(Model model, TermIndex index, String prefix,
+                            long[] numTermsStatus, long numUniqueTerms) {
+    long[] counts = new long[StatusCounts.COLUMNS];
+    double[] logs = new double[(index.size() + 1) * numStates];
+    for (int id = 0; id <= index.size(); id++) {
+      getCounts(model, id < index.size() ? prefix + index.term(id) : null,
+                counts);
+      setLogs(logs, id, counts, numTermsStatus, numUniqueTerms);
+    }
+    return logs;
+  }
+
+  /**
+   * Returns the log-likelihoods of the buckets, keyed by the prefix and the
+   * bucket number, with the last row for the unknown terms (never used).
+   */
+  private double[] bucketLogs(Model model, String prefix, int numBuckets,
+                              long[] numTermsStatus, long numUniqueTerms) {
+    long[] counts = new long[StatusCounts.COLUMNS];
+    double[] logs = new double[(numBuckets + 1) * numStates];
+    // Most buckets are usually in use, so they are looked up one by one.
+    StringBuilder key = new StringBuilder(prefix);
+    for (int bucket = 0; bucket <= numBuckets; bucket++) {
+      key.setLength(prefix.length());
+      getCounts(model, bucket < numBuckets ?
+                           key.append(bucket).toString() : null, counts);
+      setLogs(logs, bucket, counts, numTermsStatus, numUniqueTerms);
+    }
+    return logs;
+  }
+
+  /** Sets the Laplace smoothed log-likelihoods of a word or tag row. */
+  private void setLogs(double[] logs, int row, long[] counts,
+                       long[] numTermsStatus, long numUniqueTerms) {
+    for (int i = 0; i < numStates; i++) {
+      logs[row * numStates + i] =
+          Math.log((counts[columns[i]] + 1.0) /
+                   (numTermsStatus[i] + numUniqueTerms));
+    }
+  }
+
+  /** Gets the counts of the key, or 0 for the unknown features (null). */
+  private static void getCounts(Model model, String key, long[] counts) {
+    if (key == null) {
+      Arrays.fill(counts, 0);
+    } else {
+      get(model, key, counts);
+    }
+  }
+
+  /** Gets the counts of the key, with the close reasons added to closed. */
+  private static void get(Model model, String key, long[] counts) {
+    model.get(key, counts);
+    StatusCounts.addCloseReasons(counts);
+  }
+
+  /** Returns the counts of the columns of the states. */
+  private long[] select(long[] counts) {
+    long[] selected = new long[numStates];
+    for (int i = 0; i < numStates; i++) {
+      selected[i] = counts[columns[i]];
+    }
+    return selected;
+  }
+
+  private boolean hasState(long[] counts) {
+    for (int column : columns) {
+      if (counts[column] != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private double[] numberLogs(Model model, String name, int maxBin, int bins,
+                              long[] numStatePosts) {
+    long[] counts = new long[StatusCounts.COLUMNS];
+    double[] logs = new double[(maxBin + 1) * numStates];
+    for (int bin = 0; bin <= maxBin; bin++) {
+      get(model, name + bin, counts);
+      for (int i = 0; i < numStates; i++) {
+        logs[bin * numStates + i] =
+            Math.log((counts[columns[i]] + 1.0) /
+                     (numStatePosts[i] + bins));
+      }
+    }
+    return logs;
+  }
+
+  /** Returns the number of states of the model. */
+  public int getNumStates() {
+    return numStates;
+  }
+
+  /**
+   * Whether the words and tags are hashed. Every word then has a bucket, so
+   * the stop words are not told apart by having no id.
+   */
+  public boolean isHashed() {
+    return hasher != null;
+  }
+
+  /**
+   * Returns the n of the n-grams the model was trained with, which are words
+   * of the model, or 1 if it has no n-grams.
+   */
+  public int getNGramSize() {
+    return ngramSize;
+  }
+
+  /**
+   * Returns the id of the UTF-8 word in bytes[start, end), or -1 if it is not
+   * in the model.
+   */
+  public int getWordId(byte[] bytes, int start, int end) {
+    if (hasher != null) {
+      return hasher.getBucket(bytes, start, end);
+    }
+    if (terms != null) {
+      return counted(terms.getWord(bytes, start, end));
+    }
+    return words.get(bytes, start, end);
+  }
+
+  /**
+   * Returns the id of the UTF-8 tag in bytes[start, end), or -1 if it is not
+   * in the model.
+   */
+  public int getTagId(byte[] bytes, int start, int end) {
+    if (hasher != null) {
+      return hasher.getBucket(bytes, start, end);
+    }
+    if (terms != null) {
+      return counted(terms.getTag(bytes, start, end));
+    }
+    return tags.get(bytes, start, end);
+  }
+
+  /**
+   * Returns the mapped term if it is counted for some of the states, like
+   * the terms of the index, or -1.
+   */
+  private int counted(int term) {
+    return term >= 0 && (terms.getColumns(term) & stateColumns) != 0 ?
+        term : -1;
+  }
+
+  /**
+   * Adds the log-likelihoods of the word id, or of unknown words, to the
+   * scores of the states from scores[offset].
+   */
+  public void addWord(int id, double[] scores, int offset) {
+    if (terms != null && id >= 0) {
+      addTerm(id, scores, offset);
+      return;
+    }
+    add(wordLogs, id < 0 ? numWordIds : id, scores, offset);
+  }
+
+  /** Adds the log-likelihoods of the tag id, or of unknown tags. */
+  public void addTag(int id, double[] scores, int offset) {
+    if (terms != null && id >= 0) {
+      addTerm(id, scores, offset);
+      return;
+    }
+    add(tagLogs, id < 0 ? numTagIds : id, scores, offset);
+  }
+
+  public void addReputation(int bin, double[] scores, int offset) {
+    add(reputationLogs, bin, scores, offset);
+  }
+
+  public void addUndeleted(int bin, double[] scores, int offset) {
+    add(undeletedLogs, bin, scores, offset);
+  }
+
+  public void addTime(int bin, double[] scores, int offset) {
+    add(timeLogs, bin, scores, offset);
+  }
+
+  /** Adds the log of the prior probability of each state. */
+  public void addPrior(double[] scores, int offset) {
+    for (int i = 0; i < numStates; i++) {
+      scores[offset + i] += priorLogs[i];
+    }
+  }
+
+  private void addTerm(int term, double[] scores, int offset) {
+    for (int i = 0; i < numStates; i++) {
+      scores[offset + i] += terms.getLog(term, columns[i]);
+    }
+  }
+
+  private void add(double[] logs, int row, double[] scores, int offset) {
+    int start = row * numStates;
+    for (int i = 0; i < numStates; i++) {
+      scores[offset + i] += logs[start + i];
+    }
+  }
+
+  private static final String TAG_PREFIX = "/TAG/";
+
+  private final int numStates;
+  // Column of the StatusCounts of each state.
+  private final int[] columns;
+  // Bits of the columns of the states.
+  private final int stateColumns;
+  private final FeatureHasher hasher;
+  private final int ngramSize;
+  private final TermIndex words = new TermIndex();
+  private final TermIndex tags = new TermIndex();
+  // The words and tags of a mapped model, in place of the indexes.
+  private final MappedModel.Terms terms;
+  // Number of word / tag ids, which is the row of the unknown terms.
+  private final int numWordIds;
+  private final int numTagIds;
+  private final double[] wordLogs;
+  private final double[] tagLogs;
+  private final double[] reputationLogs;
+  private final double[] undeletedLogs;
+  private final double[] timeLogs;
+  private final double[] priorLogs;
+}
@@ -0,0 +1,352 @@
+package org.xukmin.crystal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+/**
+ * This class keeps a {@link PostPredictor} loaded and predicts posts over
+ * HTTP on the local host, so that the model is loaded once rather than once
+ * per run of PostPredictor.
+ *
+ * POST /predict takes one or more CSV records, in the format of the test data
+ * and optionally with the header, and responds with a "PostId\tstatus" line
+ * for each post. GET /stats responds with the request latencies and the
+ * throughput since the server started, or since the last GET /stats?reset.
+ *
+ * The HTTP threads only read and write the requests. They queue the requests
+ * up for the scorer threads, which take whatever requests are waiting, up to
+ * a batch, every time they wake up. Under load, a scorer thread predicts many
+ * requests in a row without going back to the queue, and the queue is bounded
+ * so that the server pushes back instead of piling up requests.
+ *
+ * If a scorer thread fails with an Error, the requests it took are answered
+ * with 500, and so are the waiting ones once no scorer thread is left, so
+ * that no HTTP thread waits forever.
+ *
+ * With crystal.predictor.reload.interval set, the predictor picks up a new
+ * version of the model while the server keeps answering requests.
+ *
+ * Usage: ScoringServer [<model>]
+ */
+public class ScoringServer {
+  /** Port to listen to, or 0 for any free port. */
+  public static final String PORT = "crystal.server.port";
+  /** Number of threads that read the requests and write the responses. */
+  public static final String HANDLERS = "crystal.server.handlers";
+  /** Number of threads that predict the posts. */
+  public static final String THREADS = "crystal.server.threads";
+  /** Maximum number of requests waiting for the scorer threads. */
+  public static final String QUEUE_SIZE = "crystal.server.queue.size";
+  /** Maximum number of requests a scorer thread takes at a time. */
+  public static final String BATCH_SIZE = "crystal.server.batch.size";
+
+  public ScoringServer(Configuration conf, String location)
+      throws IOException {
+    port = conf.getInt(PORT, 8080);
+    numHandlers = conf.getInt(HANDLERS, 16);
+    numThreads = conf.getInt(THREADS,
+        Runtime.getRuntime().availableProcessors());
+    batchSize = conf.getInt(BATCH_SIZE, 32);
+    queue = new ArrayBlockingQueue<Request>(conf.getInt(QUEUE_SIZE, 1024));
+    long start = System.nanoTime();
+    predictor = new PostPredictor(conf, location);
+    System.out.printf("Model Load Time (ms) = %d\n",
+                      (System.nanoTime() - start) / 1000000);
+  }
+
+  /** A request, which the HTTP thread waits on until it is predicted. */
+  private static class Request {
+    Request(List<Text> records) {
+      this.records = records;
+      this.predictions = new String[records.size()];
+    }
+
+    final List<Text> records;
+    final String[] predictions;
+    final CountDownLatch done = new CountDownLatch(1);
+    RuntimeException error;
+    // Why the request could not be predicted at all.
+    volatile Throwable failure;
+
+    /** Completes the request with the failure, unless it is done. */
+    void fail(Throwable failure) {
+      if (done.getCount() > 0) {
+        this.failure = failure;
+        done.countDown();
+      }
+    }
+  }
+
+  public void start() throws IOException {
+    // The response headers and body are written separately, and with Nagle's
+    // algorithm the body waits for the client's delayed ACK, i.e. 40 ms.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    handlerPool = Executors.newFixedThreadPool(numHandlers);
+    server.setExecutor(handlerPool);
+    server.createContext("/predict", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handlePredict(exchange);
+      }
+    });
+    server.createContext("/stats", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleStats(exchange);
+      }
+    });
+
+    scorerPool = Executors.newFixedThreadPool(numThreads);
+    numScorers.set(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      scorerPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            scoreBatches();
+          } catch (InterruptedException e) {
+            // Stopped.
+          }
+        }
+      });
+    }
+    resetStats();
+    server.start();
+  }
+
+  /** Returns the port the server listens to. */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public void stop() {
+    server.stop(0);
+    handlerPool.shutdownNow();
+    scorerPool.shutdownNow();
+    predictor.close();
+    stopped.countDown();
+  }
+
+  /** Waits until the server is stopped. */
+  public void awaitStop() throws InterruptedException {
+    stopped.await();
+  }
+
+  private void handlePredict(HttpExchange exchange) throws IOException {
+    long start = System.nanoTime();
+    try {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        respond(exchange, 405, "Use POST.\n");
+        return;
+      }
+      Request request = new Request(readRecords(exchange.getRequestBody()));
+      queue.put(request);
+      if (numScorers.get() == 0) {
+        failWaiting();
+      }
+      request.done.await();
+      if (request.failure != null) {
+        respond(exchange, 500, "Scoring failed: " + request.failure + "\n");
+        return;
+      }
+      if (request.error != null) {
+        respond(exchange, 400, "Malformed post: " + request.error + "\n");
+        return;
+      }
+
+      StringBuilder response = new StringBuilder();
+      int posts = 0;
+      for (String prediction : request.predictions) {
+        if (prediction != null) {
+          response.append(prediction).append('\n');
+          posts++;
+        }
+      }
+      respond(exchange, 200, response.toString());
+      latencies.record(System.nanoTime() - start);
+      numPosts.addAndGet(posts);
+    } catch (InterruptedException e) {
+      respond(exchange, 503, "Server stopping.\n");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /** Reads the records of the request body, which may span multiple lines. */
+  private static List<Text> readRecords(InputStream in) throws IOException {
+    List<Text> records = new ArrayList<Text>();
+    try (CSVLineReader reader = new CSVLineReader(in)) {
+      Text line = new Text();
+      while (reader.readLine(line) > 0) {
+        if (line.getLength() > 0) {
+          records.add(new Text(line));
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Predicts the requests in the queue until the server stops. The
+   * predictions are "PostId\tstatus", or null for the header.
+   */
+  private void scoreBatches() throws InterruptedException {
+    Post post = new Post();
+    List<Request> batch = new ArrayList<Request>(batchSize);
+    Throwable failure = new IllegalStateException("Server stopping.");
+    try {
+      while (true) {
+        batch.add(queue.take());
+        queue.drainTo(batch, batchSize - 1);
+        for (Request request : batch) {
+          try {
+            for (int i = 0; i < request.records.size(); i++) {
+              post.set(request.records.get(i));
+              if (!post.isHeader()) {
+                request.predictions[i] =
+                    post.getPostId() + "\t" + predictor.predict(post);
+              }
+            }
+          } catch (RuntimeException e) {
+            request.error = e;
+          }
+          request.done.countDown();
+        }
+        numBatches.incrementAndGet();
+        numBatchedRequests.addAndGet(batch.size());
+        batch.clear();
+      }
+    } catch (Error e) {
+      failure = e;
+      throw e;
+    } finally {
+      // The requests of the batch that are not done yet would never be.
+      for (Request request : batch) {
+        request.fail(failure);
+      }
+      scorerFailure = failure;
+      if (numScorers.decrementAndGet() == 0) {
+        failWaiting();
+      }
+    }
+  }
+
+  /**
+   * Fails the requests waiting in the queue, once no scorer thread is left
+   * to take them. A request queued at the same time as the last scorer
+   * thread ends is failed by whichever of them sees it.
+   */
+  private void failWaiting() {
+    List<Request> waiting = new ArrayList<Request>();
+    queue.drainTo(waiting);
+    for (Request request : waiting) {
+      request.fail(scorerFailure);
+    }
+  }
+
+  private void handleStats(HttpExchange exchange) throws IOException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      printStats(new PrintStream(bytes, true, "UTF-8"));
+      if ("reset".equals(exchange.getRequestURI().getQuery())) {
+        resetStats();
+      }
+      respond(exchange, 200, bytes.toString("UTF-8"));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  public void printStats(PrintStream out) {
+    double seconds = (System.nanoTime() - statsStart) / 1e9;
+    long batches = numBatches.get();
+    latencies.print(out, "Request");
+    out.printf("Posts                = %d\n", numPosts.get());
+    out.printf("Requests / Second    = %.1f\n", latencies.getCount() / seconds);
+    out.printf("Posts / Second       = %.1f\n", numPosts.get() / seconds);
+    out.printf("Requests / Batch     = %.2f\n",
+               batches == 0 ? 0 : numBatchedRequests.get() * 1.0 / batches);
+    predictor.printReloadStats(out);
+  }
+
+  private void resetStats() {
+    latencies.reset();
+    numPosts.set(0);
+    numBatches.set(0);
+    numBatchedRequests.set(0);
+    statsStart = System.nanoTime();
+  }
+
+  private static void respond(HttpExchange exchange, int status,
+                              String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type",
+                                      "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Configuration conf = new Configuration();
+    args = new GenericOptionsParser(conf, args).getRemainingArgs();
+    final ScoringServer server =
+        new ScoringServer(conf, args.length >= 1 ? args[0] : "model.bin");
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        server.stop();
+        server.printStats(System.out);
+      }
+    });
+    System.out.printf("Listening on port %d\n", server.getPort());
+    server.awaitStop();
+  }
+
+  private final PostPredictor predictor;
+  private final int port;
+  private final int numHandlers;
+  private final int numThreads;
+  private final int batchSize;
+  private final BlockingQueue<Request> queue;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final AtomicLong numPosts = new AtomicLong();
+  private final AtomicLong numBatches = new AtomicLong();
+  private final AtomicLong numBatchedRequests = new AtomicLong();
+  // Number of scorer threads still taking requests, and why the last one
+  // ended.
+  private final AtomicInteger numScorers = new AtomicInteger();
+  private volatile Throwable scorerFailure;
+  private volatile long statsStart;
+  private HttpServer server;
+  private ExecutorService handlerPool;
+  private ExecutorService scorerPool;
+}
@@ -0,0 +1,199 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * This class partitions the map output of {@link PostMapReduce} so that the
+ * reducers get about the same amount of work.
+ *
+ * A few keys get far more records than the rest: the totals /POSTS, /WORDS
+ * and /TAGS get one per post, and the most common words one per few posts.
+ * Hashing spreads the number of keys evenly, but whichever reducers the hot
+ * keys hash to end up with most of the records.
+ *
+ * Before the job, {@link #writePartitionFile} takes the keys sampled from the
+ * input by {@link FeatureSampler}, and assigns the hottest keys one by one to
+ * the least loaded reducer, counting the rest of the keys as spread evenly. The
+ * assignment is written to a partition file, which every task reads, like
+ * Hadoop's TotalOrderPartitioner. All the other keys are hashed as usual.
+ */
+public class SkewPartitioner extends Partitioner<FeatureKey, StatusCounts>
+    implements Configurable {
+  /** Path of the partition file. */
+  public static final String PARTITION_FILE = "crystal.partitioner.path";
+
+  /** Maximum number of hot keys assigned to the reducers. */
+  public static final String HOT_KEYS = "crystal.partitioner.hot.keys";
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    partitions.clear();
+    String file = conf.get(PARTITION_FILE);
+    if (file == null) {
+      return;
+    }
+    try (
+      SequenceFile.Reader reader =
+          new SequenceFile.Reader(conf,
+                                  SequenceFile.Reader.file(new Path(file)));
+    ) {
+      FeatureKey key = new FeatureKey();
+      IntWritable partition = new IntWritable();
+      while (reader.next(key, partition)) {
+        partitions.put(new FeatureKey(key), partition.get());
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Can't read partition file " + file,
+                                         e);
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public int getPartition(FeatureKey key, StatusCounts value,
+                          int numPartitions) {
+    Integer partition = partitions.get(key);
+    if (partition != null && partition < numPartitions) {
+      return partition;
+    }
+    return hashPartition(key, numPartitions);
+  }
+
+  /** The same as Hadoop's HashPartitioner. */
+  private static int hashPartition(FeatureKey key, int numPartitions) {
+    return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+  }
+
+  /**
+   * Writes the partitions of the hot keys for the reducers of the job to the
+   * file, and sets the job to read it.
+   *
+   * Without aggregation in the map tasks, the reducers get a record for every
+   * time a key is written. With {@link PostCombiner} or the in-mapper
+   * aggregation, they get about one per map task, so the keys are weighed by
+   * the number of sampled splits they are in instead.
+   *
+   * @param sample the keys sampled by {@link FeatureSampler}.
+   */
+  public static void writePartitionFile(Job job, Path file,
+                                        Map<FeatureKey, long[]> sample)
+      throws IOException {
+    Configuration conf = job.getConfiguration();
+    int numReducers = job.getNumReduceTasks();
+    boolean aggregated = conf.getBoolean(PostMapReduce.COMBINER, true) ||
+        conf.getBoolean(PostMapper.IN_MAPPER, false);
+    List<Map.Entry<FeatureKey, Long>> weights =
+        new ArrayList<Map.Entry<FeatureKey, Long>>(sample.size());
+    for (Map.Entry<FeatureKey, long[]> entry : sample.entrySet()) {
+      long weight = entry.getValue()[aggregated ? FeatureSampler.SPLITS
+                                                : FeatureSampler.RECORDS];
+      weights.add(new AbstractMap.SimpleEntry<FeatureKey, Long>(
+          entry.getKey(), weight));
+    }
+    Collections.sort(weights, new Comparator<Map.Entry<FeatureKey, Long>>() {
+      @Override
+      public int compare(Map.Entry<FeatureKey, Long> a,
+                         Map.Entry<FeatureKey, Long> b) {
+        return Long.compare(b.getValue(), a.getValue());
+      }
+    });
+    int numHotKeys = Math.min(weights.size(), conf.getInt(HOT_KEYS, 1024));
+
+    long coldWeight = 0;
+    for (int i = numHotKeys; i < weights.size(); i++) {
+      coldWeight += weights.get(i).getValue();
+    }
+    // Longest processing time first: each hot key goes to the reducer with
+    // the least work so far.
+    final double[] loads = new double[numReducers];
+    PriorityQueue<Integer> reducers = new PriorityQueue<Integer>(
+        numReducers, new Comparator<Integer>() {
+          @Override
+          public int compare(Integer a, Integer b) {
+            return Double.compare(loads[a], loads[b]);
+          }
+        });
+    for (int i = 0; i < numReducers; i++) {
+      loads[i] = (double) coldWeight / numReducers;
+      reducers.add(i);
+    }
+
+    FileSystem fs = file.getFileSystem(conf);
+    fs.delete(file, false);
+    Map<FeatureKey, Integer> hotKeys = new HashMap<FeatureKey, Integer>();
+    try (
+      SequenceFile.Writer writer =
+          SequenceFile.createWriter(conf,
+              SequenceFile.Writer.file(fs.makeQualified(file)),
+              SequenceFile.Writer.keyClass(FeatureKey.class),
+              SequenceFile.Writer.valueClass(IntWritable.class));
+    ) {
+      IntWritable partition = new IntWritable();
+      for (int i = 0; i < numHotKeys; i++) {
+        Map.Entry<FeatureKey, Long> entry = weights.get(i);
+        int reducer = reducers.poll();
+        loads[reducer] += entry.getValue();
+        reducers.add(reducer);
+        partition.set(reducer);
+        writer.append(entry.getKey(), partition);
+        hotKeys.put(entry.getKey(), reducer);
+      }
+    }
+    conf.set(PARTITION_FILE, fs.makeQualified(file).toString());
+
+    System.out.printf("Hot Keys = %d\n", numHotKeys);
+    System.out.printf("Sampled Reducer Load (max / mean), Hash = %.3f\n",
+        getImbalance(weights, null, numReducers));
+    System.out.printf("Sampled Reducer Load (max / mean), Skew = %.3f\n",
+        getImbalance(weights, hotKeys, numReducers));
+  }
+
+  /**
+   * Returns the maximum load of the reducers over the mean for the sampled
+   * keys, with the hot keys assigned as given, and the rest hashed.
+   */
+  private static double getImbalance(
+      List<Map.Entry<FeatureKey, Long>> weights,
+      Map<FeatureKey, Integer> hotKeys, int numReducers) {
+    long[] loads = new long[numReducers];
+    long total = 0;
+    for (Map.Entry<FeatureKey, Long> entry : weights) {
+      Integer reducer = hotKeys == null ? null : hotKeys.get(entry.getKey());
+      if (reducer == null) {
+        reducer = hashPartition(entry.getKey(), numReducers);
+      }
+      loads[reducer] += entry.getValue();
+      total += entry.getValue();
+    }
+    long max = 0;
+    for (long load : loads) {
+      max = Math.max(max, load);
+    }
+    return total == 0 ? 1.0 : (double) max * numReducers / total;
+  }
+
+  private Configuration conf;
+  private Map<FeatureKey, Integer> partitions =
+      new HashMap<FeatureKey, Integer>();
+}
@@ -0,0 +1,171 @@
+package org.xukmin.crystal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * This class holds the counts of a feature for all the posts and for each post
+ * status, so that {@link PostMapReduce} writes, shuffles and reduces a feature
+ * once instead of once per status.
+ *
+ * Column {@link #ALL} counts all the posts, and column i + 1 the posts of
+ * status {@link #STATUSES}[i]. The model has one row per feature with all the
+ * columns, e.g. "word\t12\t10\t0\t1\t0\t1\t0". The closed posts are counted
+ * by close reason, and the closed column is their sum, which
+ * {@link #addCloseReasons} adds up when the model is loaded.
+ *
+ * Only the columns that are not 0 are serialized, which are usually two in
+ * the map output, for all the posts and for the status of the post.
+ */
+public class StatusCounts implements Writable {
+  /** The statuses of the posts, in the order of the columns. */
+  public static final String[] STATUSES = {
+    "open",
+    "closed",
+    "not a real question",
+    "not constructive",
+    "off topic",
+    "too localized",
+  };
+
+  /** Column of the counts of all the posts. */
+  public static final int ALL = 0;
+
+  /** Number of columns: all the posts, and each status. */
+  public static final int COLUMNS = STATUSES.length + 1;
+
+  /** Column of the posts closed for any reason. */
+  public static final int CLOSED = 2;
+
+  public StatusCounts() {
+  }
+
+  /** Returns the column of the status. */
+  public static int getColumn(String status) {
+    for (int i = 0; i < STATUSES.length; i++) {
+      if (STATUSES[i].equals(status)) {
+        return i + 1;
+      }
+    }
+    throw new IllegalArgumentException("Unknown status: " + status);
+  }
+
+  /**
+   * Parses a row of the model into the counts, and returns the key, or null
+   * if the row does not have a key and {@link #COLUMNS} counts.
+   */
+  public static String parse(String line, long[] counts) {
+    int end = line.length();
+    for (int i = COLUMNS - 1; i >= 0; i--) {
+      int tab = line.lastIndexOf('\t', end - 1);
+      if (tab == -1) {
+        return null;
+      }
+      try {
+        counts[i] = Long.parseLong(line.substring(tab + 1, end));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      end = tab;
+    }
+    return line.substring(0, end);
+  }
+
+  /**
+   * Adds the counts of the close reasons to the {@link #CLOSED} column. The
+   * closed posts are counted by close reason, except in the models trained
+   * before, which only have the closed column.
+   */
+  public static void addCloseReasons(long[] counts) {
+    for (int i = CLOSED + 1; i < COLUMNS; i++) {
+      counts[CLOSED] += counts[i];
+    }
+  }
+
+  /** Sets the count of all the posts and of the status column. */
+  public void set(int status, long count) {
+    clear();
+    counts[ALL] = count;
+    counts[status] = count;
+  }
+
+  /** Sets all the columns, e.g. to a row parsed by {@link #parse}. */
+  public void set(long[] counts) {
+    System.arraycopy(counts, 0, this.counts, 0, COLUMNS);
+  }
+
+  /** Adds the count to all the posts and to the status column. */
+  public void add(int status, long count) {
+    counts[ALL] += count;
+    counts[status] += count;
+  }
+
+  /** Adds up the counts column by column. */
+  public void add(StatusCounts other) {
+    for (int i = 0; i < COLUMNS; i++) {
+      counts[i] += other.counts[i];
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(counts, 0);
+  }
+
+  public long get(int column) {
+    return counts[column];
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    int columns = 0;
+    for (int i = 0; i < COLUMNS; i++) {
+      if (counts[i] != 0) {
+        columns |= 1 << i;
+      }
+    }
+    out.writeByte(columns);
+    for (int i = 0; i < COLUMNS; i++) {
+      if (counts[i] != 0) {
+        WritableUtils.writeVLong(out, counts[i]);
+      }
+    }
+  }
+
+  /** Returns the number of bytes written by {@link #write}. */
+  public int getSerializedSize() {
+    int size = 1;
+    for (int i = 0; i < COLUMNS; i++) {
+      if (counts[i] != 0) {
+        size += WritableUtils.getVIntSize(counts[i]);
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int columns = in.readUnsignedByte();
+    for (int i = 0; i < COLUMNS; i++) {
+      counts[i] = (columns & (1 << i)) != 0 ? WritableUtils.readVLong(in) : 0;
+    }
+  }
+
+  /** Returns the counts separated by tabs, as in a row of the model. */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < COLUMNS; i++) {
+      if (i > 0) {
+        builder.append('\t');
+      }
+      builder.append(counts[i]);
+    }
+    return builder.toString();
+  }
+
+  private final long[] counts = new long[COLUMNS];
+}
@@ -0,0 +1,93 @@
+package org.xukmin.crystal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * This class holds the stop words, and checks whether a word is one of them
+ * regardless of case, like `stopWords.contains(word.toLowerCase())`.
+ *
+ * Words are given as ranges of UTF-8 bytes. ASCII letters are folded into a
+ * scratch buffer, so the check allocates nothing. Other characters only need
+ * folding if some stop word is not ASCII, or for the Kelvin sign, whose lower
+ * case is 'k'; such words are decoded and lower-cased as Strings.
+ */
+public class StopWords {
+  /** The stop word list, one word per line. */
+  public static final String FILE = "stop-word-list.txt";
+
+  public static StopWords load(FileSystem fs) throws IOException {
+    StopWords stopWords = new StopWords();
+    try (
+      BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(
+                  fs.open(new Path(FILE)), StandardCharsets.UTF_8));
+    ) {
+      String word;
+      while ((word = reader.readLine()) != null) {
+        stopWords.add(word);
+      }
+    }
+    return stopWords;
+  }
+
+  public void add(String word) {
+    // Like HashSet.contains(word.toLowerCase()), only lower case words match.
+    if (!word.equals(word.toLowerCase())) {
+      return;
+    }
+    for (int i = 0; i < word.length(); i++) {
+      if (word.charAt(i) >= 0x80) {
+        ascii = false;
+      }
+    }
+    words.add(word);
+  }
+
+  public boolean contains(String word) {
+    return words.get(word.toLowerCase()) >= 0;
+  }
+
+  /**
+   * Returns whether the word in bytes[start, end) is a stop word. The scratch
+   * buffer must be at least as long as the word.
+   */
+  public boolean contains(byte[] bytes, int start, int end, byte[] scratch) {
+    int length = end - start;
+    for (int i = 0; i < length; i++) {
+      byte b = bytes[start + i];
+      if (b < 0) {
+        return containsNonAscii(bytes, start, end);
+      }
+      scratch[i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+    return words.get(scratch, 0, length) >= 0;
+  }
+
+  private boolean containsNonAscii(byte[] bytes, int start, int end) {
+    if (ascii && !containsKelvinSign(bytes, start, end)) {
+      // No other non-ASCII character is lower-cased into ASCII.
+      return false;
+    }
+    return contains(new String(bytes, start, end - start,
+                               StandardCharsets.UTF_8));
+  }
+
+  private static boolean containsKelvinSign(byte[] bytes, int start, int end) {
+    for (int i = start; i + 2 < end; i++) {
+      if (bytes[i] == (byte) 0xE2 && bytes[i + 1] == (byte) 0x84 &&
+          bytes[i + 2] == (byte) 0xAA) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private TermIndex words = new TermIndex();
+  private boolean ascii = true;
+}
@@ -0,0 +1,134 @@
+package org.xukmin.crystal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class assigns dense ids 0, 1, 2, ... to terms.
+ *
+ * It is an open addressing hash table on primitive arrays, keyed by the UTF-8
+ * bytes of the terms, so looking up a term given as a range of a byte array
+ * takes one probe sequence and allocates nothing.
+ */
+public class TermIndex {
+  public TermIndex() {
+    this(16);
+  }
+
+  public TermIndex(int expectedSize) {
+    int capacity = 16;
+    while (capacity < 2 * expectedSize) {
+      capacity *= 2;
+    }
+    slots = new int[capacity];
+    terms = new byte[Math.max(expectedSize, 16)][];
+    hashes = new int[terms.length];
+  }
+
+  /** Returns the id of the term, adding it if it is not in the index yet. */
+  public int add(String term) {
+    byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+    return add(bytes, 0, bytes.length);
+  }
+
+  /** Returns the id of the term, adding it if it is not in the index yet. */
+  public int add(byte[] bytes, int start, int end) {
+    int hash = hash(bytes, start, end);
+    int slot = find(hash, bytes, start, end);
+    if (slots[slot] != 0) {
+      return slots[slot] - 1;
+    }
+    if (size == terms.length) {
+      terms = Arrays.copyOf(terms, 2 * size);
+      hashes = Arrays.copyOf(hashes, 2 * size);
+    }
+    terms[size] = Arrays.copyOfRange(bytes, start, end);
+    hashes[size] = hash;
+    slots[slot] = ++size;
+    if (2 * size > slots.length) {
+      rehash();
+    }
+    return size - 1;
+  }
+
+  /** Returns the id of the term, or -1 if it is not in the index. */
+  public int get(String term) {
+    byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+    return get(bytes, 0, bytes.length);
+  }
+
+  /** Returns the id of the term, or -1 if it is not in the index. */
+  public int get(byte[] bytes, int start, int end) {
+    return slots[find(hash(bytes, start, end), bytes, start, end)] - 1;
+  }
+
+  /** Returns the term of the id. */
+  public String term(int id) {
+    return new String(terms[id], StandardCharsets.UTF_8);
+  }
+
+  /** Returns the UTF-8 bytes of the term of the id, which must not change. */
+  public byte[] termBytes(int id) {
+    return terms[id];
+  }
+
+  /** Returns the number of terms in the index. */
+  public int size() {
+    return size;
+  }
+
+  private int find(int hash, byte[] bytes, int start, int end) {
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      int id = slots[slot] - 1;
+      if (hashes[id] == hash && equals(terms[id], bytes, start, end)) {
+        break;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    int[] old = slots;
+    slots = new int[2 * old.length];
+    int mask = slots.length - 1;
+    for (int id : old) {
+      if (id != 0) {
+        int slot = hashes[id - 1] & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = id;
+      }
+    }
+  }
+
+  static int hash(byte[] bytes, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + bytes[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean equals(byte[] term, byte[] bytes, int start,
+                                int end) {
+    if (term.length != end - start) {
+      return false;
+    }
+    for (int i = 0; i < term.length; i++) {
+      if (term[i] != bytes[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Id + 1 of the term in each slot, or 0 for an empty slot.
+  private int[] slots;
+  private byte[][] terms;
+  private int[] hashes;
+  private int size;
+}
@@ -0,0 +1,104 @@
+package org.xukmin.crystal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * This class loads the output directory of {@link PostMapReduce} into a
+ * `HashMap<String, long[]>`.
+ *
+ * The files are read as UTF-8, which they are written in, whatever the
+ * default charset, so that the keys match the UTF-8 bytes of the terms that
+ * {@link ScoringModel} looks up.
+ */
+public class TextModel implements Model {
+  public TextModel(FileSystem fileSystem, String directory) throws IOException {
+    this.fileSystem = fileSystem;
+    loadCounters(directory);
+    loadParameters(directory);
+  }
+
+  private void loadParameters(String directory) throws IOException {
+    System.out.println("Loading Classification Model...");
+    for (FileStatus file :
+         fileSystem.globStatus(new Path(directory + "/part-r-*"))) {
+      System.out.print(".");
+      try (
+        BufferedReader reader =
+            new BufferedReader(
+                new InputStreamReader(
+                    fileSystem.open(file.getPath()), StandardCharsets.UTF_8));
+      ) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          long[] counts = new long[StatusCounts.COLUMNS];
+          String key = StatusCounts.parse(line, counts);
+          if (key == null) {
+            System.err.printf("Invalid line in %s.", file.getPath());
+            System.exit(1);
+          }
+          parameters.put(key, counts);
+        }
+      }
+    }
+    System.out.println("");
+    System.out.println("Classification Model loaded successfully.");
+  }
+
+  private void loadCounters(String directory) throws IOException {
+    try (
+      BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(
+                  fileSystem.open(new Path(directory + "/counters")),
+                  StandardCharsets.UTF_8));
+    ) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] kv = line.split("\t");
+        if (kv.length != 2) {
+          System.err.printf("Invalid line in counters file.\n");
+          System.exit(1);
+        }
+        counters.put(kv[0], Long.valueOf(kv[1]));
+      }
+    }
+  }
+
+  @Override
+  public boolean get(String key, long[] counts) {
+    long[] value = parameters.get(key);
+    if (value == null) {
+      Arrays.fill(counts, 0);
+      return false;
+    }
+    System.arraycopy(value, 0, counts, 0, counts.length);
+    return true;
+  }
+
+  @Override
+  public Iterable<String> keys() {
+    return parameters.keySet();
+  }
+
+  @Override
+  public long getCounter(String name) {
+    Long value = counters.get(name);
+    return value == null ? 0 : value;
+  }
+
+  @Override
+  public void close() {
+  }
+
+  private FileSystem fileSystem;
+  private HashMap<String, Long> counters = new HashMap<String, Long>();
+  private HashMap<String, long[]> parameters = new HashMap<String, long[]>();
+}
@@ -8,13 +8,15 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * A utility class to extract bigrams given a list of words.
+ * A utility class to extract bigrams given a list of words. Training and
+ * prediction make the n-grams with {@link NGrams} instead, without strings.
  */
 public class TextUtils {
   public static List<String> getBigrams(String[] words) {
-    List<String> list = new ArrayList<String>();
+    List<String> list =
+        new ArrayList<String>(Math.max(words.length - 1, 0));
     for (int i = 0; i < words.length - 1; i++) {
-      list.add(String.format("%s %s",  words[i], words[i + i]));
+      list.add(words[i] + " " + words[i + 1]);
     }
     return list;
   }
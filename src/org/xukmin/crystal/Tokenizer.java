@@ -0,0 +1,137 @@
+package org.xukmin.crystal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class splits text into words, the same way as
+ * `text.split("[\\p{Punct}\\s]+")` without the empty strings, and is shared by
+ * training and prediction so that they always see the same words.
+ *
+ * The delimiters are all ASCII, so the text is scanned in place as UTF-8
+ * bytes. The current word is a view of the bytes, from {@link #getStart()} to
+ * {@link #getEnd()} of {@link #getBytes()}, which is only valid until the next
+ * call to {@link #next()} or reset(). A Tokenizer is not thread-safe.
+ */
+public class Tokenizer {
+  public Tokenizer(StopWords stopWords) {
+    this.stopWords = stopWords;
+  }
+
+  /** Starts tokenizing the UTF-8 text in bytes[start, end). */
+  public void reset(byte[] bytes, int start, int end) {
+    this.bytes = bytes;
+    this.position = start;
+    this.limit = end;
+    this.start = start;
+    this.end = start;
+    if (scratch.length < end - start) {
+      scratch = new byte[end - start];
+    }
+  }
+
+  /**
+   * Starts tokenizing the text. It is encoded into a buffer owned by the
+   * tokenizer, which is reused by the next call.
+   */
+  public void reset(CharSequence text) {
+    int length = 0;
+    int n = text.length();
+    if (buffer.length < 3 * n) {
+      buffer = new byte[3 * n];
+    }
+    for (int i = 0; i < n; i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        buffer[length++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xC0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < n &&
+                 Character.isLowSurrogate(text.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        // An unpaired surrogate is part of a word, so it is encoded as
+        // U+FFFD rather than as the '?' of String.getBytes(), a delimiter.
+        buffer[length++] = (byte) 0xEF;
+        buffer[length++] = (byte) 0xBF;
+        buffer[length++] = (byte) 0xBD;
+      } else {
+        buffer[length++] = (byte) (0xE0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buffer[length++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    reset(buffer, 0, length);
+  }
+
+  /** Moves to the next word, and returns false if there is none. */
+  public boolean next() {
+    while (position < limit && isDelimiter(bytes[position])) {
+      position++;
+    }
+    if (position == limit) {
+      start = end = limit;
+      return false;
+    }
+    start = position;
+    while (position < limit && !isDelimiter(bytes[position])) {
+      position++;
+    }
+    end = position;
+    return true;
+  }
+
+  /** Returns whether the current word is a stop word, regardless of case. */
+  public boolean isStopWord() {
+    return stopWords.contains(bytes, start, end, scratch);
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getStart() {
+    return start;
+  }
+
+  public int getEnd() {
+    return end;
+  }
+
+  public int getLength() {
+    return end - start;
+  }
+
+  /** Returns the current word. Unlike the rest of the class, it allocates. */
+  @Override
+  public String toString() {
+    return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isDelimiter(byte b) {
+    return b >= 0 && DELIMITERS[b];
+  }
+
+  // ASCII characters matched by "[\\p{Punct}\\s]".
+  private static final boolean[] DELIMITERS = new boolean[128];
+  static {
+    for (char c : "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~ \t\n\u000B\f\r"
+                      .toCharArray()) {
+      DELIMITERS[c] = true;
+    }
+  }
+
+  private final StopWords stopWords;
+  private byte[] bytes = new byte[0];
+  private byte[] buffer = new byte[256];
+  private byte[] scratch = new byte[256];
+  private int position;
+  private int limit;
+  private int start;
+  private int end;
+}
@@ -0,0 +1,136 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * This class assigns ids to the most common words and tags, so that
+ * {@link FeatureKey} can carry an id instead of the term.
+ *
+ * It is built by {@link PostMapReduce} from a sample of the input before the
+ * job, and read by every task from the file at {@link #FILE}. Without the
+ * file, the vocabulary is empty and every term is carried as it is.
+ */
+public class Vocabulary {
+  /** Path of the vocabulary file. */
+  public static final String FILE = "crystal.vocabulary.path";
+
+  /** Maximum number of words and tags in the vocabulary. */
+  public static final String SIZE = "crystal.vocabulary.size";
+
+  /** Returns the id of the term of the type, or -1 if it is not known. */
+  public int getId(FeatureKey.Type type, byte[] bytes, int start, int end) {
+    return index(type).get(bytes, start, end);
+  }
+
+  /** Returns the UTF-8 bytes of the term of the id, which must not change. */
+  public byte[] getTerm(FeatureKey.Type type, int id) {
+    return index(type).termBytes(id);
+  }
+
+  /** Returns the number of words and tags. */
+  public int size() {
+    return words.size() + tags.size();
+  }
+
+  private TermIndex index(FeatureKey.Type type) {
+    return type == FeatureKey.Type.TAG ? tags : words;
+  }
+
+  /**
+   * Builds the vocabulary of the words and tags in the most posts, from the
+   * number of records of the keys sampled without a vocabulary.
+   */
+  public static Vocabulary build(Map<FeatureKey, long[]> weights, int size) {
+    List<Map.Entry<FeatureKey, long[]>> terms =
+        new ArrayList<Map.Entry<FeatureKey, long[]>>();
+    for (Map.Entry<FeatureKey, long[]> entry : weights.entrySet()) {
+      FeatureKey key = entry.getKey();
+      if (key.getType().hasTerm() && key.getId() < 0) {
+        terms.add(entry);
+      }
+    }
+    Collections.sort(terms, new Comparator<Map.Entry<FeatureKey, long[]>>() {
+      @Override
+      public int compare(Map.Entry<FeatureKey, long[]> a,
+                         Map.Entry<FeatureKey, long[]> b) {
+        return Long.compare(b.getValue()[FeatureSampler.RECORDS],
+                            a.getValue()[FeatureSampler.RECORDS]);
+      }
+    });
+
+    Vocabulary vocabulary = new Vocabulary();
+    for (int i = 0; i < Math.min(size, terms.size()); i++) {
+      vocabulary.add(terms.get(i).getKey());
+    }
+    return vocabulary;
+  }
+
+  /** Adds the term of a key with a term out of the vocabulary. */
+  private void add(FeatureKey key) {
+    index(key.getType()).add(key.getTermBytes(), 0, key.getTermLength());
+  }
+
+  /** Writes the vocabulary to the file, and sets the job to read it. */
+  public void write(Configuration conf, Path file) throws IOException {
+    FileSystem fs = file.getFileSystem(conf);
+    file = fs.makeQualified(file);
+    try (
+      SequenceFile.Writer writer =
+          SequenceFile.createWriter(conf,
+              SequenceFile.Writer.file(file),
+              SequenceFile.Writer.keyClass(IntWritable.class),
+              SequenceFile.Writer.valueClass(Text.class));
+    ) {
+      IntWritable type = new IntWritable();
+      Text term = new Text();
+      for (FeatureKey.Type t : new FeatureKey.Type[]{FeatureKey.Type.WORD,
+                                                     FeatureKey.Type.TAG}) {
+        type.set(t.ordinal());
+        TermIndex index = index(t);
+        for (int id = 0; id < index.size(); id++) {
+          byte[] bytes = index.termBytes(id);
+          term.set(bytes, 0, bytes.length);
+          writer.append(type, term);
+        }
+      }
+    }
+    conf.set(FILE, file.toString());
+  }
+
+  /** Reads the vocabulary of the job, or returns an empty one. */
+  public static Vocabulary load(Configuration conf) throws IOException {
+    Vocabulary vocabulary = new Vocabulary();
+    String file = conf.get(FILE);
+    if (file == null) {
+      return vocabulary;
+    }
+    FeatureKey.Type[] types = FeatureKey.Type.values();
+    try (
+      SequenceFile.Reader reader =
+          new SequenceFile.Reader(conf,
+                                  SequenceFile.Reader.file(new Path(file)));
+    ) {
+      IntWritable type = new IntWritable();
+      Text term = new Text();
+      while (reader.next(type, term)) {
+        vocabulary.index(types[type.get()])
+            .add(term.getBytes(), 0, term.getLength());
+      }
+    }
+    return vocabulary;
+  }
+
+  private TermIndex words = new TermIndex();
+  private TermIndex tags = new TermIndex();
+}
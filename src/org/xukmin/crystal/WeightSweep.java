@@ -0,0 +1,279 @@
+package org.xukmin.crystal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class evaluates many weights of the groups of features of
+ * {@link PostPredictor} on the test data at once, to tune them without
+ * reading the test data again for each of them.
+ *
+ * The test posts are parsed and scored once, and the log-likelihoods of each
+ * {@link PostPredictor.Group} for each state are kept in memory. The score of
+ * a state is the weighted sum of these, so predicting a post with other
+ * weights takes a few multiplications, and gives the same prediction as
+ * PostPredictor with these weights. The weights are evaluated in parallel.
+ *
+ * The weights of each group are listed in crystal.sweep.<group>, e.g.
+ * crystal.sweep.tags=4,8,16, or the weight of the predictor by default. All
+ * the combinations are evaluated, or with {@link #RANDOM} set, that many
+ * random weights between the smallest and the largest of each list. It prints
+ * the accuracy and F-measure of each, and the best weights.
+ *
+ * Usage: WeightSweep <model> <test data>
+ */
+public class WeightSweep extends Configured implements Tool {
+  /** Prefix of the lists of weights of the groups, e.g. crystal.sweep.tags. */
+  public static final String PREFIX = "crystal.sweep.";
+  /** Number of random weights to evaluate, or 0 for all the combinations. */
+  public static final String RANDOM = "crystal.sweep.random";
+  /** Seed of the random weights. */
+  public static final String SEED = "crystal.sweep.seed";
+  /** Number of threads that evaluate the weights. */
+  public static final String THREADS = "crystal.sweep.threads";
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(), new WeightSweep(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: WeightSweep <model> <test data>");
+      return 1;
+    }
+    Configuration conf = getConf();
+    PostPredictor predictor = new PostPredictor(conf, args[0]);
+    numStates = predictor.getStates().length;
+    stride = PostPredictor.Group.COUNT * numStates;
+    evaluation = new Evaluation(predictor.getStates());
+
+    long start = System.nanoTime();
+    readPosts(predictor, args[1]);
+    long scoreTime = System.nanoTime() - start;
+    predictor.close();
+
+    List<double[]> weights = getWeights(predictor.getWeights());
+    start = System.nanoTime();
+    List<Evaluation> evaluations =
+        evaluate(weights, conf.getInt(THREADS,
+                     Runtime.getRuntime().availableProcessors()));
+    long sweepTime = System.nanoTime() - start;
+
+    StringBuilder header = new StringBuilder();
+    for (PostPredictor.Group group : PostPredictor.Group.values()) {
+      header.append(String.format("%10s ", group.name().toLowerCase()));
+    }
+    System.out.printf("%s%10s %10s\n", header, "Accuracy", "F-measure");
+    int best = 0;
+    for (int i = 0; i < weights.size(); i++) {
+      Evaluation result = evaluations.get(i);
+      System.out.printf("%s%9.3f%% %9.3f%%\n", format(weights.get(i)),
+                        100.0 * result.getAccuracy(),
+                        100.0 * result.getFMeasure());
+      if (result.getAccuracy() > evaluations.get(best).getAccuracy()) {
+        best = i;
+      }
+    }
+
+    System.out.printf("Posts               = %d\n", numPosts);
+    if (numSkipped > 0) {
+      System.out.printf("Skipped Posts       = %d\n", numSkipped);
+    }
+    System.out.printf("Weights             = %d\n", weights.size());
+    System.out.printf("Score Time (ms)     = %d\n", scoreTime / 1000000);
+    System.out.printf("Sweep Time (ms)     = %d\n", sweepTime / 1000000);
+    System.out.printf("Best Accuracy       = %.3f%%\n",
+                      100.0 * evaluations.get(best).getAccuracy());
+    System.out.print("Best Weights        =");
+    for (PostPredictor.Group group : PostPredictor.Group.values()) {
+      System.out.printf(" -D %s=%s", group.getWeightKey(),
+                        toString(weights.get(best)[group.ordinal()]));
+    }
+    System.out.println();
+    return 0;
+  }
+
+  /** Parses and scores the posts, and keeps the scores of their groups. */
+  private void readPosts(PostPredictor predictor, String pattern)
+      throws IOException {
+    FileSystem fs = FileSystem.get(getConf());
+    FileStatus[] files = fs.globStatus(new Path(pattern));
+    if (files == null || files.length == 0) {
+      throw new IOException("No test data matches " + pattern);
+    }
+    scores = new double[1024 * stride];
+    actualStates = new int[1024];
+    Post post = new Post();
+    Text line = new Text();
+    for (FileStatus file : files) {
+      try (CSVLineReader reader = new CSVLineReader(fs.open(file.getPath()))) {
+        while (reader.readLine(line) > 0) {
+          if (line.getLength() == 0) {
+            continue;
+          }
+          post.set(line);
+          if (post.isHeader()) {
+            continue;
+          }
+          if (numPosts == actualStates.length) {
+            actualStates = Arrays.copyOf(actualStates, 2 * numPosts);
+            scores = Arrays.copyOf(scores, 2 * numPosts * stride);
+          }
+          int actual = evaluation.getState(post.getStatus());
+          if (actual == -1) {
+            numSkipped++;
+            continue;
+          }
+          actualStates[numPosts] = actual;
+          predictor.scoreGroups(post, scores, numPosts * stride);
+          numPosts++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the weights to evaluate, from the lists of weights of the groups,
+   * which default to the weights of the predictor.
+   */
+  private List<double[]> getWeights(double[] defaults) {
+    PostPredictor.Group[] groups = PostPredictor.Group.values();
+    double[][] values = new double[groups.length][];
+    for (PostPredictor.Group group : groups) {
+      String[] list = getConf().getTrimmedStrings(
+          PREFIX + group.name().toLowerCase());
+      double[] groupValues = new double[Math.max(list.length, 1)];
+      groupValues[0] = defaults[group.ordinal()];
+      for (int i = 0; i < list.length; i++) {
+        groupValues[i] = Double.parseDouble(list[i]);
+      }
+      values[group.ordinal()] = groupValues;
+    }
+
+    List<double[]> weights = new ArrayList<double[]>();
+    int numRandom = getConf().getInt(RANDOM, 0);
+    if (numRandom > 0) {
+      Random random = new Random(getConf().getLong(SEED, 0));
+      for (int i = 0; i < numRandom; i++) {
+        double[] w = new double[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+          double min = values[g][0];
+          double max = values[g][0];
+          for (double value : values[g]) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+          }
+          w[g] = min + random.nextDouble() * (max - min);
+        }
+        weights.add(w);
+      }
+    } else {
+      // Counts through the combinations, the last group the fastest.
+      int[] index = new int[groups.length];
+      while (true) {
+        double[] w = new double[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+          w[g] = values[g][index[g]];
+        }
+        weights.add(w);
+        int g = groups.length - 1;
+        while (g >= 0 && ++index[g] == values[g].length) {
+          index[g--] = 0;
+        }
+        if (g < 0) {
+          break;
+        }
+      }
+    }
+    return weights;
+  }
+
+  /**
+   * Evaluates the weights on the scores of the posts. The weights are split
+   * into a task for each thread, so the threads share only the scores, which
+   * they read.
+   */
+  private List<Evaluation> evaluate(final List<double[]> weights,
+                                    int numThreads) throws IOException {
+    final Evaluation[] results = new Evaluation[weights.size()];
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> tasks = new ArrayList<Future<?>>();
+      for (int t = 0; t < numThreads; t++) {
+        final int first = t;
+        final int step = numThreads;
+        tasks.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int i = first; i < results.length; i += step) {
+              results[i] = evaluate(weights.get(i));
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Sweep interrupted.");
+    } catch (ExecutionException e) {
+      throw new IOException("Sweep failed.", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    return Arrays.asList(results);
+  }
+
+  private Evaluation evaluate(double[] weights) {
+    Evaluation result = new Evaluation(evaluation.getStates());
+    for (int i = 0; i < numPosts; i++) {
+      result.add(actualStates[i], PostPredictor.predictState(
+          scores, i * stride, weights, numStates));
+    }
+    return result;
+  }
+
+  private static String format(double[] weights) {
+    StringBuilder builder = new StringBuilder();
+    for (double weight : weights) {
+      builder.append(String.format("%10s ", toString(weight)));
+    }
+    return builder.toString();
+  }
+
+  /** Returns the weight without trailing zeros, e.g. 8 or 0.125. */
+  private static String toString(double weight) {
+    return weight == Math.rint(weight) ?
+        Long.toString((long) weight) : String.format("%.4g", weight);
+  }
+
+  private int numStates;
+  private int stride;
+  private Evaluation evaluation;
+  private int numPosts;
+  // Number of posts whose status is not a state.
+  private long numSkipped;
+  // Scores of the groups of post i from scores[i * stride], and its state.
+  private double[] scores;
+  private int[] actualStates;
+}
@@ -0,0 +1,39 @@
+#!/bin/bash
+#
+# Usage: ./verify-local.sh [-D <option>=<value>...] [<training data>]
+#
+# Trains a model on the same data with PostMapReduce and with LocalTrainer,
+# with the same options, and checks that the models are the same: the rows of
+# the part-r-* files, in any order, and the counters file. For example,
+#
+#     ./verify-local.sh -D crystal.ngram.size=2 train_October_9_2012_clean_1.csv
+#
+# The models are written to verify-mapreduce and verify-local.
+
+OPTIONS=()
+while [[ "$1" == "-D" ]]; do
+  OPTIONS+=("$1" "$2")
+  shift 2
+done
+INPUT="${1:-train_October_9_2012_clean_1.csv}"
+
+./build.sh &&
+hadoop jar bin/crystal.jar org.xukmin.crystal.PostMapReduce \
+    "${OPTIONS[@]}" "${INPUT}" verify-mapreduce &&
+hadoop jar bin/crystal.jar org.xukmin.crystal.LocalTrainer \
+    "${OPTIONS[@]}" "${INPUT}" verify-local || exit
+
+STATUS=0
+for FILE in 'part-r-*' counters; do
+  if ! diff \
+      <(hadoop fs -cat "verify-mapreduce/${FILE}" | LC_ALL=C sort) \
+      <(hadoop fs -cat "verify-local/${FILE}" | LC_ALL=C sort) > /dev/null
+  then
+    echo "DIFFERENT: ${FILE}"
+    STATUS=1
+  fi
+done
+if (( STATUS == 0 )); then
+  echo "SAME"
+fi
+exit "${STATUS}"
@@ -0,0 +1,72 @@
+#!/bin/bash
+#
+# Usage: ./verify-model.sh [<training data> [<test data>]]
+#
+# Checks that the output directory of PostMapReduce and the model file
+# compiled from it predict the same. A non-ASCII word is added to the title
+# of every post of copies of the data, "naïve" to the closed posts and "über"
+# to the open ones, and the predictions are made in the C locale, so a model
+# that reads its terms in the default charset instead of UTF-8 misses them.
+# For example,
+#
+#     ./verify-model.sh train_October_9_2012_clean_99.csv \
+#         train_October_9_2012_clean_1.csv
+#
+# The model is written to verify-model and verify-model.bin.
+
+TRAIN="${1:-train_October_9_2012_clean_99.csv}"
+TEST="${2:-train_October_9_2012_clean_1.csv}"
+
+# Adds the word of the status to the title, after the first six fields, once
+# the whole post is read: the status is its last field, and the body may span
+# lines.
+function add_terms() {
+  awk -v closed='naïve' -v open='über' '
+    function flush(  status, p, k) {
+      if (n == 0) {
+        return
+      }
+      status = lines[n]
+      sub(/\r$/, "", status)
+      sub(/.*,/, "", status)
+      p = 0
+      for (k = 0; k < 6; k++) {
+        p += index(substr(lines[1], p + 1), ",")
+      }
+      if (substr(lines[1], p + 1, 1) == "\"") {
+        p++
+      }
+      lines[1] = substr(lines[1], 1, p) (status == "open" ? open : closed) \
+          " " substr(lines[1], p + 1)
+      for (k = 1; k <= n; k++) {
+        print lines[k]
+      }
+      n = 0
+    }
+    NR == 1 { print; next }
+    /^[0-9]+,[0-9]+\/[0-9]+\/[0-9]+ / { flush() }
+    { lines[++n] = $0 }
+    END { flush() }
+  ' "$1"
+}
+
+function predict() {
+  LC_ALL=C java -cp bin/crystal.jar:$(hadoop classpath) \
+      org.xukmin.crystal.PostPredictor "$1" verify-model-test.csv 2> /dev/null |
+      grep '='
+}
+
+add_terms "${TRAIN}" > verify-model-train.csv &&
+add_terms "${TEST}" > verify-model-test.csv &&
+./build.sh &&
+hadoop jar bin/crystal.jar org.xukmin.crystal.PostMapReduce \
+    verify-model-train.csv verify-model &&
+java -cp bin/crystal.jar:$(hadoop classpath) org.xukmin.crystal.ModelCompiler \
+    verify-model verify-model.bin || exit
+
+if diff <(predict verify-model) <(predict verify-model.bin); then
+  echo "SAME"
+else
+  echo "DIFFERENT"
+  exit 1
+fi